@@ -0,0 +1,278 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.LongStream;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
+
+/**
+ * Merges author nodes that are the same person, using the rules of the cypher build queries it replaces,
+ * in order:
+ * <ul>
+ * <li>the same orcid</li>
+ * <li>the same first and last name</li>
+ * <li>the same author label on the same article</li>
+ * <li>the same author label and similar affiliations</li>
+ * <li>the same author label and a co-author in common</li>
+ * </ul>
+ * Instead of comparing every pair of authors, the authors are grouped by the key each rule compares, and
+ * everyone in a group joins the same set in a union-find. Each set is then merged into one node, keeping
+ * the relationships of all of them, with one transaction per chunk of sets that locks the members and
+ * their neighbours in order of node id first.
+ */
+public class AuthorDisambiguator {
+
+	private static final Logger logger = LoggerFactory.getLogger(AuthorDisambiguator.class);
+
+	private static final int MERGE_CHUNK_SIZE = 500;
+
+	private long[] nodeIds;
+	private String[][] keys;
+	private String[] labels;
+	private int[][] articles;
+	private long[][] affiliations;
+	private int[] parent;
+	private Map<String,Integer> merges = new LinkedHashMap<>();
+
+	/**
+	 * @return the number of author nodes merged away by each rule, and in total
+	 */
+	public static Map<String,Integer> run(GraphDatabaseApi graph) {
+		long start = System.currentTimeMillis();
+		AuthorDisambiguator d = new AuthorDisambiguator();
+		Map<Long,long[]> similar = d.load(graph);
+		logger.info("Loaded {} authors in {} secs", d.nodeIds.length, (System.currentTimeMillis()-start)/1000);
+		d.group();
+		d.groupByAffiliation(similar);
+		d.groupByCoauthor();
+		List<long[]> sets = d.sets();
+		int removed = d.merge(sets, graph);
+		d.merges.put("total", removed);
+		logger.info("Merged {} authors into {} in {} secs: {}", removed+sets.size(), sets.size(), (System.currentTimeMillis()-start)/1000, d.merges);
+		return d.merges;
+	}
+
+	private Map<Long,long[]> load(GraphDatabaseApi graph) {
+		List<Long> ids = new ArrayList<>();
+		List<String[]> keyList = new ArrayList<>();
+		List<String> labelList = new ArrayList<>();
+		List<int[]> articleList = new ArrayList<>();
+		List<long[]> affiliationList = new ArrayList<>();
+		Map<Long,Integer> articleIndex = new HashMap<>();
+		Map<Long,long[]> similar = new HashMap<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.AUTHOR).forEachRemaining(n -> {
+				ids.add(n.getId());
+				Object orcid = n.getProperty(Prop.ORCID, null);
+				Object last = n.getProperty(Prop.LAST_NAME, null);
+				Object first = n.getProperty(Prop.FIRST_NAME, null);
+				Object label = n.getProperty(Prop.AUTHOR_LABEL, null);
+				keyList.add(new String[] {
+						orcid == null ? null : orcid.toString(),
+						last == null || first == null ? null : last+"\u0000"+first});
+				labelList.add(label == null ? null : label.toString());
+				List<Integer> arts = new ArrayList<>();
+				n.getRelationships(Direction.INCOMING, Rel.HAS_AUTHOR).forEach(r ->
+					arts.add(articleIndex.computeIfAbsent(r.getStartNode().getId(), k -> articleIndex.size())));
+				articleList.add(arts.stream().mapToInt(i -> i).distinct().toArray());
+				List<Long> affs = new ArrayList<>();
+				n.getRelationships(Direction.OUTGOING, Rel.HAS_AFFILIATION).forEach(r -> {
+					Node a = r.getEndNode();
+					affs.add(a.getId());
+					if (!similar.containsKey(a.getId())) {
+						List<Long> to = new ArrayList<>();
+						a.getRelationships(Direction.OUTGOING, Rel.SIMILAR_TO).forEach(s -> to.add(s.getEndNode().getId()));
+						similar.put(a.getId(), to.stream().mapToLong(l -> l).toArray());
+					}
+				});
+				affiliationList.add(affs.stream().mapToLong(l -> l).toArray());
+			});
+			tx.success();
+		}
+		nodeIds = ids.stream().mapToLong(l -> l).toArray();
+		keys = keyList.toArray(new String[0][]);
+		labels = labelList.toArray(new String[0]);
+		articles = articleList.toArray(new int[0][]);
+		affiliations = affiliationList.toArray(new long[0][]);
+		parent = new int[nodeIds.length];
+		for (int i=0; i<parent.length; i++) parent[i] = i;
+		return similar;
+	}
+
+	private int find(int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private void union(int i, int j, String rule) {
+		int a = find(i);
+		int b = find(j);
+		if (a == b) return;
+		if (a < b) parent[b] = a; else parent[a] = b;
+		merges.merge(rule, 1, Integer::sum);
+	}
+
+	// joins everyone with the same key to the first author seen with it
+	private void unionByKey(Map<String,Integer> seen, String key, int i, String rule) {
+		if (key == null) return;
+		Integer first = seen.putIfAbsent(key, i);
+		if (first != null) union(first, i, rule);
+	}
+
+	private void group() {
+		Map<String,Integer> orcids = new HashMap<>();
+		for (int i=0; i<nodeIds.length; i++) unionByKey(orcids, keys[i][0], i, "orcid");
+		Map<String,Integer> names = new HashMap<>();
+		for (int i=0; i<nodeIds.length; i++) unionByKey(names, keys[i][1], i, "fullName");
+		Map<String,Integer> onArticle = new HashMap<>();
+		for (int i=0; i<nodeIds.length; i++) {
+			if (labels[i] == null) continue;
+			for (int a: articles[i]) unionByKey(onArticle, a+"\u0000"+labels[i], i, "labelOnArticle");
+		}
+	}
+
+	private void groupByAffiliation(Map<Long,long[]> similar) {
+		// authors with each label and affiliation; an author joins everyone with the same label whose
+		// affiliation is similar to one of theirs, or is the same node as identical affiliations share one
+		Map<String,List<Integer>> byAffiliation = new HashMap<>();
+		for (int i=0; i<nodeIds.length; i++) {
+			if (labels[i] == null) continue;
+			for (long a: affiliations[i]) byAffiliation.computeIfAbsent(labels[i]+"\u0000"+a, k -> new ArrayList<>()).add(i);
+		}
+		Set<String> joined = new HashSet<>();
+		for (int i=0; i<nodeIds.length; i++) {
+			if (labels[i] == null) continue;
+			for (long a: affiliations[i]) {
+				long[] to = similar.getOrDefault(a, new long[0]);
+				long[] same = Arrays.copyOf(to, to.length+1);
+				same[to.length] = a;
+				for (long b: same) {
+					String key = labels[i]+"\u0000"+b;
+					List<Integer> others = byAffiliation.get(key);
+					if (others == null) continue;
+					if (joined.add(key)) others.forEach(o -> union(others.get(0), o, "labelAndAffiliation"));
+					union(i, others.get(0), "labelAndAffiliation");
+				}
+			}
+		}
+	}
+
+	private void groupByCoauthor() {
+		// co-authors are the sets of the other authors of the same articles, after the merges so far
+		Map<Integer,List<Integer>> byArticle = new HashMap<>();
+		for (int i=0; i<nodeIds.length; i++) {
+			for (int a: articles[i]) byArticle.computeIfAbsent(a, k -> new ArrayList<>()).add(i);
+		}
+		int[] root = new int[nodeIds.length];
+		for (int i=0; i<root.length; i++) root[i] = find(i);
+		Map<String,Integer> seen = new HashMap<>();
+		byArticle.values().forEach(authors -> {
+			for (int n: authors) {
+				if (labels[n] == null) continue;
+				for (int o: authors) {
+					if (root[o] != root[n]) unionByKey(seen, labels[n]+"\u0000"+root[o], n, "labelAndCoauthor");
+				}
+			}
+		});
+	}
+
+	private List<long[]> sets() {
+		Map<Integer,List<Long>> out = new HashMap<>();
+		for (int i=0; i<nodeIds.length; i++) {
+			int r = find(i);
+			if (r != i) out.computeIfAbsent(r, k -> new ArrayList<>()).add(nodeIds[i]);
+		}
+		// every set with more than one member has its root as the first element
+		List<long[]> sets = new ArrayList<>();
+		out.forEach((r, members) -> {
+			long[] tmp = new long[members.size()+1];
+			tmp[0] = nodeIds[r];
+			for (int k=0; k<members.size(); k++) tmp[k+1] = members.get(k);
+			sets.add(tmp);
+		});
+		return sets;
+	}
+
+	private int merge(List<long[]> sets, GraphDatabaseApi graph) {
+		int removed = 0;
+		for (int c=0; c<sets.size(); c+=MERGE_CHUNK_SIZE) {
+			List<long[]> chunk = sets.subList(c, Math.min(c+MERGE_CHUNK_SIZE, sets.size()));
+			removed += PubMedGraphUtils.retry(() -> {
+				int count = 0;
+				try (Transaction tx = graph.get().beginTx()) {
+					PubMedGraphUtils.lockNodes(neighbourhood(chunk, graph), graph, tx);
+					for (long[] set: chunk) count += mergeSet(set, graph);
+					tx.success();
+				}
+				return count;
+			});
+			logger.debug("Merged {} of {} author sets", Math.min(c+MERGE_CHUNK_SIZE, sets.size()), sets.size());
+		}
+		return removed;
+	}
+
+	// the members of the sets and the nodes at the other end of their relationships, which the merge writes
+	private static long[] neighbourhood(List<long[]> sets, GraphDatabaseApi graph) {
+		LongStream.Builder ids = LongStream.builder();
+		for (long[] set: sets) {
+			for (long id: set) {
+				ids.add(id);
+				graph.get().getNodeById(id).getRelationships().forEach(r -> ids.add(r.getOtherNodeId(id)));
+			}
+		}
+		return ids.build().toArray();
+	}
+
+	// moves the relationships of every other member onto the first, without duplicating any relationship
+	// the first already has and dropping those between members
+	private static int mergeSet(long[] set, GraphDatabaseApi graph) {
+		Node keep = graph.get().getNodeById(set[0]);
+		Set<Long> members = new HashSet<>();
+		for (long id: set) members.add(id);
+		Set<String> existing = new HashSet<>();
+		keep.getRelationships().forEach(r -> existing.add(relKey(r, keep)));
+		for (int k=1; k<set.length; k++) {
+			Node other = graph.get().getNodeById(set[k]);
+			for (Relationship r: other.getRelationships()) {
+				Node end = r.getOtherNode(other);
+				if (!members.contains(end.getId())) {
+					String key = relKey(r, other);
+					if (existing.add(key)) {
+						Relationship r2 = r.getStartNode().equals(other) ? keep.createRelationshipTo(end, r.getType()) : end.createRelationshipTo(keep, r.getType());
+						r.getAllProperties().forEach(r2::setProperty);
+					}
+				}
+				r.delete();
+			}
+			other.getAllProperties().forEach((k2,v) -> {
+				if (!keep.hasProperty(k2)) keep.setProperty(k2, v);
+			});
+			other.getLabels().forEach(keep::addLabel);
+			other.delete();
+		}
+		return set.length-1;
+	}
+
+	private static String relKey(Relationship r, Node from) {
+		return r.getType().name()+(r.getStartNode().equals(from) ? ">" : "<")+r.getOtherNode(from).getId();
+	}
+}
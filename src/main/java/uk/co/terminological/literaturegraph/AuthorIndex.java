@@ -0,0 +1,218 @@
+package uk.co.terminological.literaturegraph;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.terminological.bibliography.record.Author;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
+
+/**
+ * Finds the author and affiliation nodes that an author on a new article is certainly the same as, so
+ * that ingest does not create a node for every occurrence. Authors are the same if they have the same
+ * orcid, or the same last name, full first name and an affiliation in common, and do not have different
+ * orcids. Affiliations are the same if their names are the same ignoring case, accents and punctuation.
+ * Anything less certain still gets a new node and is left to the merges in the build queries.
+ * <br/>
+ * The index is loaded from the graph on first use and must be used inside a transaction that holds the
+ * shared lock from {@link IdentifierLocks#lockShared()}. Entries for nodes that have since been deleted,
+ * or whose transaction was rolled back, or that no longer have the key, are dropped when they are found.
+ */
+public class AuthorIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(AuthorIndex.class);
+
+	private GraphDatabaseService db;
+	private Map<String,Long> authors = new ConcurrentHashMap<>();
+	private Map<String,Long> affiliations = new ConcurrentHashMap<>();
+	private long authorsCreated = 0;
+	private long authorsReused = 0;
+	private long affiliationsCreated = 0;
+	private long affiliationsReused = 0;
+
+	AuthorIndex(GraphDatabaseService db) {
+		this.db = db;
+		long start = System.currentTimeMillis();
+		db.findNodes(Labels.AFFILIATION).forEachRemaining(n -> {
+			Object name = n.getProperty(Prop.ORGANISATION_NAME, null);
+			if (name != null) affiliations.putIfAbsent(normalise(name.toString()), n.getId());
+		});
+		db.findNodes(Labels.AUTHOR).forEachRemaining(n -> {
+			Object orcid = n.getProperty(Prop.ORCID, null);
+			if (orcid != null) authors.putIfAbsent(orcidKey(orcid.toString()), n.getId());
+			String name = nameKey(n.getProperty(Prop.LAST_NAME, null), n.getProperty(Prop.FIRST_NAME, null));
+			if (name != null) n.getRelationships(Direction.OUTGOING, Rel.HAS_AFFILIATION).forEach(r -> {
+				Object aff = r.getEndNode().getProperty(Prop.ORGANISATION_NAME, null);
+				if (aff != null) authors.putIfAbsent(name+"\u0000"+normalise(aff.toString()), n.getId());
+			});
+		});
+		logger.info("Author index loaded {} author keys and {} affiliations in {} ms", authors.size(), affiliations.size(), System.currentTimeMillis()-start);
+	}
+
+	/**
+	 * Ignores case, accents, punctuation and spacing.
+	 */
+	public static String normalise(String s) {
+		s = Normalizer.normalize(s, Normalizer.Form.NFKD).replaceAll("\\p{M}", "");
+		return s.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+	}
+
+	static String orcidKey(String orcid) {
+		return "orcid:"+orcid.replaceFirst("(?i)^https?://orcid\\.org/", "").trim().toUpperCase(Locale.ROOT);
+	}
+
+	// initials alone are not enough to tell people apart
+	static String nameKey(Object lastName, Object firstName) {
+		if (lastName == null || firstName == null) return null;
+		String last = normalise(lastName.toString());
+		String first = normalise(firstName.toString());
+		if (last.isEmpty() || first.replaceAll("\\b\\p{L}\\b", "").trim().isEmpty()) return null;
+		return "name:"+last+"\u0000"+first;
+	}
+
+	/**
+	 * @return an existing node for the author, with any missing properties and affiliations added, or a new one
+	 */
+	public Node author(Author author) {
+		String orcid = author.getORCID().map(AuthorIndex::orcidKey).orElse(null);
+		String name = nameKey(author.getLastName(), author.getFirstName().orElse(null));
+		List<String> affs = author.getAffiliations().collect(Collectors.toList());
+
+		Node node = find(orcid, name, affs);
+		if (node == null) {
+			node = db.createNode(Labels.AUTHOR);
+			authorsCreated++;
+		} else {
+			authorsReused++;
+		}
+		Node out = node;
+		setIfMissing(out, Prop.AUTHOR_LABEL, author.getLabel());
+		setIfMissing(out, Prop.LAST_NAME, author.getLastName());
+		author.getFirstName().ifPresent(fn -> setIfMissing(out, Prop.FIRST_NAME, fn));
+		author.getInitials().ifPresent(fn -> setIfMissing(out, Prop.INITIALS, fn));
+		author.getORCID().ifPresent(fn -> setIfMissing(out, Prop.ORCID, fn));
+
+		Set<Long> linked = new HashSet<>();
+		out.getRelationships(Direction.OUTGOING, Rel.HAS_AFFILIATION).forEach(r -> linked.add(r.getEndNode().getId()));
+		for (String af: affs) {
+			Node aff = affiliation(af);
+			if (linked.add(aff.getId())) out.createRelationshipTo(aff, Rel.HAS_AFFILIATION);
+			if (name != null) authors.putIfAbsent(name+"\u0000"+normalise(af), out.getId());
+		}
+		if (orcid != null) authors.putIfAbsent(orcid, out.getId());
+		return out;
+	}
+
+	/**
+	 * @return the existing nodes that {@link #author(Author)} would write to for the author, which are the
+	 * author node if there is one and their affiliations that already have nodes
+	 */
+	public List<Node> existing(Author author) {
+		String orcid = author.getORCID().map(AuthorIndex::orcidKey).orElse(null);
+		String name = nameKey(author.getLastName(), author.getFirstName().orElse(null));
+		List<String> affs = author.getAffiliations().collect(Collectors.toList());
+		List<Node> out = new ArrayList<>();
+		Node node = find(orcid, name, affs);
+		if (node != null) out.add(node);
+		for (String af: affs) {
+			String key = normalise(af);
+			Node aff = lookup(affiliations, key, Labels.AFFILIATION, n -> isAffiliation(n, key));
+			if (aff != null) out.add(aff);
+		}
+		return out;
+	}
+
+	private Node find(String orcid, String name, List<String> affs) {
+		Node node = orcid == null ? null : lookup(authors, orcid, Labels.AUTHOR, n -> hasKey(n, orcid));
+		if (node == null && name != null) {
+			for (String af: affs) {
+				String key = name+"\u0000"+normalise(af);
+				node = lookup(authors, key, Labels.AUTHOR, n -> hasKey(n, key));
+				if (node != null && orcid != null && node.hasProperty(Prop.ORCID) && !orcid.equals(orcidKey(node.getProperty(Prop.ORCID).toString()))) node = null;
+				if (node != null) break;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * @return the existing node for an affiliation with the same normalised name, or a new one
+	 */
+	public Node affiliation(String name) {
+		String key = normalise(name);
+		Node node = lookup(affiliations, key, Labels.AFFILIATION, n -> isAffiliation(n, key));
+		if (node != null) {
+			affiliationsReused++;
+			return node;
+		}
+		node = db.createNode(Labels.AFFILIATION);
+		node.setProperty(Prop.ORGANISATION_NAME, name);
+		affiliations.put(key, node.getId());
+		affiliationsCreated++;
+		return node;
+	}
+
+	// the node must still have the key, as a deleted node's id can be reused by any new node
+	private Node lookup(Map<String,Long> index, String key, Label label, Predicate<Node> hasKey) {
+		Long id = index.get(key);
+		if (id == null) return null;
+		try {
+			Node node = db.getNodeById(id);
+			if (node.hasLabel(label) && hasKey.test(node)) return node;
+		} catch (NotFoundException e) {
+			// deleted by a merge, or created in a transaction that did not commit
+		}
+		index.remove(key, id);
+		return null;
+	}
+
+	private static boolean isAffiliation(Node affiliation, String key) {
+		return key.equals(normalise(affiliation.getProperty(Prop.ORGANISATION_NAME, "").toString()));
+	}
+
+	// whether an author node has an orcid key, or a name key with one of its affiliations
+	private static boolean hasKey(Node author, String key) {
+		if (key.startsWith("orcid:")) {
+			Object orcid = author.getProperty(Prop.ORCID, null);
+			return orcid != null && key.equals(orcidKey(orcid.toString()));
+		}
+		String name = nameKey(author.getProperty(Prop.LAST_NAME, null), author.getProperty(Prop.FIRST_NAME, null));
+		if (name == null) return false;
+		for (Relationship r: author.getRelationships(Direction.OUTGOING, Rel.HAS_AFFILIATION)) {
+			Object aff = r.getEndNode().getProperty(Prop.ORGANISATION_NAME, null);
+			if (aff != null && key.equals(name+"\u0000"+normalise(aff.toString()))) return true;
+		}
+		return false;
+	}
+
+	private static void setIfMissing(Node node, String key, Object value) {
+		if (value != null && !node.hasProperty(key)) node.setProperty(key, value);
+	}
+
+	boolean isFor(GraphDatabaseService db) {
+		return this.db == db;
+	}
+
+	public void logStatistics() {
+		logger.info("Author index: {} authors created, {} reused; {} affiliations created, {} reused",
+				authorsCreated, authorsReused, affiliationsCreated, affiliationsReused);
+	}
+}
@@ -0,0 +1,119 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
+
+/**
+ * Projects the article graph onto authors as weighted networks. CO_AUTHOR links each pair of authors of
+ * the same article, in both directions, and CITES links the authors of an article to the authors of each
+ * article it references. Each relationship is written once with a weight property holding the number of
+ * articles, or article to reference links, behind it, where the cypher build queries created one
+ * relationship for each. Any existing network of the same type is replaced. Pairs are counted in parallel
+ * with {@link PairCounts#count(int, PairCounts.Partition)}, sharded by the first author of the pair, so
+ * every thread reads all the articles but skips those authors that are not in its shard before pairing them.
+ */
+public class AuthorProjection {
+
+	private static final Logger logger = LoggerFactory.getLogger(AuthorProjection.class);
+
+	private static final int WRITE_CHUNK_SIZE = 10000;
+
+	private List<Long> authorIds = new ArrayList<>();
+	private List<int[]> authors = new ArrayList<>();
+	private List<int[]> references = new ArrayList<>();
+
+	/**
+	 * @param type either CO_AUTHOR or CITES
+	 * @return the number of relationships created
+	 */
+	public static long run(Rel type, int threads, GraphDatabaseApi graph) {
+		if (type != Rel.CO_AUTHOR && type != Rel.CITES) throw new IllegalArgumentException("No author projection for "+type);
+		long start = System.currentTimeMillis();
+		AuthorProjection p = new AuthorProjection();
+		p.load(graph);
+		List<PairCounts> counts = type == Rel.CO_AUTHOR ? p.coAuthors(threads) : p.cites(threads);
+		logger.info("{}: {} author pairs from {} articles counted in {} secs", type, PairCounts.size(counts), p.authors.size(), (System.currentTimeMillis()-start)/1000);
+		RelationshipWriter.deleteFrom(Labels.AUTHOR, type, WRITE_CHUNK_SIZE, graph);
+		try (RelationshipWriter writer = new RelationshipWriter(graph, type, WRITE_CHUNK_SIZE, Prop.WEIGHT)) {
+			for (PairCounts shard: counts) {
+				shard.forEach((first, second, count) -> {
+					long i = p.authorIds.get(first);
+					long j = p.authorIds.get(second);
+					long weight = count;
+					writer.add(i, j, weight);
+					if (type == Rel.CO_AUTHOR) writer.add(j, i, weight);
+				});
+			}
+			return writer.written();
+		}
+	}
+
+	// each article becomes the sorted distinct indexes of its authors, and the indexes of the articles it
+	// references
+	private void load(GraphDatabaseApi graph) {
+		Map<Long,Integer> authorIndex = new HashMap<>();
+		Map<Long,Integer> articleIndex = new HashMap<>();
+		List<long[]> referenceIds = new ArrayList<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.ARTICLE).forEachRemaining(article -> {
+				articleIndex.put(article.getId(), authors.size());
+				List<Integer> tmp = new ArrayList<>();
+				for (Relationship r: article.getRelationships(Direction.OUTGOING, Rel.HAS_AUTHOR)) {
+					Node author = r.getEndNode();
+					tmp.add(authorIndex.computeIfAbsent(author.getId(), k -> {
+						authorIds.add(k);
+						return authorIds.size()-1;
+					}));
+				}
+				authors.add(tmp.stream().mapToInt(i -> i).distinct().sorted().toArray());
+				List<Long> refs = new ArrayList<>();
+				article.getRelationships(Direction.OUTGOING, Rel.HAS_REFERENCE).forEach(r -> refs.add(r.getEndNode().getId()));
+				referenceIds.add(refs.stream().mapToLong(l -> l).distinct().toArray());
+			});
+			tx.success();
+		}
+		referenceIds.forEach(refs -> references.add(Arrays.stream(refs)
+				.filter(articleIndex::containsKey).mapToInt(articleIndex::get).toArray()));
+	}
+
+	private List<PairCounts> coAuthors(int threads) {
+		return PairCounts.count(threads, out -> {
+			for (int[] a: authors) {
+				// the authors are sorted, so a[x] is the first of each of its pairs
+				for (int x=0; x<a.length; x++) {
+					if (!out.owns(a[x])) continue;
+					for (int y=x+1; y<a.length; y++) out.add(PairCounts.key(a[x], a[y]), 1);
+				}
+			}
+		});
+	}
+
+	private List<PairCounts> cites(int threads) {
+		return PairCounts.count(threads, out -> {
+			for (int i=0; i<authors.size(); i++) {
+				for (int ref: references.get(i)) {
+					for (int n: authors.get(i)) {
+						if (!out.owns(n)) continue;
+						for (int o: authors.get(ref)) {
+							if (n != o) out.add(PairCounts.key(n, o), 1);
+						}
+					}
+				}
+			}
+		});
+	}
+}
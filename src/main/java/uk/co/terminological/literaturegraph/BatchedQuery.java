@@ -0,0 +1,115 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.QueryStatistics;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransientFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a write query in batches with a commit after each batch, so that the transaction state held in
+ * the heap is bounded by the batch size rather than the size of the graph. A driving query returns the
+ * keys to process, usually node ids, and the write query is run once for each batch of keys, which it
+ * gets as the $batch parameter. Batches can be run in parallel as long as they do not write to the same
+ * nodes; a batch that fails with a transient error such as a deadlock is retried.
+ */
+public class BatchedQuery {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchedQuery.class);
+
+	private static final int RETRIES = 3;
+
+	/**
+	 * @param name the name used in progress messages
+	 * @param driver a read query whose first column holds the keys
+	 * @param query a write query that uses the $batch parameter
+	 * @param batchSize the number of keys in each transaction
+	 * @param parallel the number of batches run at the same time
+	 * @return totals of nodes created, nodes deleted, relationships created, relationships deleted and properties set
+	 */
+	public static long[] run(String name, String driver, String query, int batchSize, int parallel, GraphDatabaseApi graph) {
+		List<Object> keys = new ArrayList<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			Result r = graph.get().execute(driver);
+			ResourceIterator<Object> it = r.columnAs(r.columns().get(0));
+			it.forEachRemaining(keys::add);
+			tx.success();
+		}
+		List<List<Object>> batches = new ArrayList<>();
+		for (int i=0; i<keys.size(); i+=batchSize) {
+			batches.add(keys.subList(i, Math.min(i+batchSize, keys.size())));
+		}
+		logger.info("{}: {} keys in {} batches of {}, {} at a time", name, keys.size(), batches.size(), batchSize, parallel);
+
+		long start = System.currentTimeMillis();
+		AtomicInteger done = new AtomicInteger();
+		AtomicLong[] totals = new AtomicLong[5];
+		for (int i=0; i<totals.length; i++) totals[i] = new AtomicLong();
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallel));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (List<Object> batch: batches) {
+				futures.add(pool.submit(() -> {
+					QueryStatistics q = runBatch(query, batch, graph);
+					totals[0].addAndGet(q.getNodesCreated());
+					totals[1].addAndGet(q.getNodesDeleted());
+					totals[2].addAndGet(q.getRelationshipsCreated());
+					totals[3].addAndGet(q.getRelationshipsDeleted());
+					totals[4].addAndGet(q.getPropertiesSet());
+					logger.info("{}: batch {} of {} done after {} secs; relationships added {}, properties set {}",
+							name, done.incrementAndGet(), batches.size(), (System.currentTimeMillis()-start)/1000,
+							totals[2].get(), totals[4].get());
+				}));
+			}
+			for (Future<?> f: futures) f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(name+" interrupted after "+done.get()+" batches", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(name+" failed after "+done.get()+" batches", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		long[] out = new long[totals.length];
+		for (int i=0; i<totals.length; i++) out[i] = totals[i].get();
+		return out;
+	}
+
+	/**
+	 * Runs a write query in a single transaction, retrying it if it fails with a transient error.
+	 * @return totals of nodes created, nodes deleted, relationships created, relationships deleted and properties set
+	 */
+	public static long[] runOnce(String query, GraphDatabaseApi graph) {
+		QueryStatistics q = runBatch(query, null, graph);
+		return new long[] {q.getNodesCreated(), q.getNodesDeleted(), q.getRelationshipsCreated(), q.getRelationshipsDeleted(), q.getPropertiesSet()};
+	}
+
+	private static QueryStatistics runBatch(String query, List<Object> batch, GraphDatabaseApi graph) {
+		for (int attempt = 1;; attempt++) {
+			try (Transaction tx = graph.get().beginTx()) {
+				Result r = batch == null ? graph.get().execute(query) :
+					graph.get().execute(query, Collections.<String,Object>singletonMap("batch", batch));
+				while (r.hasNext()) r.next();
+				QueryStatistics q = r.getQueryStatistics();
+				tx.success();
+				return q;
+			} catch (TransientFailureException e) {
+				if (attempt >= RETRIES) throw e;
+				logger.info("Retrying after transient failure: {}", e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package uk.co.terminological.literaturegraph;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+
+/**
+ * Records which stages of a build have completed, and the parameters the build was run with, in the 
+ * graph itself so that the record is always consistent with the data. A stage made of independent steps
+ * also records each step, so that it can be resumed part way through.
+ */
+public class BuildCheckpoints {
+
+	private static final Logger logger = LoggerFactory.getLogger(BuildCheckpoints.class);
+	
+	/**
+	 * @return the completion time of each completed stage
+	 */
+	public static Map<String,String> completedStages(GraphDatabaseApi graph) {
+		Map<String,String> out = new HashMap<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.BUILD_STAGE).forEachRemaining(n -> 
+				out.put(n.getProperty(Prop.STAGE).toString(), n.getProperty(Prop.COMPLETED).toString()));
+			tx.success();
+		}
+		return out;
+	}
+	
+	public static void markComplete(String stage, GraphDatabaseApi graph) {
+		try (Transaction tx = graph.get().beginTx()) {
+			Node n = graph.get().findNode(Labels.BUILD_STAGE, Prop.STAGE, stage);
+			if (n == null) {
+				n = graph.get().createNode(Labels.BUILD_STAGE);
+				n.setProperty(Prop.STAGE, stage);
+			}
+			n.setProperty(Prop.COMPLETED, LocalDateTime.now().toString());
+			tx.success();
+		}
+		logger.debug("Checkpoint: {} complete", stage);
+	}
+	
+	/**
+	 * The checkpoint name of a step within a stage, which can be marked complete like a stage.
+	 */
+	public static String step(String stage, String step) {
+		return stage+"/"+step;
+	}
+	
+	/**
+	 * Clears the completed steps of a stage, so that the stage runs all its steps when it is next run.
+	 */
+	public static void clearSteps(String stage, GraphDatabaseApi graph) {
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.BUILD_STAGE).forEachRemaining(n -> {
+				if (n.getProperty(Prop.STAGE).toString().startsWith(step(stage, ""))) n.delete();
+			});
+			tx.success();
+		}
+	}
+	
+	public static void clear(GraphDatabaseApi graph) {
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.BUILD_STAGE).forEachRemaining(n -> n.delete());
+			tx.success();
+		}
+	}
+	
+	public static void saveParameters(Map<String,String> params, GraphDatabaseApi graph) {
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.BUILD_PARAMETERS).forEachRemaining(n -> n.delete());
+			Node n = graph.get().createNode(Labels.BUILD_PARAMETERS);
+			params.forEach((k,v) -> { if (v != null) n.setProperty(k, v); });
+			tx.success();
+		}
+	}
+	
+	public static Optional<Map<String,String>> loadParameters(GraphDatabaseApi graph) {
+		Map<String,String> out = new HashMap<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.BUILD_PARAMETERS).forEachRemaining(n -> 
+				n.getAllProperties().forEach((k,v) -> out.put(k, v.toString())));
+			tx.success();
+		}
+		return out.isEmpty() ? Optional.empty() : Optional.of(out);
+	}
+}
@@ -0,0 +1,220 @@
+package uk.co.terminological.literaturegraph;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.terminological.bibliography.entrez.EntrezEntry;
+import uk.co.terminological.bibliography.entrez.EntrezMeshCode;
+import uk.co.terminological.bibliography.record.Author;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
+
+/**
+ * Loads pubmed entries into a graph that has no articles yet with the neo4j batch inserter, instead of
+ * merging each one in a transaction. Entries are staged in memory as they are fetched, with articles,
+ * keywords, mesh codes, authors and affiliations resolved to the same nodes that
+ * {@link PubMedGraphUtils#mapEntriesToNode} would give them. {@link #write(GraphDatabaseApi)} then shuts
+ * the graph down, writes the staged nodes and relationships directly into the store, and opens the graph
+ * again with the schema indexes and constraints created afterwards.
+ */
+public class BulkLoader {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkLoader.class);
+
+	private List<Map<String,Object>> nodes = new ArrayList<>();
+	private List<Label[]> labels = new ArrayList<>();
+	private List<Object[]> relationships = new ArrayList<>();
+	private Map<String,Integer> index = new HashMap<>();
+	private Set<Long> affiliationLinks = new HashSet<>();
+	private int articles = 0;
+	private int skipped = 0;
+
+	/**
+	 * Stages entries, skipping any whose pmid, doi or pmcid has already been staged, as the unique
+	 * constraints created after the load would fail on them.
+	 */
+	public synchronized void add(Iterable<EntrezEntry> entries, Label... additional) {
+		for (EntrezEntry entry: entries) {
+			String pmid = entry.getPMID().map(p -> IdentifierLocks.key(Prop.PMID, p)).orElse(null);
+			String doi = entry.getDoi().map(d -> IdentifierLocks.key(Prop.DOI, d.toLowerCase())).orElse(null);
+			String pmcid = entry.getPMCID().map(p -> IdentifierLocks.key(Prop.PMCID, p)).orElse(null);
+			if ((pmid == null && doi == null) || index.containsKey(pmid) || index.containsKey(doi) || index.containsKey(pmcid)) {
+				skipped++;
+				continue;
+			}
+			Map<String,Object> props = new HashMap<>();
+			entry.getPMID().ifPresent(p -> props.put(Prop.PMID, p));
+			entry.getDoi().ifPresent(d -> props.put(Prop.DOI, d.toLowerCase()));
+			entry.getPMCID().ifPresent(p -> props.put(Prop.PMCID, p));
+			entry.getPdfUri().ifPresent(url -> props.put(Prop.PDF_URL, url.toString()));
+			entry.getDate().ifPresent(dt -> props.put(Prop.DATE, dt));
+			entry.getAbstract().ifPresent(abs -> props.put(Prop.ABSTRACT, abs));
+			entry.getTitle().ifPresent(title -> props.put(Prop.TITLE, title));
+			entry.getJournal().ifPresent(journal -> props.put(Prop.JOURNAL, journal));
+			props.put(Prop.UPDATED, LocalDate.now());
+			Label[] tmp = Arrays.copyOf(additional, additional.length+1);
+			tmp[additional.length] = Labels.ARTICLE;
+			int article = stage(props, tmp);
+			if (pmid != null) index.put(pmid, article);
+			if (doi != null) index.put(doi, article);
+			if (pmcid != null) index.put(pmcid, article);
+			articles++;
+
+			entry.getKeyWords().forEach(kw -> link(article, term(Labels.KEYWORD, Prop.TERM, kw), Rel.HAS_KEYWORD, null));
+			boolean first = true;
+			for (Author au: entry.getAuthors()) {
+				link(article, author(au), Rel.HAS_AUTHOR, first);
+				first = false;
+			}
+			entry.getMeshHeadings().forEach(mh -> {
+				EntrezMeshCode code = mh.getDescriptor();
+				int mesh = term(Labels.MESH_CODE, Prop.CODE, code.getCode());
+				if (code.getTerm() != null) nodes.get(mesh).put(Prop.TERM, code.getTerm());
+				link(article, mesh, Rel.HAS_MESH, null);
+			});
+		}
+	}
+
+	public synchronized int size() {
+		return articles;
+	}
+
+	private int stage(Map<String,Object> props, Label... nodeLabels) {
+		nodes.add(props);
+		labels.add(nodeLabels);
+		return nodes.size()-1;
+	}
+
+	private void link(int from, int to, RelationshipType type, Boolean firstAuthor) {
+		relationships.add(new Object[] {from, to, type, firstAuthor});
+	}
+
+	private int term(Label label, String key, String value) {
+		return index.computeIfAbsent(label.name()+":"+value, k -> {
+			Map<String,Object> props = new HashMap<>();
+			props.put(key, value);
+			return stage(props, label);
+		});
+	}
+
+	private int affiliation(String name) {
+		return index.computeIfAbsent("aff:"+AuthorIndex.normalise(name), k -> {
+			Map<String,Object> props = new HashMap<>();
+			props.put(Prop.ORGANISATION_NAME, name);
+			return stage(props, Labels.AFFILIATION);
+		});
+	}
+
+	// the same certain matches as the AuthorIndex: the same orcid, or the same full name and an affiliation
+	// in common without conflicting orcids
+	private int author(Author author) {
+		String orcid = author.getORCID().map(AuthorIndex::orcidKey).orElse(null);
+		String name = AuthorIndex.nameKey(author.getLastName(), author.getFirstName().orElse(null));
+		List<String> affs = author.getAffiliations().collect(Collectors.toList());
+
+		Integer node = orcid == null ? null : index.get(orcid);
+		if (node == null && name != null) {
+			for (String af: affs) {
+				node = index.get(name+"\u0000"+AuthorIndex.normalise(af));
+				if (node != null && orcid != null && nodes.get(node).containsKey(Prop.ORCID)
+						&& !orcid.equals(AuthorIndex.orcidKey(nodes.get(node).get(Prop.ORCID).toString()))) node = null;
+				if (node != null) break;
+			}
+		}
+		if (node == null) node = stage(new HashMap<>(), Labels.AUTHOR);
+		Map<String,Object> props = nodes.get(node);
+		if (author.getLabel() != null) props.putIfAbsent(Prop.AUTHOR_LABEL, author.getLabel());
+		if (author.getLastName() != null) props.putIfAbsent(Prop.LAST_NAME, author.getLastName());
+		author.getFirstName().ifPresent(fn -> props.putIfAbsent(Prop.FIRST_NAME, fn));
+		author.getInitials().ifPresent(fn -> props.putIfAbsent(Prop.INITIALS, fn));
+		author.getORCID().ifPresent(fn -> props.putIfAbsent(Prop.ORCID, fn));
+
+		int out = node;
+		for (String af: affs) {
+			int aff = affiliation(af);
+			if (affiliationLinks.add(PairCounts.key(out, aff))) link(out, aff, Rel.HAS_AFFILIATION, null);
+			if (name != null) index.putIfAbsent(name+"\u0000"+AuthorIndex.normalise(af), out);
+		}
+		if (orcid != null) index.putIfAbsent(orcid, out);
+		return out;
+	}
+
+	/**
+	 * Shuts the graph down, writes the staged entries into its store, and opens it again, even if the
+	 * write fails.
+	 * @return the number of articles written
+	 * @throws IOException if the store could not be written, or the schema could not be created on it
+	 */
+	public synchronized int write(GraphDatabaseApi graph) throws IOException {
+		long start = System.currentTimeMillis();
+		// the indexes and constraints are empty, so are dropped and created again once the store is written
+		// rather than being updated by the inserter
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().schema().getConstraints().forEach(ConstraintDefinition::drop);
+			tx.success();
+		}
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().schema().getIndexes().forEach(IndexDefinition::drop);
+			tx.success();
+		}
+		graph.shutdown();
+		try {
+			BatchInserter inserter = BatchInserters.inserter(graph.getPath().toFile());
+			try {
+				long[] ids = new long[nodes.size()];
+				for (int i=0; i<nodes.size(); i++) {
+					ids[i] = inserter.createNode(nodes.get(i), labels.get(i));
+					nodes.set(i, null);
+				}
+				for (Object[] r: relationships) {
+					Map<String,Object> props = r[3] == null ? null : Collections.singletonMap(Prop.FIRST_AUTHOR, r[3]);
+					inserter.createRelationship(ids[(int) r[0]], ids[(int) r[1]], (RelationshipType) r[2], props);
+				}
+			} finally {
+				inserter.shutdown();
+			}
+			logger.info("Bulk loaded {} articles, {} nodes and {} relationships in {} secs, skipped {} duplicate entries",
+					articles, nodes.size(), relationships.size(), (System.currentTimeMillis()-start)/1000, skipped);
+		} finally {
+			graph.restart();
+		}
+		try {
+			PubMedGraphSchema.createSchema(graph);
+		} catch (RuntimeException e) {
+			throw new IOException("Could not create the schema on the bulk loaded graph", e);
+		}
+		// indexes are populated in the background, and the ingest indexes are loaded once they are online
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().schema().awaitIndexesOnline(1, TimeUnit.HOURS);
+			tx.success();
+		}
+		int out = articles;
+		nodes.clear();
+		labels.clear();
+		relationships.clear();
+		index.clear();
+		affiliationLinks.clear();
+		return out;
+	}
+}
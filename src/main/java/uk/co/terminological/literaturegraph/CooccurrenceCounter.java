@@ -0,0 +1,123 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
+
+/**
+ * Builds the CO_OCCUR network between terms such as mesh codes or keywords in the JVM rather than with a
+ * cypher self join. The links from articles to terms are read once, term pairs are counted in
+ * parallel in shards by their first term, and each pair is written in both directions with the same
+ * properties that the cypher build queries gave it: cooccurrences (the number of articles with both
+ * terms), pmi, npmi, probability and total (the sum of the occurrences of all terms). The occurrences
+ * property of each term is the number of articles that link to it. Any existing CO_OCCUR network between
+ * the terms is replaced.
+ */
+public class CooccurrenceCounter {
+
+	private static final Logger logger = LoggerFactory.getLogger(CooccurrenceCounter.class);
+
+	private static final int WRITE_CHUNK_SIZE = 10000;
+
+	/**
+	 * @param termLabel the label of the term nodes
+	 * @param relType the relationship from articles to terms
+	 * @return the number of CO_OCCUR relationships created
+	 */
+	public static long run(Label termLabel, RelationshipType relType, int threads, GraphDatabaseApi graph) {
+		long start = System.currentTimeMillis();
+
+		// term node ids get dense indexes, and each article becomes the sorted set of its term indexes
+		Map<Long,Integer> index = new HashMap<>();
+		List<Long> termIds = new ArrayList<>();
+		List<long[]> occurrences = new ArrayList<>();
+		List<int[]> articles = new ArrayList<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.ARTICLE).forEachRemaining(article -> {
+				int[] terms = new int[8];
+				int size = 0;
+				for (Relationship r: article.getRelationships(Direction.OUTGOING, relType)) {
+					Node term = r.getEndNode();
+					if (!term.hasLabel(termLabel)) continue;
+					Integer i = index.get(term.getId());
+					if (i == null) {
+						i = termIds.size();
+						index.put(term.getId(), i);
+						termIds.add(term.getId());
+						occurrences.add(new long[1]);
+					}
+					occurrences.get(i)[0]++;
+					if (size == terms.length) terms = Arrays.copyOf(terms, size*2);
+					terms[size++] = i;
+				}
+				if (size > 1) articles.add(Arrays.stream(terms, 0, size).distinct().sorted().toArray());
+			});
+			tx.success();
+		}
+
+		// the total counts every term node, including any occurrences property left on terms that no
+		// longer have articles, as the cypher sum did
+		long total = occurrences.stream().mapToLong(o -> o[0]).sum();
+		try (Transaction tx = graph.get().beginTx()) {
+			total += graph.get().findNodes(termLabel).stream()
+				.filter(n -> !index.containsKey(n.getId()))
+				.mapToLong(n -> ((Number) n.getProperty(Prop.OCCURRENCES, 0L)).longValue())
+				.sum();
+			tx.success();
+		}
+
+		List<PairCounts> counts = PairCounts.count(threads, out -> {
+			for (int[] terms: articles) {
+				for (int a=0; a<terms.length; a++) {
+					if (!out.owns(terms[a])) continue;
+					for (int b=a+1; b<terms.length; b++) out.add(PairCounts.key(terms[a], terms[b]), 1);
+				}
+			}
+		});
+		logger.info("{}: {} terms in {} articles, {} co-occurring pairs counted in {} secs", termLabel.name(),
+				termIds.size(), articles.size(), PairCounts.size(counts), (System.currentTimeMillis()-start)/1000);
+
+		PubMedGraphUtils.retry(() -> {
+			try (Transaction tx = graph.get().beginTx()) {
+				PubMedGraphUtils.lockNodes(termIds.stream().mapToLong(Long::longValue).toArray(), graph, tx);
+				for (int i=0; i<termIds.size(); i++) {
+					graph.get().getNodeById(termIds.get(i)).setProperty(Prop.OCCURRENCES, occurrences.get(i)[0]);
+				}
+				tx.success();
+			}
+			return null;
+		});
+
+		RelationshipWriter.deleteFrom(termLabel, Rel.CO_OCCUR, WRITE_CHUNK_SIZE, graph);
+		try (RelationshipWriter writer = new RelationshipWriter(graph, Rel.CO_OCCUR, WRITE_CHUNK_SIZE,
+				Prop.COOCCURRENCES, Prop.PMI, Prop.PROBABILITY, Prop.NPMI, Prop.TOTAL)) {
+			long sum = total;
+			for (PairCounts shard: counts) {
+				shard.forEach((i, j, count) -> {
+					long c = count;
+					double pmi = Math.log(((double) c*sum) / (occurrences.get(i)[0]*occurrences.get(j)[0]));
+					double probability = (double) c/sum;
+					double npmi = - pmi / Math.log(probability);
+					writer.add(termIds.get(i), termIds.get(j), c, pmi, probability, npmi, sum);
+					writer.add(termIds.get(j), termIds.get(i), c, pmi, probability, npmi, sum);
+				});
+			}
+			return writer.written();
+		}
+	}
+}
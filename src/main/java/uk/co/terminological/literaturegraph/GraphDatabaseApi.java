@@ -16,6 +16,8 @@ public class GraphDatabaseApi {
 	
 	private static GraphDatabaseApi singleton;
 	private GraphDatabaseService graphDb;
+	private Path graphDbPath;
+	private Path graphConfPath;
 
 	public static void main(String[] args) {
 		Path f = Paths.get(args[0]);
@@ -25,6 +27,21 @@ public class GraphDatabaseApi {
 
 	public GraphDatabaseApi(Path graphDbPath, Path graphConfPath) {
 
+		this.graphDbPath = graphDbPath;
+		this.graphConfPath = graphConfPath;
+		open();
+		
+		Runtime.getRuntime().addShutdownHook( new Thread()
+		{
+			@Override
+			public void run()
+			{
+				waitAndShutdown();
+			}
+		} );
+	}
+	
+	private void open() {
 		//http://neo4j-contrib.github.io/neo4j-jdbc/
 		logger.info("Opening graphdb in: "+graphDbPath);
 		
@@ -47,17 +64,18 @@ public class GraphDatabaseApi {
 					.newGraphDatabase();
 					
 		}
-		
-		
-		Runtime.getRuntime().addShutdownHook( new Thread()
-		{
-			@Override
-			public void run()
-			{
-				waitAndShutdown();
-			}
-		} );
 	}
+	
+	/**
+	 * Opens the graph again after it has been shutdown, for example so the store can be written by the
+	 * batch inserter. Anything holding nodes or the previous GraphDatabaseService must get them again.
+	 */
+	public void restart() {
+		shutdown();
+		open();
+	}
+	
+	public Path getPath() {return graphDbPath;}
 
 	public void shutdown() {
 		if (graphDb != null && graphDb.isAvailable(1)) {
@@ -0,0 +1,72 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Locks for writing articles by identifier, so that transactions that write different articles run at
+ * the same time, while two transactions that write the same doi, pmid or pmcid are serialised and so
+ * cannot both create it. Identifiers are hashed onto a fixed number of striped locks, enough that a chunk
+ * of a few thousand identifiers rarely shares a stripe with another chunk, and the locks for a set of
+ * identifiers are always taken in stripe order so transactions cannot deadlock on them. The
+ * locks must be taken before the transaction begins and released after it is committed, which closing
+ * a {@link Held} in the same try-with-resources statement as the transaction does.
+ * <br/>
+ * Authors, affiliations, keywords and mesh codes are shared between many articles and are created under
+ * one lock for shared nodes instead, in their own short transaction, which locks the existing shared
+ * nodes it writes to in order of node id as the article transactions do when they link to them.
+ */
+public class IdentifierLocks {
+
+	private static final Striped<Lock> stripes = Striped.lock(65536);
+	private static final Lock shared = new ReentrantLock();
+
+	public static String key(String idType, Object value) {
+		return idType+":"+value;
+	}
+
+	/**
+	 * @param keys identifiers made with {@link #key(String, Object)}
+	 */
+	public static Held lock(Iterable<String> keys) {
+		List<Lock> locks = new ArrayList<>();
+		try {
+			for (Lock l: stripes.bulkGet(keys)) {
+				l.lock();
+				locks.add(l);
+			}
+		} catch (RuntimeException e) {
+			new Held(locks).close();
+			throw e;
+		}
+		return new Held(locks);
+	}
+
+	public static Held lock(String... keys) {
+		return lock(Arrays.asList(keys));
+	}
+
+	/**
+	 * The lock for creating and updating nodes that are shared between articles.
+	 */
+	public static Held lockShared() {
+		shared.lock();
+		return new Held(Collections.singletonList(shared));
+	}
+
+	public static class Held implements AutoCloseable {
+		private List<Lock> locks;
+		private Held(List<Lock> locks) {this.locks = locks;}
+		@Override
+		public void close() {
+			for (int i=locks.size()-1; i>=0; i--) locks.get(i).unlock();
+			locks = Collections.emptyList();
+		}
+	}
+}
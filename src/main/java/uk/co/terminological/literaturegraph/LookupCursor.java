@@ -0,0 +1,123 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Streams the out column of a read only query to the caller a page at a time. The query is run in a read
+ * transaction on a reader thread, which takes no locks, and the results are handed over in pages through
+ * a queue of two pages, so the caller can start on the first results while the rest are read and only a
+ * few pages are held in memory at once. A stream that is not read to the end must be closed, which stops
+ * the reader and ends its transaction.
+ */
+public class LookupCursor<T> implements Iterator<T>, AutoCloseable {
+
+	public static final int DEFAULT_PAGE_SIZE = 10000;
+
+	private static final ExecutorService readers = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("lookup-%d").setDaemon(true).build());
+
+	private final List<T> end = new ArrayList<>(0);
+	private BlockingQueue<List<T>> pages = new ArrayBlockingQueue<>(2);
+	private Iterator<T> current = Collections.emptyIterator();
+	private Future<?> reader;
+	private volatile boolean closed = false;
+	private volatile Throwable failure;
+	private boolean done = false;
+
+	public static <T> Stream<T> stream(String query, Map<String,Object> params, GraphDatabaseApi graph) {
+		LookupCursor<T> cursor = new LookupCursor<>(query, params, DEFAULT_PAGE_SIZE, graph);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(cursor::close);
+	}
+
+	public LookupCursor(String query, Map<String,Object> params, int pageSize, GraphDatabaseApi graph) {
+		reader = readers.submit(() -> read(query, params, pageSize, graph));
+	}
+
+	private void read(String query, Map<String,Object> params, int pageSize, GraphDatabaseApi graph) {
+		try (Transaction tx = graph.get().beginTx()) {
+			ResourceIterator<T> it = graph.get().execute(query, params).columnAs("out");
+			List<T> page = new ArrayList<>(pageSize);
+			while (!closed && it.hasNext()) {
+				T next = it.next();
+				if (next == null) continue;
+				page.add(next);
+				if (page.size() == pageSize) {
+					pages.put(page);
+					page = new ArrayList<>(pageSize);
+				}
+			}
+			it.close();
+			if (!page.isEmpty() && !closed) pages.put(page);
+			tx.success();
+		} catch (InterruptedException e) {
+			// stopped by close()
+		} catch (Throwable e) {
+			// anything the reader fails with, including errors, is rethrown to the caller
+			failure = e;
+		} finally {
+			try {
+				if (!closed) pages.put(end);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!current.hasNext()) {
+			if (done) return false;
+			try {
+				List<T> page = pages.take();
+				if (page == end) {
+					done = true;
+					if (failure != null) {
+						Throwables.throwIfUnchecked(failure);
+						throw new RuntimeException(failure);
+					}
+					return false;
+				}
+				current = page.iterator();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new RuntimeException(e);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		return current.next();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		done = true;
+		reader.cancel(true);
+	}
+}
@@ -0,0 +1,134 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects node and relationship merges and writes them with one UNWIND statement for each combination
+ * of labels, keys and relationship type, instead of one cypher statement per node or relationship. The
+ * statements only depend on the labels and keys, so their plans are cached, and the values are passed as
+ * a list of rows. Nodes are always written before relationships so a relationship can be merged between
+ * nodes that are merged in the same batch. Like a cypher MATCH, a relationship between nodes that do not
+ * exist is skipped.
+ * <br/>
+ * Must be used inside a transaction that holds the {@link IdentifierLocks} of the nodes it merges, and
+ * flushed before it is committed.
+ */
+public class MergeBatch {
+
+	private static final Logger logger = LoggerFactory.getLogger(MergeBatch.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private GraphDatabaseService db;
+	private int batchSize;
+	private Map<String,List<Map<String,Object>>> nodes = new LinkedHashMap<>();
+	private Map<String,List<Map<String,Object>>> relationships = new LinkedHashMap<>();
+	private List<Relationship> merged = new ArrayList<>();
+	private int pending = 0;
+
+	public MergeBatch(GraphDatabaseService db) {
+		this(db, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param batchSize the number of pending merges after which the batch is written automatically
+	 */
+	public MergeBatch(GraphDatabaseService db, int batchSize) {
+		this.db = db;
+		this.batchSize = batchSize;
+	}
+
+	public MergeBatch node(Label label, String key, Object value, Label onCreate) {
+		return node(label, key, value, onCreate, Collections.emptyMap());
+	}
+
+	/**
+	 * Merges the node with the given label and key, giving it the onCreate label if it is new, and
+	 * setting the properties and labels whether it is new or not.
+	 */
+	public MergeBatch node(Label label, String key, Object value, Label onCreate, Map<String,Object> properties, Label... labels) {
+		String query = "UNWIND $rows AS row MERGE (n:"+label.name()+" {"+key+": row.value})"+
+				(onCreate != null ? " ON CREATE SET n:"+onCreate.name() : "")+
+				" SET n += row.props"+
+				(labels.length > 0 ? ", n"+Arrays.stream(labels).map(l -> ":"+l.name()).collect(Collectors.joining()) : "");
+		return add(nodes, query, nodeRow(value, properties));
+	}
+
+	/**
+	 * Merges the node with the given label and key, setting the properties and removing the labels whether
+	 * it is new or not, such as the stub labels of an article whose metadata has been found.
+	 */
+	public MergeBatch nodeWithout(Label label, String key, Object value, Map<String,Object> properties, Label... removed) {
+		String query = "UNWIND $rows AS row MERGE (n:"+label.name()+" {"+key+": row.value})"+
+				" SET n += row.props"+
+				(removed.length > 0 ? " REMOVE n"+Arrays.stream(removed).map(l -> ":"+l.name()).collect(Collectors.joining()) : "");
+		return add(nodes, query, nodeRow(value, properties));
+	}
+
+	private static Map<String,Object> nodeRow(Object value, Map<String,Object> properties) {
+		Map<String,Object> row = new HashMap<>();
+		row.put("value", value);
+		row.put("props", properties);
+		return row;
+	}
+
+	/**
+	 * Merges a relationship between the nodes with the given keys, setting its properties.
+	 */
+	public MergeBatch relationship(Label srcLabel, String srcKey, Object srcValue, RelationshipType type, Label targetLabel, String targetKey, Object targetValue, Map<String,Object> properties) {
+		String query = "UNWIND $rows AS row "+
+				"MATCH (n:"+srcLabel.name()+" {"+srcKey+": row.src}), (m:"+targetLabel.name()+" {"+targetKey+": row.target}) "+
+				"MERGE (n)-[r:"+type.name()+"]->(m) SET r += row.props RETURN r";
+		Map<String,Object> row = new HashMap<>();
+		row.put("src", srcValue);
+		row.put("target", targetValue);
+		row.put("props", properties);
+		return add(relationships, query, row);
+	}
+
+	private MergeBatch add(Map<String,List<Map<String,Object>>> pendingByQuery, String query, Map<String,Object> row) {
+		pendingByQuery.computeIfAbsent(query, q -> new ArrayList<>()).add(row);
+		pending++;
+		if (pending >= batchSize) write();
+		return this;
+	}
+
+	private void write() {
+		int statements = nodes.size()+relationships.size();
+		nodes.forEach((query, rows) -> db.execute(query, Collections.singletonMap("rows", rows)).close());
+		relationships.forEach((query, rows) -> {
+			ResourceIterator<Relationship> it = db.execute(query, Collections.singletonMap("rows", rows)).columnAs("r");
+			it.forEachRemaining(merged::add);
+		});
+		logger.debug("Merged {} nodes and relationships with {} statements", pending, statements);
+		nodes.clear();
+		relationships.clear();
+		pending = 0;
+	}
+
+	/**
+	 * Writes the pending merges.
+	 * @return the relationships merged since the last flush
+	 */
+	public List<Relationship> flush() {
+		write();
+		List<Relationship> out = merged;
+		merged = new ArrayList<>();
+		return out;
+	}
+}
@@ -0,0 +1,145 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * An open addressing map from a pair of dense node indexes, packed into a long, to a count. Used to count
+ * co-occurrences and projections without boxing a key for every pair. A map can be one shard of the
+ * pairs, holding only the pairs whose first index belongs to it and ignoring the rest.
+ */
+class PairCounts {
+
+	static final long EMPTY = -1;
+
+	long[] keys = new long[1024];
+	int[] counts = new int[1024];
+	int size = 0;
+	private int shard;
+	private int shards;
+
+	/**
+	 * Counts all the pairs, such as the terms of every article, into the given map, which keeps the ones
+	 * in its shard.
+	 */
+	interface Partition {
+		void count(PairCounts out);
+	}
+
+	interface PairConsumer {
+		void accept(int first, int second, int count);
+	}
+
+	PairCounts() {
+		this(0, 1);
+	}
+
+	PairCounts(int shard, int shards) {
+		this.shard = shard;
+		this.shards = shards;
+		Arrays.fill(keys, EMPTY);
+	}
+
+	static long key(int i, int j) {
+		return ((long) i << 32) | j;
+	}
+
+	static int first(long key) {
+		return (int) (key >>> 32);
+	}
+
+	static int second(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Whether pairs with this first index belong to this shard, so that callers can skip the others early.
+	 */
+	boolean owns(int first) {
+		return first % shards == shard;
+	}
+
+	void add(long key, int count) {
+		if (!owns(first(key))) return;
+		if (size*2 >= keys.length) grow();
+		int mask = keys.length-1;
+		long h = key * 0x9E3779B97F4A7C15L;
+		int k = (int) (h ^ (h >>> 32)) & mask;
+		while (keys[k] != EMPTY && keys[k] != key) k = (k+1) & mask;
+		if (keys[k] == EMPTY) {
+			keys[k] = key;
+			size++;
+		}
+		counts[k] += count;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new long[oldKeys.length*2];
+		counts = new int[oldKeys.length*2];
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		for (int k=0; k<oldKeys.length; k++) {
+			if (oldKeys[k] != EMPTY) add(oldKeys[k], oldCounts[k]);
+		}
+	}
+
+	void forEach(PairConsumer consumer) {
+		for (int k=0; k<keys.length; k++) {
+			if (keys[k] != EMPTY) consumer.accept(first(keys[k]), second(keys[k]), counts[k]);
+		}
+	}
+
+	static long size(List<PairCounts> shards) {
+		return shards.stream().mapToLong(s -> s.size).sum();
+	}
+
+	/**
+	 * Counts the pairs in one shard per thread, sharded by the first index of the pair. Each thread goes
+	 * through all the items but only keeps its own pairs, so the shards do not overlap and together hold
+	 * each pair once, and no more memory is needed than for a single map of all the pairs.
+	 * <br/>
+	 * The price is CPU: reading the items is repeated by every thread, so it costs the number of threads
+	 * times one pass, and no thread finishes faster than a single pass over all the items. What is split
+	 * between the threads is the hashing of the pairs, which grows with the square of the size of each
+	 * item and is most of the work for articles with many terms or authors. Partitions should check
+	 * {@link #owns(int)} on a first index before going through its second indexes, so that a thread only
+	 * does work proportional to the size of the items whose pairs it does not keep. Where reading the items
+	 * is the larger cost, fewer threads are faster.
+	 * @return the shards, which between them hold every pair
+	 */
+	static List<PairCounts> count(int threads, Partition partition) {
+		int shards = Math.max(1, threads);
+		ExecutorService pool = Executors.newFixedThreadPool(shards,
+				new ThreadFactoryBuilder().setNameFormat("pair-count-%d").setDaemon(true).build());
+		try {
+			List<Future<PairCounts>> parts = new ArrayList<>();
+			for (int s=0; s<shards; s++) {
+				int shard = s;
+				parts.add(pool.submit(() -> {
+					PairCounts out = new PairCounts(shard, shards);
+					partition.count(out);
+					return out;
+				}));
+			}
+			List<PairCounts> out = new ArrayList<>();
+			for (Future<PairCounts> f: parts) out.add(f.get());
+			return out;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
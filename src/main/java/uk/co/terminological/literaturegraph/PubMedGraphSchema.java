@@ -25,6 +25,8 @@ public class PubMedGraphSchema {
 		public static final Label SEARCH_RESULT = Label.label("SearchResult");
 		public static final Label PDF_AVAILABLE = Label.label("PdfAvailable");
 		public static final Label KEYWORD = Label.label("Keyword");
+		public static final Label BUILD_STAGE = Label.label("BuildStage");
+		public static final Label BUILD_PARAMETERS = Label.label("BuildParameters");
 	}
 	
 	public enum Rel implements RelationshipType {
@@ -38,7 +40,9 @@ public class PubMedGraphSchema {
 	    HAS_AFFILIATION, 
 	    SIMILAR_TO,
 	    SAME_AS,
-	    CO_AUTHOR
+	    CO_AUTHOR,
+	    CO_OCCUR,
+	    CITES
 	}
 	
 	public static class Prop {
@@ -73,28 +77,45 @@ public class PubMedGraphSchema {
 		public static final String PAGE = "page";
 		public static final String FULL_NAME = "fullName";
 		public static final String FIRST_AUTHOR = "isFirstAuthor";
+		public static final String STAGE = "stage";
+		public static final String COMPLETED = "completed";
+		public static final String UPDATED = "updated";
+		public static final String OCCURRENCES = "occurrences";
+		public static final String COOCCURRENCES = "cooccurrences";
+		public static final String PMI = "pmi";
+		public static final String NPMI = "npmi";
+		public static final String PROBABILITY = "probability";
+		public static final String TOTAL = "total";
+		public static final String WEIGHT = "weight";
+		public static final String CITED_BY_UPDATED = "citedByUpdated";
+		public static final String LINKS_PENDING = "linksPending";
 	}
 	
 	public static void setupSchema(GraphDatabaseApi graph) {
-		
+		try {
+			createSchema(graph);
+		} catch (Exception e) {
+			logger.warn(e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates the indexes and constraints in one transaction, failing if any of them cannot be created.
+	 * A uniqueness constraint comes with its own index, so the constrained properties are not indexed
+	 * separately.
+	 */
+	public static void createSchema(GraphDatabaseApi graph) {
 		try ( Transaction tx = graph.get().beginTx() )
 		{
 		    Schema schema = graph.get().schema();
-		    schema.indexFor( Labels.ARTICLE ).on( Prop.PMID ).create();
-		    schema.indexFor( Labels.ARTICLE ).on( Prop.DOI ).create();
-		    schema.indexFor( Labels.ARTICLE ).on( Prop.PMCID ).create();
-		    schema.constraintFor( Labels.ARTICLE ).assertPropertyIsUnique( Prop.PMID );
-		    schema.constraintFor( Labels.ARTICLE ).assertPropertyIsUnique( Prop.DOI );
-		    schema.constraintFor( Labels.ARTICLE ).assertPropertyIsUnique( Prop.PMCID );
-		    schema.indexFor( Labels.KEYWORD ).on( Prop.TERM ).create();
-		    schema.constraintFor( Labels.KEYWORD ).assertPropertyIsUnique( Prop.TERM );
+		    schema.constraintFor( Labels.ARTICLE ).assertPropertyIsUnique( Prop.PMID ).create();
+		    schema.constraintFor( Labels.ARTICLE ).assertPropertyIsUnique( Prop.DOI ).create();
+		    schema.constraintFor( Labels.ARTICLE ).assertPropertyIsUnique( Prop.PMCID ).create();
+		    schema.constraintFor( Labels.KEYWORD ).assertPropertyIsUnique( Prop.TERM ).create();
 		    schema.indexFor( Labels.AUTHOR ).on( Prop.AUTHOR_LABEL ).create();
 		    schema.indexFor( Labels.AUTHOR ).on( Prop.LAST_NAME ).create();
-		    schema.indexFor( Labels.MESH_CODE ).on( Prop.MESH_CODE ).create();
-		    schema.constraintFor( Labels.MESH_CODE ).assertPropertyIsUnique( Prop.MESH_CODE );
+		    schema.constraintFor( Labels.MESH_CODE ).assertPropertyIsUnique( Prop.MESH_CODE ).create();
 		    tx.success();
-		} catch (Exception e) {
-			logger.warn(e.getMessage());
 		}
 	}
 	
@@ -15,63 +15,132 @@ import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.neo4j.graphdb.Direction;
-import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
-import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransientFailureException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class PubMedGraphUtils {
 
-	private static Node lockNode;
+	private static AuthorIndex authorIndex;
+	private static Map<String,TermIndex> termIndexes = new HashMap<>();
 	private static final Logger logger = LoggerFactory.getLogger(PubMedGraphUtils.class);
 
-	public static Node doMerge(Label label, String indexName, String indexValue, GraphDatabaseService graphDb) {
-		return doMerge(label,indexName,indexValue,graphDb, null);
-	}
-	public static Node doMerge(Label label, String indexName, String indexValue, GraphDatabaseService graphDb, Label label2) {
-		String queryString = "MERGE (n:"+label.name()+" {"+indexName+": $"+indexName+"})"+
-				(label2!=null ? " ON CREATE SET n:"+label2.name():"")+" RETURN n";
-		Map<String, Object> parameters = new HashMap<>();
-		parameters.put( indexName, indexValue );
-		ResourceIterator<Node> resultIterator = graphDb.execute( queryString, parameters ).columnAs( "n" );
-		Node result = resultIterator.next();
-		return result;	
-	}
-	
-	public static Relationship doMerge(Label srcLabel, String srcIndexName, String srcIndexValue,RelationshipType relType, Label targetLabel, String targetIndexName, String targetIndexValue, GraphDatabaseService graphDb) {
-		String queryString = 
-				"MATCH "+
-						"(n:"+srcLabel.name()+" {"+srcIndexName+": $src_"+srcIndexName+"}), "+
-						"(m:"+targetLabel.name()+" {"+targetIndexName+": $target_"+targetIndexName+"}) "+
-				"MERGE "+
-						"(n)-[r:"+relType.name()+"]->(m) "+
-				"RETURN r";
-		Map<String, Object> parameters = new HashMap<>();
-		parameters.put( "src_"+srcIndexName, srcIndexValue );
-		parameters.put( "target_"+targetIndexName, targetIndexValue );
-		ResourceIterator<Relationship> resultIterator = graphDb.execute( queryString, parameters ).columnAs( "r" );
-		Relationship result = resultIterator.next();
-		return result;	
+	private static final int RETRIES = 3;
+	// removed from an article once its metadata has been found
+	private static final Label[] STUB_LABELS = {Labels.DOI_STUB, Labels.PMID_STUB, Labels.PMCENTRAL_STUB};
+	private static int maxOperationsPerCommit = 10000;
+	private static long maxBytesPerCommit = 32*1024*1024;
+
+	/**
+	 * Sets the limits on the size of the transactions the ingest helpers commit. Larger writes are split
+	 * into several transactions.
+	 * @param maxOperations the estimated number of nodes, relationships and properties written
+	 * @param maxBytes the estimated size of the transaction state on the heap
+	 */
+	public static void setCommitLimits(int maxOperations, long maxBytes) {
+		maxOperationsPerCommit = maxOperations;
+		maxBytesPerCommit = maxBytes;
+	}
+
+	/**
+	 * Splits items into chunks that are each written in their own transaction, so that no transaction 
+	 * goes over the commit limits given the estimated writes of each item. An item that is bigger than
+	 * the limits on its own is a chunk on its own.
+	 */
+	public static <X> List<List<X>> chunks(Collection<X> items, ToIntFunction<X> operations, ToLongFunction<X> bytes) {
+		List<List<X>> out = new ArrayList<>();
+		List<X> chunk = new ArrayList<>();
+		long ops = 0;
+		long size = 0;
+		for (X item: items) {
+			int o = operations.applyAsInt(item);
+			long b = bytes.applyAsLong(item);
+			if (!chunk.isEmpty() && (ops+o > maxOperationsPerCommit || size+b > maxBytesPerCommit)) {
+				out.add(chunk);
+				chunk = new ArrayList<>();
+				ops = 0;
+				size = 0;
+			}
+			chunk.add(item);
+			ops += o;
+			size += b;
+		}
+		if (!chunk.isEmpty()) out.add(chunk);
+		return out;
+	}
+
+	// rough estimates of the writes for a node or relationship with a few short properties
+	private static final int OPERATIONS_PER_ITEM = 4;
+	private static final long BYTES_PER_ITEM = 512;
+
+	private static <X> List<List<X>> chunks(Collection<X> items) {
+		return chunks(items, x -> OPERATIONS_PER_ITEM, x -> BYTES_PER_ITEM);
+	}
+
+	// the links of one article are written in one transaction unless they go over the commit limits on
+	// their own. Then the article is flagged by the first of its transactions and the flag is cleared by
+	// the last, so that a build interrupted part way through looks up its links again
+	private static Boolean linksPending(int chunk, int chunks) {
+		if (chunk == chunks-1) return false;
+		return chunk == 0 ? true : null;
+	}
+
+	private static void setLinksPending(String idType, Collection<String> ids, Boolean pending, GraphDatabaseApi graph) {
+		if (pending == null) return;
+		ids.forEach(id -> {
+			Node node = graph.get().findNode(Labels.ARTICLE, idType, id);
+			if (node == null) return;
+			if (pending) node.setProperty(Prop.LINKS_PENDING, true);
+			else node.removeProperty(Prop.LINKS_PENDING);
+		});
+	}
+
+	private static int operations(EntrezEntry entry) {
+		int authors = entry.getAuthors().size();
+		return 12 + 2*entry.getKeyWords().size() + 2*entry.getMeshHeadings().size() + 8*authors;
+	}
+
+	/**
+	 * A rough estimate of the memory an entry takes, based on the size of its text fields and the number of
+	 * nodes it links to. It sizes both the write transactions and the batches of entries fetched from entrez.
+	 */
+	public static long estimateBytes(EntrezEntry entry) {
+		return 1024 
+				+ 2*entry.getTitle().map(String::length).orElse(0)
+				+ 2*entry.getAbstract().map(String::length).orElse(0)
+				+ BYTES_PER_ITEM*(entry.getKeyWords().size() + entry.getMeshHeadings().size() + 2*entry.getAuthors().size());
 	}
 
 	public static void addLabelsByIds(Label existingLabel, String indexProp, Set<?> values, Label newLabel, GraphDatabaseApi graph) {
-		try ( Transaction tx = graph.get().beginTx() ) {
-			tx.acquireWriteLock(getLockNode());
+		chunks(values).forEach(chunk -> addLabelsByIdChunk(existingLabel, indexProp, chunk, newLabel, graph));
+	}
+	
+	private static void addLabelsByIdChunk(Label existingLabel, String indexProp, List<?> values, Label newLabel, GraphDatabaseApi graph) {
+		try ( 
+				IdentifierLocks.Held held = IdentifierLocks.lock(keys(indexProp, values));
+				Transaction tx = graph.get().beginTx() ) {
 			values.forEach(v -> {
 				Node tmp = graph.get().findNode(existingLabel, indexProp, v);
 				if (tmp != null) {	
@@ -84,6 +153,25 @@ public class PubMedGraphUtils {
 		}
 	}
 	
+	/**
+	 * Creates pubmed stubs for articles that are known about but whose metadata could not be fetched,
+	 * so that the labels are in place when the metadata is fetched later.
+	 */
+	public static void mapPmidStubs(Collection<String> pmids, GraphDatabaseApi graph, Label... labels) {
+		chunks(pmids).forEach(chunk -> mapPmidStubChunk(chunk, graph, labels));
+	}
+	
+	private static void mapPmidStubChunk(List<String> pmids, GraphDatabaseApi graph, Label... labels) {
+		try ( 
+				IdentifierLocks.Held held = IdentifierLocks.lock(keys(Prop.PMID, pmids));
+				Transaction tx = graph.get().beginTx() ) {
+			MergeBatch batch = new MergeBatch(graph.get());
+			pmids.forEach(pmid -> batch.node(Labels.ARTICLE, Prop.PMID, pmid, Labels.PMID_STUB, Collections.emptyMap(), labels));
+			batch.flush();
+			tx.success();
+		}
+	}
+	
 	private static Node mergeNodes(Node tmp1, Node tmp2, Transaction tx) {
 		tmp2.getAllProperties().forEach((k,v) -> tmp1.setProperty(k, v));
 		tmp2.getRelationships(Direction.INCOMING).forEach(r -> {
@@ -105,13 +193,87 @@ public class PubMedGraphUtils {
 	
 	
 	public static List<Node> mapEntriesToNode(Stream<EntrezEntry> entries, GraphDatabaseApi graph, LocalDate earliest, LocalDate latest, Label... additional) {
-
 		List<Node> out = new ArrayList<>();
+		chunks(entries.collect(Collectors.toList()), PubMedGraphUtils::operations, PubMedGraphUtils::estimateBytes)
+			.forEach(chunk -> out.addAll(mapEntryChunk(chunk, graph, additional)));
+		return out;
+	}
+	
+	private static List<Node> mapEntryChunk(List<EntrezEntry> list, GraphDatabaseApi graph, Label... additional) {
+		// authors, keywords and mesh codes are shared between articles so are found or created first, in
+		// their own transaction under the shared lock
+		Map<EntrezEntry,List<Link>> links = retry(() -> mapSharedNodes(list, graph));
+		return retry(() -> mapArticles(list, links, graph, additional));
+	}
+
+	private static Map<EntrezEntry,List<Link>> mapSharedNodes(List<EntrezEntry> list, GraphDatabaseApi graph) {
+		Map<EntrezEntry,List<Link>> links = new HashMap<>();
+		try ( 
+				IdentifierLocks.Held held = IdentifierLocks.lockShared();
+				Transaction tx = graph.get().beginTx() ) {
+			lockExistingSharedNodes(list, graph, tx);
+			list.forEach(entry -> {
+				List<Link> tmp = new ArrayList<>();
+				entry.getKeyWords().forEach(kw -> 
+					tmp.add(new Link(getTermIndex(Labels.KEYWORD, Prop.TERM, graph).get(kw).getId(), Rel.HAS_KEYWORD, null)));
+				boolean first = true;
+				for (Author au:entry.getAuthors()) {
+					Optional<Node> targetNode = mapAuthorToNode(au,graph, tx);
+					if (targetNode.isPresent()) tmp.add(new Link(targetNode.get().getId(), Rel.HAS_AUTHOR, first));
+					first = false;
+				}
+				entry.getMeshHeadings().forEach(mh -> 
+					mapMeshCodeToNode(mh.getDescriptor(),graph, tx).ifPresent(target -> tmp.add(new Link(target.getId(), Rel.HAS_MESH, null))));
+				links.put(entry, tmp);
+			});
+			tx.success();
+		}
+		return links;
+	}
+
+	// the existing shared nodes that the chunk writes to are locked in order of node id before any of them
+	// is written, which is the order the article transactions lock them in when linking to them, so that
+	// the two cannot deadlock
+	private static void lockExistingSharedNodes(List<EntrezEntry> list, GraphDatabaseApi graph, Transaction tx) {
+		Map<Long,Node> nodes = new TreeMap<>();
+		AuthorIndex authors = getAuthorIndex(graph);
+		TermIndex meshCodes = getTermIndex(Labels.MESH_CODE, Prop.CODE, graph);
+		list.forEach(entry -> {
+			for (Author au:entry.getAuthors()) {
+				authors.existing(au).forEach(n -> nodes.put(n.getId(), n));
+			}
+			entry.getMeshHeadings().forEach(mh -> {
+				Node n = meshCodes.find(mh.getDescriptor().getCode());
+				if (n != null) nodes.put(n.getId(), n);
+			});
+		});
+		nodes.values().forEach(tx::acquireWriteLock);
+	}
 
-		try ( Transaction tx = graph.get().beginTx() ) {
-			tx.acquireWriteLock(getLockNode());
+	/**
+	 * Locks the nodes with the given ids in order of node id. Writes that span many nodes, such as the
+	 * relationship writers, lock all the nodes they write this way before writing any of them, so that
+	 * two of them cannot deadlock however their nodes overlap.
+	 */
+	static void lockNodes(long[] ids, GraphDatabaseApi graph, Transaction tx) {
+		for (long id: Arrays.stream(ids).sorted().distinct().toArray()) {
+			tx.acquireWriteLock(graph.get().getNodeById(id));
+		}
+	}
+
+	private static List<Node> mapArticles(List<EntrezEntry> list, Map<EntrezEntry,List<Link>> links, GraphDatabaseApi graph, Label... additional) {
+		List<Node> out = new ArrayList<>();
+		Set<String> ids = new HashSet<>();
+		list.forEach(entry -> {
+			entry.getPMID().ifPresent(pmid -> ids.add(IdentifierLocks.key(Prop.PMID, pmid)));
+			entry.getDoi().ifPresent(doi -> ids.add(IdentifierLocks.key(Prop.DOI, doi.toLowerCase())));
+			entry.getPMCID().ifPresent(pmcid -> ids.add(IdentifierLocks.key(Prop.PMCID, pmcid)));
+		});
+		try ( 
+				IdentifierLocks.Held held = IdentifierLocks.lock(ids);
+				Transaction tx = graph.get().beginTx() ) {
 			
-			entries.forEach(entry -> {
+			list.forEach(entry -> {
 				Node tmp = null;
 				Node tmp1 = entry.getPMID().isPresent() ? graph.get().findNode(Labels.ARTICLE, Prop.PMID, entry.getPMID().get()) : null;
 				Node tmp2 = entry.getDoi().isPresent() ? graph.get().findNode(Labels.ARTICLE, Prop.DOI, entry.getDoi().get().toLowerCase()) : null;
@@ -166,62 +328,101 @@ public class PubMedGraphUtils {
 				entry.getAbstract().ifPresent(abs -> node.setProperty(Prop.ABSTRACT, abs));
 				entry.getTitle().ifPresent(title -> node.setProperty(Prop.TITLE, title));
 				entry.getJournal().ifPresent(journal -> node.setProperty(Prop.JOURNAL, journal));
+				node.setProperty(Prop.UPDATED, LocalDate.now());
 				node.removeLabel(Labels.DOI_STUB);
 				node.removeLabel(Labels.PMID_STUB);
 				node.removeLabel(Labels.PMCENTRAL_STUB);
 				
 				Arrays.asList(additional).forEach(l -> node.addLabel(l));
 					
-				entry.getKeyWords().forEach(kw -> {
-					Node target = doMerge(Labels.KEYWORD, Prop.TERM, kw, graph.get());
-					node.createRelationshipTo(target, Rel.HAS_KEYWORD);
-				});
-				boolean first = true;
-				for (Author au:entry.getAuthors()) {
-					Optional<Node> targetNode = mapAuthorToNode(au,graph, tx);
-					if (targetNode.isPresent()) {
-						Relationship r = node.createRelationshipTo(targetNode.get(), Rel.HAS_AUTHOR);
-						if (first) {
-							r.setProperty(Prop.FIRST_AUTHOR, true);
-							
-						} else {
-							r.setProperty(Prop.FIRST_AUTHOR, false);
-						}
-					}
-					first = false;
-				}
-				entry.getMeshHeadings().forEach(mh -> {
-					Optional<Node> targetNode = mapMeshCodeToNode(mh.getDescriptor(),graph, tx);
-					targetNode.ifPresent(target -> node.createRelationshipTo(target, Rel.HAS_MESH));
-				});
+				links.get(entry).forEach(l -> l.from = node);
 				out.add(node);
 			});
+			createLinks(links.values().stream().flatMap(List::stream), graph);
 			tx.success();
 		}
+		return out;
+	}
 
+	/**
+	 * Runs a write in its own transaction again if it fails with a transient error such as a deadlock,
+	 * up to {@link #RETRIES} times in all.
+	 */
+	static <X> X retry(Supplier<X> write) {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return write.get();
+			} catch (TransientFailureException e) {
+				if (attempt >= RETRIES) throw e;
+				logger.info("Retrying after transient failure: {}", e.getMessage());
+			}
+		}
+	}
 
-		return out;
+	// a relationship from an article to a shared node
+	private static class Link {
+		Node from;
+		long to;
+		RelationshipType type;
+		Boolean firstAuthor;
+		Link(long to, RelationshipType type, Boolean firstAuthor) {
+			this.to = to;
+			this.type = type;
+			this.firstAuthor = firstAuthor;
+		}
+	}
 
+	// links are created in order of the shared node, so that transactions linking the same shared nodes
+	// lock them in the same order and cannot deadlock. Links an article already has are not created again.
+	private static void createLinks(Stream<Link> links, GraphDatabaseApi graph) {
+		Map<Node,Set<String>> existing = new HashMap<>();
+		links.sorted((a,b) -> Long.compare(a.to, b.to)).forEach(l -> {
+			Set<String> has = existing.computeIfAbsent(l.from, n -> {
+				Set<String> tmp = new HashSet<>();
+				n.getRelationships(Direction.OUTGOING).forEach(r -> tmp.add(r.getType().name()+":"+r.getEndNode().getId()));
+				return tmp;
+			});
+			if (!has.add(l.type.name()+":"+l.to)) return;
+			Relationship r = l.from.createRelationshipTo(graph.get().getNodeById(l.to), l.type);
+			if (l.firstAuthor != null) r.setProperty(Prop.FIRST_AUTHOR, l.firstAuthor);
+		});
 	}
 
+	/**
+	 * Finds or creates the node for an author on an article, reusing an existing author and their
+	 * affiliations where they are certainly the same. Must be called in a transaction holding the shared lock
+	 * from {@link IdentifierLocks#lockShared()}.
+	 */
 	public static Optional<Node> mapAuthorToNode(uk.co.terminological.bibliography.record.Author author, GraphDatabaseApi graph, Transaction tx) {
-		Node out = null;
+		return Optional.of(getAuthorIndex(graph).author(author));
+	}
 
-			Node node = graph.get().createNode(Labels.AUTHOR);// doMerge(AUTHOR, "identifier", identifier, graph.get());
-			node.setProperty(Prop.AUTHOR_LABEL, author.getLabel());
-			node.setProperty(Prop.LAST_NAME, author.getLastName());
-			author.getFirstName().ifPresent(fn -> node.setProperty(Prop.FIRST_NAME, fn));
-			author.getInitials().ifPresent(fn -> node.setProperty(Prop.INITIALS, fn));
-			author.getORCID().ifPresent(fn -> node.setProperty(Prop.ORCID, fn));
-			author.getAffiliations().forEach(af -> {
-				Node node2 = graph.get().createNode(Labels.AFFILIATION);
-				node2.setProperty(Prop.ORGANISATION_NAME, af);
-				node.createRelationshipTo(node2, Rel.HAS_AFFILIATION);
-			});
-			out = node;
+	/**
+	 * The index of authors and affiliations used at ingest, loaded from the graph on first use.
+	 */
+	public static synchronized AuthorIndex getAuthorIndex(GraphDatabaseApi graph) {
+		if (authorIndex == null || !authorIndex.isFor(graph.get())) authorIndex = new AuthorIndex(graph.get());
+		return authorIndex;
+	}
 
-		return Optional.ofNullable(out);
+	/**
+	 * The index from the unique key of a keyword or mesh code to its node, loaded from the graph on first use.
+	 */
+	public static synchronized TermIndex getTermIndex(Label label, String key, GraphDatabaseApi graph) {
+		TermIndex index = termIndexes.get(label.name());
+		if (index == null || !index.isFor(graph.get())) {
+			index = new TermIndex(graph.get(), label, key);
+			termIndexes.put(label.name(), index);
+		}
+		return index;
+	}
 
+	/**
+	 * Logs how many nodes the ingest indexes have reused and created so far.
+	 */
+	public static synchronized void logIngestIndexes() {
+		if (authorIndex != null) authorIndex.logStatistics();
+		termIndexes.values().forEach(TermIndex::logStatistics);
 	}
 	
 	
@@ -229,9 +430,8 @@ public class PubMedGraphUtils {
 	public static Optional<Node> mapMeshCodeToNode(EntrezMeshCode meshCode, GraphDatabaseApi graph, Transaction tx) {
 		Node out = null;
 
-			Node tmp = doMerge(Labels.MESH_CODE, Prop.CODE, meshCode.getCode(), graph.get());
-			tmp.setProperty(Prop.CODE, meshCode.getCode());
-			tmp.setProperty(Prop.TERM, meshCode.getTerm());
+			Node tmp = getTermIndex(Labels.MESH_CODE, Prop.CODE, graph).get(meshCode.getCode());
+			if (meshCode.getTerm() != null && !meshCode.getTerm().equals(tmp.getProperty(Prop.TERM, null))) tmp.setProperty(Prop.TERM, meshCode.getTerm());
 			out = tmp;
 
 		return Optional.ofNullable(out);
@@ -243,28 +443,38 @@ public class PubMedGraphUtils {
 	
 	public static List<Relationship> mapHasReferences(String citingType, String citingDoi, Label citingStubLabel, String citedType, List<CrossRefReference> citedDois, Label citedStubLabel, RelationshipType relType, GraphDatabaseApi graph) {
 		List<Relationship> out = new ArrayList<>();
+		List<List<CrossRefReference>> chunks = chunks(citedDois, c -> 2*OPERATIONS_PER_ITEM, c -> 2*BYTES_PER_ITEM);
+		for (int i=0; i<chunks.size(); i++) {
+			out.addAll(mapHasReferenceChunk(citingType, citingDoi, citingStubLabel, citedType, chunks.get(i), citedStubLabel, relType, linksPending(i, chunks.size()), graph));
+		}
+		return out;
+	}
+	
+	private static List<Relationship> mapHasReferenceChunk(String citingType, String citingDoi, Label citingStubLabel, String citedType, List<CrossRefReference> citedDois, Label citedStubLabel, RelationshipType relType, Boolean pending, GraphDatabaseApi graph) {
+		List<Relationship> out;
+		Set<String> ids = new HashSet<>();
+		ids.add(IdentifierLocks.key(citingType, citingDoi.toLowerCase()));
+		citedDois.forEach(cite -> cite.getIdentifier().ifPresent(citedDoi -> ids.add(IdentifierLocks.key(citedType, citedDoi.toLowerCase()))));
 			
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			//Node start = 
-					doMerge(Labels.ARTICLE, citingType, citingDoi.toLowerCase(), graph.get(), citingStubLabel);
+		try (
+				IdentifierLocks.Held held = IdentifierLocks.lock(ids);
+				Transaction tx = graph.get().beginTx()) {
+			MergeBatch batch = new MergeBatch(graph.get());
+			batch.node(Labels.ARTICLE, citingType, citingDoi.toLowerCase(), citingStubLabel);
 			citedDois.forEach(cite -> {
 				cite.getIdentifier().ifPresent(citedDoi -> {
-					
-					Node end = doMerge(Labels.ARTICLE, citedType, citedDoi.toLowerCase(),graph.get(), citedStubLabel);
 					//TODO: there is more metadata available here but it is not all written in
-					cite.getFirstAuthorName().ifPresent(auth -> end.setProperty(Prop.AUTHOR_LABEL, auth));
-					cite.getJournal().ifPresent(o -> end.setProperty(Prop.JOURNAL, o));
-					cite.getTitle().ifPresent(o -> end.setProperty(Prop.TITLE, o));
-					
-					Relationship tmp = doMerge(Labels.ARTICLE, citingType, citingDoi.toLowerCase() ,relType, Labels.ARTICLE, citedType, citedDoi.toLowerCase(),graph.get() );
-					tmp.setProperty(Prop.CROSSREF, true);
-					if (end.hasLabel(citedStubLabel)) {
-						cite.getTitle().ifPresent(t -> end.setProperty(Prop.TITLE, t));
-					}
-					out.add(tmp);
+					Map<String,Object> props = new HashMap<>();
+					cite.getFirstAuthorName().ifPresent(auth -> props.put(Prop.AUTHOR_LABEL, auth));
+					cite.getJournal().ifPresent(o -> props.put(Prop.JOURNAL, o));
+					cite.getTitle().ifPresent(o -> props.put(Prop.TITLE, o));
+					batch.node(Labels.ARTICLE, citedType, citedDoi.toLowerCase(), citedStubLabel, props);
+					batch.relationship(Labels.ARTICLE, citingType, citingDoi.toLowerCase(), relType, Labels.ARTICLE, citedType, citedDoi.toLowerCase(),
+							Collections.singletonMap(Prop.CROSSREF, true));
 				});
 			});
+			out = batch.flush();
+			setLinksPending(citingType, Collections.singleton(citingDoi.toLowerCase()), pending, graph);
 			tx.success();
 		}
 		logger.debug("Adding {}:{} <-{}- {}:{}}",citedDois.size(),citedStubLabel,relType,citingDoi,citingType);
@@ -280,21 +490,53 @@ public class PubMedGraphUtils {
 	public static Optional<String> mapCermineReference(String citingType, String citingDoi, Label citingStubLabel, String citedType, CrossRefWork cite, Label citedStubLabel, RelationshipType relType, GraphDatabaseApi graph) {
 		updateCrossRefMetadata(cite, graph);
 		Optional<String> out = Optional.empty();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			//Node start = 
-			doMerge(Labels.ARTICLE, citingType, citingDoi.toLowerCase(), graph.get(), citingStubLabel);
+		List<String> ids = new ArrayList<>();
+		ids.add(IdentifierLocks.key(citingType, citingDoi.toLowerCase()));
+		cite.getIdentifier().ifPresent(citedDoi -> ids.add(IdentifierLocks.key(citedType, citedDoi.toLowerCase())));
+		try (
+				IdentifierLocks.Held held = IdentifierLocks.lock(ids);
+				Transaction tx = graph.get().beginTx()) {
+			MergeBatch batch = new MergeBatch(graph.get());
+			batch.node(Labels.ARTICLE, citingType, citingDoi.toLowerCase(), citingStubLabel);
 			out = cite.getIdentifier().map(citedDoi -> {
-					Relationship tmp = doMerge(Labels.ARTICLE, citingType, citingDoi.toLowerCase() ,relType, Labels.ARTICLE, citedType, citedDoi.toLowerCase(),graph.get() );
-					tmp.setProperty(Prop.HAS_PDF, true);
+					batch.relationship(Labels.ARTICLE, citingType, citingDoi.toLowerCase() ,relType, Labels.ARTICLE, citedType, citedDoi.toLowerCase(),
+							Collections.singletonMap(Prop.HAS_PDF, true));
 					return citedDoi;
 			});
+			batch.flush();
 			tx.success();
 		}
 		return out;
 		
 	}
 
+	/**
+	 * Links a pdf to references that were resolved to a doi without fetching their metadata. 
+	 */
+	public static void mapCermineReferenceDois(String citingDoi, Set<String> citedDois, GraphDatabaseApi graph) {
+		List<List<String>> chunks = chunks(citedDois, c -> 2*OPERATIONS_PER_ITEM, c -> 2*BYTES_PER_ITEM);
+		for (int i=0; i<chunks.size(); i++) mapCermineReferenceDoiChunk(citingDoi, chunks.get(i), linksPending(i, chunks.size()), graph);
+	}
+	
+	private static void mapCermineReferenceDoiChunk(String citingDoi, List<String> citedDois, Boolean pending, GraphDatabaseApi graph) {
+		Set<String> ids = citedDois.stream().map(doi -> IdentifierLocks.key(Prop.DOI, doi.toLowerCase())).collect(Collectors.toSet());
+		ids.add(IdentifierLocks.key(Prop.DOI, citingDoi.toLowerCase()));
+		try (
+				IdentifierLocks.Held held = IdentifierLocks.lock(ids);
+				Transaction tx = graph.get().beginTx()) {
+			MergeBatch batch = new MergeBatch(graph.get());
+			batch.node(Labels.ARTICLE, Prop.DOI, citingDoi.toLowerCase(), Labels.DOI_STUB);
+			citedDois.forEach(citedDoi -> {
+				batch.node(Labels.ARTICLE, Prop.DOI, citedDoi.toLowerCase(), Labels.DOI_STUB);
+				batch.relationship(Labels.ARTICLE, Prop.DOI, citingDoi.toLowerCase(), Rel.HAS_REFERENCE, Labels.ARTICLE, Prop.DOI, citedDoi.toLowerCase(),
+						Collections.singletonMap(Prop.HAS_PDF, true));
+			});
+			batch.flush();
+			setLinksPending(Prop.DOI, Collections.singleton(citingDoi.toLowerCase()), pending, graph);
+			tx.success();
+		}
+	}
+
 	public static List<Relationship> mapPubmedRelated(List<EntrezLink> links, GraphDatabaseApi graph) {
 		return mapEntrez(links, Prop.PMID, Labels.PMID_STUB, Prop.PMID, Labels.PMID_STUB, Rel.HAS_RELATED, graph, false);
 	}
@@ -310,25 +552,62 @@ public class PubMedGraphUtils {
 	public static List<Relationship> mapEntrez(List<EntrezLink> links, String inIdType, Label inLabel, String outIdType, Label outLabel, RelationshipType relType, GraphDatabaseApi graph, boolean invert) {
 		logger.debug("Adding {} entries {}:{} <-{}- {}:{}",links.size(), outIdType, outLabel, relType, inIdType, inLabel);
 		List<Relationship> out = new ArrayList<>();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-
+		// the links of each article are kept in one chunk, unless there are too many for one transaction
+		Map<String,List<EntrezLink>> byArticle = links.stream().collect(Collectors.groupingBy(l -> l.fromId, LinkedHashMap::new, Collectors.toList()));
+		List<EntrezLink> chunk = new ArrayList<>();
+		long ops = 0;
+		long size = 0;
+		for (List<EntrezLink> article: byArticle.values()) {
+			long o = 3L*OPERATIONS_PER_ITEM*article.size();
+			long b = 3L*BYTES_PER_ITEM*article.size();
+			if (o > maxOperationsPerCommit || b > maxBytesPerCommit) {
+				List<List<EntrezLink>> parts = chunks(article, l -> 3*OPERATIONS_PER_ITEM, l -> 3*BYTES_PER_ITEM);
+				for (int i=0; i<parts.size(); i++) {
+					out.addAll(mapEntrezChunk(parts.get(i), inIdType, inLabel, outIdType, outLabel, relType, graph, invert, linksPending(i, parts.size())));
+				}
+				continue;
+			}
+			if (!chunk.isEmpty() && (ops+o > maxOperationsPerCommit || size+b > maxBytesPerCommit)) {
+				out.addAll(mapEntrezChunk(chunk, inIdType, inLabel, outIdType, outLabel, relType, graph, invert, false));
+				chunk = new ArrayList<>();
+				ops = 0;
+				size = 0;
+			}
+			chunk.addAll(article);
+			ops += o;
+			size += b;
+		}
+		if (!chunk.isEmpty()) out.addAll(mapEntrezChunk(chunk, inIdType, inLabel, outIdType, outLabel, relType, graph, invert, false));
+		return out;
+	}
+	
+	private static List<Relationship> mapEntrezChunk(List<EntrezLink> links, String inIdType, Label inLabel, String outIdType, Label outLabel, RelationshipType relType, GraphDatabaseApi graph, boolean invert, Boolean pending) {
+		List<Relationship> out;
+		Set<String> ids = new HashSet<>();
+		links.forEach(link -> link.toId.ifPresent(toId -> {
+			ids.add(IdentifierLocks.key(inIdType, link.fromId));
+			ids.add(IdentifierLocks.key(outIdType, toId));
+		}));
+		try (
+				IdentifierLocks.Held held = IdentifierLocks.lock(ids);
+				Transaction tx = graph.get().beginTx()) {
+			MergeBatch batch = new MergeBatch(graph.get());
 			links.forEach(link -> { 
 				link.toId.ifPresent(toId -> {
-					//Node start = 
-							doMerge(Labels.ARTICLE, inIdType, link.fromId, graph.get(), inLabel);
-					//Node end = 
-							doMerge(Labels.ARTICLE, outIdType, toId, graph.get(), outLabel);
-					Relationship tmp = null;
+					batch.node(Labels.ARTICLE, inIdType, link.fromId, inLabel);
+					batch.node(Labels.ARTICLE, outIdType, toId, outLabel);
+					Map<String,Object> props = new HashMap<>();
+					link.score.ifPresent(score -> props.put(Prop.RELATEDNESS, score));
+					props.put(Prop.ENTREZ, true);
 					if (invert) {
-						tmp = doMerge(Labels.ARTICLE, outIdType, toId, relType, Labels.ARTICLE, inIdType, link.fromId, graph.get());
+						batch.relationship(Labels.ARTICLE, outIdType, toId, relType, Labels.ARTICLE, inIdType, link.fromId, props);
 					} else {
-						tmp = doMerge(Labels.ARTICLE, inIdType, link.fromId, relType, Labels.ARTICLE, outIdType, toId, graph.get());
+						batch.relationship(Labels.ARTICLE, inIdType, link.fromId, relType, Labels.ARTICLE, outIdType, toId, props);
 					}
-					if (link.score.isPresent()) tmp.setProperty(Prop.RELATEDNESS, link.score.get());
-					tmp.setProperty(Prop.ENTREZ, true);
 				});
 			});
+			out = batch.flush();
+			setLinksPending(inIdType, links.stream().map(l -> l.fromId).collect(Collectors.toSet()), pending, graph);
 			tx.success();
 		}
 
@@ -340,166 +619,267 @@ public class PubMedGraphUtils {
 	public static Optional<String> updateCrossRefMetadata(CrossRefWork work, GraphDatabaseApi graph) {
 		if (work.getIdentifier().isPresent()) {
 			
-			try (Transaction tx = graph.get().beginTx()) {
-				tx.acquireWriteLock(getLockNode());
-
-				Node node = doMerge(Labels.ARTICLE, Prop.DOI, work.getIdentifier().get().toLowerCase(), graph.get());
-				work.getTitle().ifPresent(title -> node.setProperty(Prop.TITLE, title));
+			List<Link> links = new ArrayList<>();
+			try (
+					IdentifierLocks.Held held = IdentifierLocks.lockShared();
+					Transaction tx = graph.get().beginTx()) {
 				boolean first = true;
 				for (Author au:work.getAuthors()) {
 					Optional<Node> targetNode = mapAuthorToNode(au,graph, tx);
-					if (targetNode.isPresent()) {
-						Relationship r = node.createRelationshipTo(targetNode.get(), Rel.HAS_AUTHOR);
-						if (first) {
-							r.setProperty(Prop.FIRST_AUTHOR, true);
-							
-						} else {
-							r.setProperty(Prop.FIRST_AUTHOR, false);
-						}
-					}
+					if (targetNode.isPresent()) links.add(new Link(targetNode.get().getId(), Rel.HAS_AUTHOR, first));
 					first = false;
 				}
-				work.getAbstract().ifPresent(abs -> node.setProperty(Prop.ABSTRACT, abs));
-				work.getDate().ifPresent(date -> node.setProperty(Prop.DATE,date));
-				work.getJournal().ifPresent(journal -> node.setProperty(Prop.JOURNAL,journal));
-				work.getCitedByCount().ifPresent(cited -> node.setProperty(Prop.CITED_BY, cited));
-				work.getReferencesCount().ifPresent(cites -> node.setProperty(Prop.REFERENCE_COUNT, cites));
-				node.removeLabel(Labels.DOI_STUB);
-				node.removeLabel(Labels.PMID_STUB);
-				node.removeLabel(Labels.PMCENTRAL_STUB);
+				tx.success();
+			}
+			
+			String doi = work.getIdentifier().get().toLowerCase();
+			try (
+					IdentifierLocks.Held held = IdentifierLocks.lock(IdentifierLocks.key(Prop.DOI, doi));
+					Transaction tx = graph.get().beginTx()) {
+
+				Map<String,Object> props = new HashMap<>();
+				work.getTitle().ifPresent(title -> props.put(Prop.TITLE, title));
+				work.getAbstract().ifPresent(abs -> props.put(Prop.ABSTRACT, abs));
+				work.getDate().ifPresent(date -> props.put(Prop.DATE,date));
+				work.getJournal().ifPresent(journal -> props.put(Prop.JOURNAL,journal));
+				work.getCitedByCount().ifPresent(cited -> {
+					props.put(Prop.CITED_BY, cited);
+					props.put(Prop.CITED_BY_UPDATED, LocalDate.now());
+				});
+				work.getReferencesCount().ifPresent(cites -> props.put(Prop.REFERENCE_COUNT, cites));
+				new MergeBatch(graph.get()).nodeWithout(Labels.ARTICLE, Prop.DOI, doi, props, STUB_LABELS).flush();
+				Node node = graph.get().findNode(Labels.ARTICLE, Prop.DOI, doi);
+				links.forEach(l -> l.from = node);
+				createLinks(links.stream(), graph);
 				tx.success();
 				
 			}
-			return Optional.of(work.getIdentifier().get().toLowerCase());
+			return Optional.of(doi);
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * Refreshes the citation counts of an article that is already in the graph, leaving the rest of its
+	 * metadata alone.
+	 */
+	public static Optional<String> updateCitedByCount(CrossRefWork work, GraphDatabaseApi graph) {
+		if (work.getIdentifier().isPresent() && work.getCitedByCount().isPresent()) {
+			String doi = work.getIdentifier().get().toLowerCase();
+			try (
+					IdentifierLocks.Held held = IdentifierLocks.lock(IdentifierLocks.key(Prop.DOI, work.getIdentifier().get().toLowerCase()));
+					Transaction tx = graph.get().beginTx()) {
+				Node node = graph.get().findNode(Labels.ARTICLE, Prop.DOI, doi);
+				if (node == null) return Optional.empty();
+				node.setProperty(Prop.CITED_BY, work.getCitedByCount().get());
+				node.setProperty(Prop.CITED_BY_UPDATED, LocalDate.now());
+				work.getReferencesCount().ifPresent(cites -> node.setProperty(Prop.REFERENCE_COUNT, cites));
+				tx.success();
+			}
+			return Optional.of(doi);
 		}
 		return Optional.empty();
 	}
 
 	public static Optional<String> updateUnpaywallMetadata(UnpaywallResult work, GraphDatabaseApi graph) {
 		if (work.getIdentifier().isPresent()) {
-			try (Transaction tx = graph.get().beginTx()) {
-				tx.acquireWriteLock(getLockNode());
-				Node node = doMerge(Labels.ARTICLE, Prop.DOI, work.getIdentifier().get().toLowerCase(), graph.get());
-				work.getPdfUri().ifPresent(url -> node.setProperty(Prop.PDF_URL, url.toString()));
-				work.getDate().ifPresent(date -> node.setProperty(Prop.DATE, date));
-				work.getTitle().ifPresent(title -> node.setProperty(Prop.TITLE, title));
-				work.getJournal().ifPresent(journal -> node.setProperty(Prop.JOURNAL, journal));
-				node.removeLabel(Labels.DOI_STUB);
-				node.removeLabel(Labels.PMID_STUB);
-				node.removeLabel(Labels.PMCENTRAL_STUB);
+			String doi = work.getIdentifier().get().toLowerCase();
+			try (
+					IdentifierLocks.Held held = IdentifierLocks.lock(IdentifierLocks.key(Prop.DOI, doi));
+					Transaction tx = graph.get().beginTx()) {
+				Map<String,Object> props = new HashMap<>();
+				work.getPdfUri().ifPresent(url -> props.put(Prop.PDF_URL, url.toString()));
+				work.getDate().ifPresent(date -> props.put(Prop.DATE, date));
+				work.getTitle().ifPresent(title -> props.put(Prop.TITLE, title));
+				work.getJournal().ifPresent(journal -> props.put(Prop.JOURNAL, journal));
+				new MergeBatch(graph.get()).nodeWithout(Labels.ARTICLE, Prop.DOI, doi, props, STUB_LABELS).flush();
 				tx.success();
 			}
-			return Optional.of(work.getIdentifier().get().toLowerCase());
+			return Optional.of(doi);
 		}
 		return Optional.empty();
 	}
 	
 	public static Optional<String> updatePdfLink(UnpaywallResult work, GraphDatabaseApi graph) {
 		if (work.getIdentifier().isPresent()) {
-			try (Transaction tx = graph.get().beginTx()) {
-				tx.acquireWriteLock(getLockNode());
-				Node node = doMerge(Labels.ARTICLE, Prop.DOI, work.getIdentifier().get().toLowerCase(), graph.get());
-				work.getPdfUri().ifPresent(url -> node.setProperty(Prop.PDF_URL, url.toString()));
+			String doi = work.getIdentifier().get().toLowerCase();
+			try (
+					IdentifierLocks.Held held = IdentifierLocks.lock(IdentifierLocks.key(Prop.DOI, doi));
+					Transaction tx = graph.get().beginTx()) {
+				Map<String,Object> props = new HashMap<>();
+				work.getPdfUri().ifPresent(url -> props.put(Prop.PDF_URL, url.toString()));
+				new MergeBatch(graph.get()).node(Labels.ARTICLE, Prop.DOI, doi, null, props).flush();
 				tx.success();
 			}
-			return Optional.of(work.getIdentifier().get().toLowerCase());
+			return Optional.of(doi);
 		}
 		return Optional.empty();
 	}
 	
-	public static Set<String> lookupDoisForUnreferenced(GraphDatabaseApi graph) {
-		Set<String> out = new HashSet<>();
+	public static boolean hasArticles(GraphDatabaseApi graph) {
 		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			ResourceIterator<String> resultIterator = graph.get().execute("MATCH (source:Article) WHERE NOT (source)-[:HAS_REFERENCE]->() AND source.doi IS NOT NULL RETURN source.doi AS out").columnAs("out"); 
-			resultIterator.forEachRemaining(doi -> out.add(doi));
+			boolean out = graph.get().findNodes(Labels.ARTICLE).hasNext();
 			tx.success();
+			return out;
 		}
-		return out;
-	}; 
+	}
+	
+	/**
+	 * The dois of articles without references, read as they are found. The lookup methods below each have
+	 * a streaming variant like this one which takes no locks and holds only a few pages of results at once. 
+	 * Streams that are not read to the end must be closed.
+	 */
+	public static Stream<String> streamDoisForUnreferenced(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE (NOT (source)-[:HAS_REFERENCE]->() OR source.linksPending IS NOT NULL) AND source.doi IS NOT NULL RETURN source.doi AS out",
+				Collections.emptyMap(), graph);
+	}
+	
+	public static Set<String> lookupDoisForUnreferenced(GraphDatabaseApi graph) {
+		return streamDoisForUnreferenced(graph).collect(Collectors.toSet());
+	}
+	
+	public static Stream<String> streamPMIDSForUnreferenced(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE (NOT (source)-[:HAS_REFERENCE]->() OR source.linksPending IS NOT NULL) AND source.pmid IS NOT NULL RETURN source.pmid AS out",
+				Collections.emptyMap(), graph);
+	}
 	
 	public static Set<String> lookupPMIDSForUnreferenced(GraphDatabaseApi graph) {
-		Set<String> out = new HashSet<>();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			ResourceIterator<String> resultIterator = graph.get().execute("MATCH (source:Article) WHERE NOT (source)-[:HAS_REFERENCE]->() AND source.pmid IS NOT NULL RETURN source.pmid AS out").columnAs("out"); 
-			resultIterator.forEachRemaining(doi -> out.add(doi));
-			tx.success();
-		}
-		return out;
-	};
+		return streamPMIDSForUnreferenced(graph).collect(Collectors.toSet());
+	}
+	
+	public static Stream<String> streamDoisForUnknownCitedBy(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE source.doi IS NOT NULL AND source.citedByCount IS NULL RETURN source.doi AS out",
+				Collections.emptyMap(), graph);
+	}
 	
 	public static Set<String> lookupDoisForUnknownCitedBy(GraphDatabaseApi graph) {
-		Set<String> out = new HashSet<>();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			ResourceIterator<String> resultIterator = graph.get().execute("MATCH (source:Article) WHERE source.doi IS NOT NULL AND source.citedByCount IS NULL RETURN source.doi AS out").columnAs("out"); 
-			resultIterator.forEachRemaining(doi -> out.add(doi));
-			tx.success();
-		}
-		return out;
-	};
+		return streamDoisForUnknownCitedBy(graph).collect(Collectors.toSet());
+	}
 
+	public static Stream<String> streamPmidStubs(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:PMIDStub) RETURN source.pmid AS out", Collections.emptyMap(), graph);
+	}
+	
 	public static Set<String> lookupPmidStubs(GraphDatabaseApi graph) {
-		Set<String> out = new HashSet<>();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			ResourceIterator<String> resultIterator = graph.get().execute("MATCH (source:PMIDStub) RETURN source.pmid AS out").columnAs("out"); 
-			resultIterator.forEachRemaining(doi -> out.add(doi));
-			tx.success();
-		}
-		return out;
-	};
+		return streamPmidStubs(graph).collect(Collectors.toSet());
+	}
+	
+	public static Stream<String> streamDoiStubs(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:DOIStub) RETURN source.doi AS out", Collections.emptyMap(), graph);
+	}
 	
 	public static Set<String> lookupDoiStubs(GraphDatabaseApi graph) {
-		Set<String> out = new HashSet<>();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			ResourceIterator<String> resultIterator = graph.get().execute("MATCH (source:DOIStub) RETURN source.doi AS out").columnAs("out"); 
-			resultIterator.forEachRemaining(doi -> out.add(doi));
-			tx.success();
-		}
-		return out;
-	};
+		return streamDoiStubs(graph).collect(Collectors.toSet());
+	}
 	
+	public static Stream<String> streamBroadSearchDois(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Expand) WHERE source.doi IS NOT NULL RETURN source.doi AS out", Collections.emptyMap(), graph);
+	}
 	
 	public static Set<String> lookupBroadSearchDois(GraphDatabaseApi graph) {
-		Set<String> out = new HashSet<>();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			ResourceIterator<String> resultIterator = graph.get().execute("MATCH (source:Expand) WHERE source.doi IS NOT NULL RETURN source.doi AS out").columnAs("out"); 
-			resultIterator.forEachRemaining(doi -> out.add(doi));
-			tx.success();
-		}
-		return out;
-	};
+		return streamBroadSearchDois(graph).collect(Collectors.toSet());
+	}
+	
+	/**
+	 * The dois of articles in the broad search that have no references yet, that were updated since the
+	 * given date unless it is null.
+	 */
+	public static Stream<String> streamBroadSearchDoisForUnreferenced(LocalDate since, GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Expand) WHERE (NOT (source)-[:HAS_REFERENCE]->() OR source.linksPending IS NOT NULL) "
+				+ "AND source.doi IS NOT NULL AND ($since IS NULL OR source.updated >= $since) RETURN source.doi AS out",
+				Collections.<String,Object>singletonMap("since", since), graph);
+	}
+	
+	public static Stream<String> streamDoisMissingPMID(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE source.doi IS NOT NULL AND source.pmid IS NULL RETURN source.doi AS out",
+				Collections.emptyMap(), graph);
+	}
 	
 	public static Set<String> lookupDoisMissingPMID(GraphDatabaseApi graph) {
-		Set<String> out = new HashSet<>();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			ResourceIterator<String> resultIterator = graph.get().execute("MATCH (source:Article) WHERE source.doi IS NOT NULL AND source.pmid IS NULL RETURN source.doi AS out").columnAs("out"); 
-			resultIterator.forEachRemaining(doi -> out.add(doi));
-			tx.success();
-		}
-		return out;
-	};
+		return streamDoisMissingPMID(graph).collect(Collectors.toSet());
+	}
+	
+	public static Stream<String> streamPMIDSMissingDoi(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE source.doi IS NULL AND source.pmid IS NOT NULL RETURN source.pmid AS out",
+				Collections.emptyMap(), graph);
+	}
 	
 	public static Set<String> lookupPMIDSMissingDoi(GraphDatabaseApi graph) {
-		Set<String> out = new HashSet<>();
-		try (Transaction tx = graph.get().beginTx()) {
-			tx.acquireWriteLock(getLockNode());
-			ResourceIterator<String> resultIterator = graph.get().execute("MATCH (source:Article) WHERE source.doi IS NULL AND source.pmid IS NOT NULL RETURN source.pmid AS out").columnAs("out"); 
-			resultIterator.forEachRemaining(doi -> out.add(doi));
-			tx.success();
-		}
-		return out;
+		return streamPMIDSMissingDoi(graph).collect(Collectors.toSet());
+	}
+	
+	/**
+	 * The pmids of articles whose metadata has been fetched from pubmed.
+	 */
+	public static Stream<String> streamPmidsWithMetadata(GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE source.pmid IS NOT NULL AND NOT source:PMIDStub RETURN source.pmid AS out",
+				Collections.emptyMap(), graph);
+	}
+	
+	public static Set<String> lookupPmidsWithMetadata(GraphDatabaseApi graph) {
+		return streamPmidsWithMetadata(graph).collect(Collectors.toSet());
+	}
+	
+	public static Stream<String> streamDoisUpdatedSince(LocalDate since, GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE source.doi IS NOT NULL AND source.updated >= $since RETURN source.doi AS out",
+				Collections.<String,Object>singletonMap("since", since), graph);
+	}
+	
+	public static Set<String> lookupDoisUpdatedSince(LocalDate since, GraphDatabaseApi graph) {
+		return streamDoisUpdatedSince(since, graph).collect(Collectors.toSet());
+	}
+	
+	public static Stream<String> streamPMIDSUpdatedSince(LocalDate since, GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE source.pmid IS NOT NULL AND source.updated >= $since RETURN source.pmid AS out",
+				Collections.<String,Object>singletonMap("since", since), graph);
+	}
+	
+	public static Set<String> lookupPMIDSUpdatedSince(LocalDate since, GraphDatabaseApi graph) {
+		return streamPMIDSUpdatedSince(since, graph).collect(Collectors.toSet());
 	}
-	public static Node getLockNode() {
-		return lockNode;
+	
+	/**
+	 * The dois of articles fetched from pubmed since the given date, and of the articles they reference. 
+	 * References are found for new articles only, so these are all the articles an update has added.
+	 */
+	public static Stream<String> streamDoisUpdatedOrReferencedSince(LocalDate since, GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE source.doi IS NOT NULL AND source.updated >= $since RETURN source.doi AS out "
+				+ "UNION MATCH (source:Article)-[:HAS_REFERENCE]->(target:Article) WHERE target.doi IS NOT NULL AND source.updated >= $since RETURN target.doi AS out",
+				Collections.<String,Object>singletonMap("since", since), graph);
+	}
+	
+	public static Set<String> lookupDoisUpdatedOrReferencedSince(LocalDate since, GraphDatabaseApi graph) {
+		return streamDoisUpdatedOrReferencedSince(since, graph).collect(Collectors.toSet());
+	}
+	
+	/**
+	 * The dois of articles whose citation counts were last fetched before the given date, or were
+	 * fetched before the fetch date was recorded.
+	 */
+	public static Stream<String> streamDoisWithStaleCitedBy(LocalDate before, GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article) WHERE source.doi IS NOT NULL AND source.citedByCount IS NOT NULL "
+				+ "AND (source.citedByUpdated IS NULL OR source.citedByUpdated < $before) RETURN source.doi AS out",
+				Collections.<String,Object>singletonMap("before", before), graph);
+	}
+	
+	public static Set<String> lookupDoisWithStaleCitedBy(LocalDate before, GraphDatabaseApi graph) {
+		return streamDoisWithStaleCitedBy(before, graph).collect(Collectors.toSet());
+	}
+	
+	/**
+	 * The node ids of affiliations of the authors of articles fetched from pubmed since the given date.
+	 */
+	public static Stream<Long> streamAffiliationsUpdatedSince(LocalDate since, GraphDatabaseApi graph) {
+		return LookupCursor.stream("MATCH (source:Article)-[:HAS_AUTHOR]->(:Author)-[:HAS_AFFILIATION]->(a:Affiliation) WHERE source.updated >= $since RETURN DISTINCT id(a) AS out",
+				Collections.<String,Object>singletonMap("since", since), graph);
+	}
+	
+	public static Set<Long> lookupAffiliationsUpdatedSince(LocalDate since, GraphDatabaseApi graph) {
+		return streamAffiliationsUpdatedSince(since, graph).collect(Collectors.toSet());
+	}
+	
+	private static Set<String> keys(String idType, Collection<?> values) {
+		return values.stream().map(v -> IdentifierLocks.key(idType, v)).collect(Collectors.toSet());
 	}
-	public static void setLockNode(Node lockNode) {
-		PubMedGraphUtils.lockNode = lockNode;
-	};
 	
 }
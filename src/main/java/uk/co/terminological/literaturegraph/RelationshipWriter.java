@@ -0,0 +1,171 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes relationships between nodes given by id in bounded transactions. Pairs are buffered in
+ * primitive arrays and each full buffer is written and committed in its own transaction, so the size of
+ * the transaction state does not grow with the number of relationships. Relationships can be given
+ * a fixed set of properties. The nodes at both ends of a chunk are locked in order of node id before it is
+ * written, and a chunk that fails with a transient error such as a deadlock is written again. Throughput is
+ * logged when the writer is closed. Relationships written by an earlier run of the same step are deleted
+ * first, also in bounded transactions, so that a step can be run again without duplicating them.
+ */
+public class RelationshipWriter implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(RelationshipWriter.class);
+
+	private GraphDatabaseApi graph;
+	private RelationshipType type;
+	private long[] from;
+	private long[] to;
+	private String[] propertyNames;
+	private Number[][] properties;
+	private int buffered = 0;
+	private long written = 0;
+	private int chunks = 0;
+	private long startMillis = System.currentTimeMillis();
+	private long writeMillis = 0;
+
+	/**
+	 * @param chunkSize the number of relationships written in each transaction
+	 * @param propertyNames the names of the properties given to each relationship, in the order they are added
+	 */
+	public RelationshipWriter(GraphDatabaseApi graph, RelationshipType type, int chunkSize, String... propertyNames) {
+		this.graph = graph;
+		this.type = type;
+		this.from = new long[chunkSize];
+		this.to = new long[chunkSize];
+		this.propertyNames = propertyNames;
+		this.properties = new Number[chunkSize][];
+	}
+
+	public void add(long fromId, long toId, Number... values) {
+		if (values.length != propertyNames.length) throw new IllegalArgumentException("Expected values for "+String.join(", ", propertyNames));
+		from[buffered] = fromId;
+		to[buffered] = toId;
+		properties[buffered] = values;
+		buffered++;
+		if (buffered == from.length) flush();
+	}
+
+	public void flush() {
+		if (buffered == 0) return;
+		long start = System.currentTimeMillis();
+		long[] ends = new long[buffered*2];
+		System.arraycopy(from, 0, ends, 0, buffered);
+		System.arraycopy(to, 0, ends, buffered, buffered);
+		PubMedGraphUtils.retry(() -> {
+			try (Transaction tx = graph.get().beginTx()) {
+				PubMedGraphUtils.lockNodes(ends, graph, tx);
+				for (int i=0; i<buffered; i++) {
+					Node in = graph.get().getNodeById(from[i]);
+					Node out = graph.get().getNodeById(to[i]);
+					Relationship r = in.createRelationshipTo(out, type);
+					for (int j=0; j<propertyNames.length; j++) r.setProperty(propertyNames[j], properties[i][j]);
+				}
+				tx.success();
+			}
+			return null;
+		});
+		Arrays.fill(properties, 0, buffered, null);
+		written += buffered;
+		chunks++;
+		buffered = 0;
+		writeMillis += System.currentTimeMillis()-start;
+		logger.debug("{} {} relationships written", written, type.name());
+	}
+
+	/**
+	 * Deletes the relationships of a type that start at nodes with a label.
+	 * @return the number deleted
+	 */
+	public static long deleteFrom(Label label, RelationshipType type, int chunkSize, GraphDatabaseApi graph) {
+		List<Long> ids = new ArrayList<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(label).forEachRemaining(n -> 
+				n.getRelationships(Direction.OUTGOING, type).forEach(r -> ids.add(r.getId())));
+			tx.success();
+		}
+		return delete(ids, type, chunkSize, graph);
+	}
+
+	/**
+	 * Deletes the relationships of a type that start at the given nodes.
+	 * @return the number deleted
+	 */
+	public static long deleteFrom(Collection<Long> nodeIds, RelationshipType type, int chunkSize, GraphDatabaseApi graph) {
+		List<Long> ids = new ArrayList<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			for (Long id: nodeIds) {
+				try {
+					graph.get().getNodeById(id).getRelationships(Direction.OUTGOING, type).forEach(r -> ids.add(r.getId()));
+				} catch (NotFoundException e) {
+					// nothing to delete
+				}
+			}
+			tx.success();
+		}
+		return delete(ids, type, chunkSize, graph);
+	}
+
+	private static long delete(List<Long> ids, RelationshipType type, int chunkSize, GraphDatabaseApi graph) {
+		long deleted = 0;
+		for (int i=0; i<ids.size(); i+=chunkSize) {
+			List<Long> chunk = ids.subList(i, Math.min(i+chunkSize, ids.size()));
+			deleted += PubMedGraphUtils.retry(() -> {
+				int count = 0;
+				try (Transaction tx = graph.get().beginTx()) {
+					List<Relationship> rels = new ArrayList<>();
+					for (Long id: chunk) {
+						try {
+							rels.add(graph.get().getRelationshipById(id));
+						} catch (NotFoundException e) {
+							// already gone
+						}
+					}
+					PubMedGraphUtils.lockNodes(rels.stream()
+							.flatMapToLong(r -> LongStream.of(r.getStartNodeId(), r.getEndNodeId())).toArray(), graph, tx);
+					for (Relationship r: rels) {
+						try {
+							r.delete();
+							count++;
+						} catch (NotFoundException e) {
+							// deleted since it was read
+						}
+					}
+					tx.success();
+				}
+				return count;
+			});
+		}
+		if (deleted > 0) logger.info("{} existing {} relationships deleted", deleted, type.name());
+		return deleted;
+	}
+
+	public long written() {
+		return written;
+	}
+
+	@Override
+	public void close() {
+		flush();
+		long elapsed = Math.max(1, System.currentTimeMillis()-startMillis);
+		logger.info("{} {} relationships written in {} transactions: {} per second overall, {} per second writing",
+				written, type.name(), chunks, written*1000/elapsed, written*1000/Math.max(1, writeMillis));
+	}
+}
@@ -0,0 +1,93 @@
+package uk.co.terminological.literaturegraph;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps the unique key of a term node, such as the term of a keyword or the code of a mesh heading, to the
+ * id of its node, so that linking an article to its terms does not plan and run a cypher merge for every
+ * occurrence. The map is loaded from the indexed property of every node with the label on first use.
+ * Terms that are not in the map are looked up with the index and created if they are not found.
+ * <br/>
+ * Must be used inside a transaction that holds the shared lock from {@link IdentifierLocks#lockShared()}.
+ * Entries for nodes that have since been deleted, or whose transaction was rolled back, are dropped when
+ * they are found.
+ */
+public class TermIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(TermIndex.class);
+
+	private GraphDatabaseService db;
+	private Label label;
+	private String key;
+	private Map<String,Long> ids = new ConcurrentHashMap<>();
+	private long hits = 0;
+	private long found = 0;
+	private long created = 0;
+
+	TermIndex(GraphDatabaseService db, Label label, String key) {
+		this.db = db;
+		this.label = label;
+		this.key = key;
+		long start = System.currentTimeMillis();
+		db.findNodes(label).forEachRemaining(n -> {
+			Object value = n.getProperty(key, null);
+			if (value != null) ids.putIfAbsent(value.toString(), n.getId());
+		});
+		logger.info("{} index loaded {} terms in {} ms", label.name(), ids.size(), System.currentTimeMillis()-start);
+	}
+
+	/**
+	 * @return the node with the given key, which is created if there is none
+	 */
+	public Node get(String value) {
+		Node node = find(value);
+		if (node == null) {
+			node = db.createNode(label);
+			node.setProperty(key, value);
+			ids.put(value, node.getId());
+			created++;
+		}
+		return node;
+	}
+
+	/**
+	 * @return the existing node with the given key, or null if there is none
+	 */
+	public Node find(String value) {
+		Long id = ids.get(value);
+		if (id != null) {
+			try {
+				Node node = db.getNodeById(id);
+				if (node.hasLabel(label) && value.equals(node.getProperty(key, null))) {
+					hits++;
+					return node;
+				}
+			} catch (NotFoundException e) {
+				// deleted by a merge, or created in a transaction that did not commit
+			}
+			ids.remove(value, id);
+		}
+		Node node = db.findNode(label, key, value);
+		if (node != null) {
+			found++;
+			ids.put(value, node.getId());
+		}
+		return node;
+	}
+
+	boolean isFor(GraphDatabaseService db) {
+		return this.db == db;
+	}
+
+	public void logStatistics() {
+		logger.info("{} index: {} cached, {} found, {} created", label.name(), hits, found, created);
+	}
+}
@@ -0,0 +1,205 @@
+package uk.co.terminological.literaturereview;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Finds similar affiliation strings without comparing every pair. Each string is reduced to its set of
+ * tokens and given a MinHash signature, which is split into bands. Only strings that share all the values
+ * of at least one band are compared, and those pairs are scored by the cosine similarity of their tf-idf
+ * weighted tokens. With the default 20 bands of 3 rows a pair of strings whose token sets have a Jaccard
+ * similarity of 0.5 is compared with a probability of about 0.93, and one of 0.2 with a probability of
+ * about 0.15. Strings with the same tokens, such as the same affiliation on many authors, are banded and
+ * compared once, and their matches are then given to every id with those tokens.
+ */
+public class AffiliationMatcher {
+
+	static Logger log = LoggerFactory.getLogger(AffiliationMatcher.class);
+
+	private Set<String> stopWords;
+	private int bands;
+	private int rows;
+	private long[] hashSeeds;
+
+	private Map<Set<String>,Doc> sources = new LinkedHashMap<>();
+	private Map<Set<String>,Doc> targets = new LinkedHashMap<>();
+	private Map<String,Integer> documentFrequency = new HashMap<>();
+	private int targetCount = 0;
+	private int sourceCount = 0;
+
+	public static class Match {
+		public long source;
+		public long target;
+		public double similarity;
+		Match(long source, long target, double similarity) {
+			this.source = source;
+			this.target = target;
+			this.similarity = similarity;
+		}
+	}
+
+	// the ids of all the strings with the same tokens
+	private static class Doc {
+		List<Long> ids = new ArrayList<>();
+		Set<String> tokens;
+		Map<String,Double> weights;
+		double norm;
+		Doc(Set<String> tokens) {this.tokens = tokens;}
+	}
+
+	public AffiliationMatcher(Collection<String> stopWords) {
+		this(stopWords, 20, 3);
+	}
+
+	/**
+	 * @param stopWords words that are ignored, in any case
+	 * @param bands the number of bands, more bands finds more dissimilar pairs
+	 * @param rows the number of MinHash values in each band, more rows finds fewer dissimilar pairs
+	 */
+	public AffiliationMatcher(Collection<String> stopWords, int bands, int rows) {
+		this.stopWords = stopWords.stream().map(String::toLowerCase).collect(Collectors.toSet());
+		this.bands = bands;
+		this.rows = rows;
+		this.hashSeeds = new long[bands*rows];
+		for (int i=0; i<hashSeeds.length; i++) hashSeeds[i] = 0x9e3779b97f4a7c15L*(i+1);
+	}
+
+	public void addSource(long id, String text) {
+		sources.computeIfAbsent(tokens(text), Doc::new).ids.add(id);
+		sourceCount++;
+	}
+
+	// document frequencies count every target string, not just the distinct ones
+	public void addTarget(long id, String text) {
+		Doc d = targets.computeIfAbsent(tokens(text), Doc::new);
+		d.ids.add(id);
+		d.tokens.forEach(t -> documentFrequency.merge(t, 1, Integer::sum));
+		targetCount++;
+	}
+
+	private Set<String> tokens(String text) {
+		return Arrays.stream(text.toLowerCase().split("[^\\p{L}\\p{N}]+"))
+				.filter(t -> t.length() > 1 && !stopWords.contains(t))
+				.collect(Collectors.toSet());
+	}
+
+	/**
+	 * Finds the most similar targets for each source, other than targets with the same id.
+	 * @param n the maximum number of matches for each source
+	 * @param minSimilarity the lowest cosine similarity that is a match
+	 * @param consumer receives the matches for one source at a time
+	 */
+	public void getTopMatches(int n, double minSimilarity, Consumer<Match> consumer) {
+		// tf-idf weights from the document frequencies of the targets
+		int size = targetCount;
+		List<Doc> distinctTargets = new ArrayList<>(targets.values());
+		for (Doc d: distinctTargets) weigh(d, size);
+		for (Doc d: sources.values()) weigh(d, size);
+
+		// band buckets of the distinct targets; the keys combine the band number with its MinHash values
+		Map<Long,List<Integer>> buckets = new HashMap<>();
+		for (int j=0; j<distinctTargets.size(); j++) {
+			for (long key: bandKeys(distinctTargets.get(j))) buckets.computeIfAbsent(key, k -> new ArrayList<>()).add(j);
+		}
+
+		long candidates = 0;
+		long matches = 0;
+		for (Doc s: sources.values()) {
+			Set<Integer> seen = new HashSet<>();
+			for (long key: bandKeys(s)) seen.addAll(buckets.getOrDefault(key, Collections.emptyList()));
+			candidates += seen.size();
+			List<Doc> similar = new ArrayList<>();
+			Map<Doc,Double> similarity = new HashMap<>();
+			for (int j: seen) {
+				Doc t = distinctTargets.get(j);
+				double sim = cosine(s, t);
+				if (sim >= minSimilarity) {
+					similar.add(t);
+					similarity.put(t, sim);
+				}
+			}
+			similar.sort((a,b) -> Double.compare(similarity.get(b), similarity.get(a)));
+			// every id with these tokens gets the same matches, apart from itself
+			for (long id: s.ids) {
+				int found = 0;
+				for (Doc t: similar) {
+					if (found == n) break;
+					for (long target: t.ids) {
+						if (found == n) break;
+						if (target == id) continue;
+						consumer.accept(new Match(id, target, similarity.get(t)));
+						found++;
+					}
+				}
+				matches += found;
+			}
+		}
+		log.info("Affiliation matching: {} sources, {} targets, {} distinct sources, {} distinct targets, {} candidate pairs compared instead of {}, {} matches",
+				sourceCount, size, sources.size(), distinctTargets.size(), candidates, (long) sourceCount*size, matches);
+	}
+
+	private void weigh(Doc d, int size) {
+		d.weights = new HashMap<>();
+		double sum = 0;
+		for (String t: d.tokens) {
+			double w = Math.log((double) (size+1) / (documentFrequency.getOrDefault(t, 0)+1))+1;
+			d.weights.put(t, w);
+			sum += w*w;
+		}
+		d.norm = Math.sqrt(sum);
+	}
+
+	private static double cosine(Doc a, Doc b) {
+		if (a.norm == 0 || b.norm == 0) return 0;
+		Doc small = a.weights.size() < b.weights.size() ? a : b;
+		Doc large = small == a ? b : a;
+		double dot = 0;
+		for (Map.Entry<String,Double> e: small.weights.entrySet()) {
+			Double w = large.weights.get(e.getKey());
+			if (w != null) dot += w*e.getValue();
+		}
+		return dot/(a.norm*b.norm);
+	}
+
+	private long[] bandKeys(Doc d) {
+		if (d.tokens.isEmpty()) return new long[0];
+		long[] signature = new long[hashSeeds.length];
+		Arrays.fill(signature, Long.MAX_VALUE);
+		for (String t: d.tokens) {
+			long h = Hashing.murmur3_128().hashString(t, StandardCharsets.UTF_8).asLong();
+			for (int i=0; i<signature.length; i++) {
+				signature[i] = Math.min(signature[i], mix(h ^ hashSeeds[i]));
+			}
+		}
+		long[] keys = new long[bands];
+		for (int b=0; b<bands; b++) {
+			long key = b;
+			for (int r=0; r<rows; r++) key = mix(key*31 + signature[b*rows+r]);
+			keys[b] = key;
+		}
+		return keys;
+	}
+
+	// splitmix64 finaliser
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
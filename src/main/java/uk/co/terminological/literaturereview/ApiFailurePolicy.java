@@ -0,0 +1,262 @@
+package uk.co.terminological.literaturereview;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The single failure policy for calls from the build to the bibliographic APIs. Each call is retried
+ * with exponential backoff and full jitter. Repeated failures on an endpoint open a circuit breaker so
+ * that further calls wait until the endpoint has had time to recover, and then until a single trial call
+ * has succeeded, without using up their attempts. Identifiers that could not be fetched in the maximum
+ * number of attempts are kept in a dead letter list per endpoint so that they can be retried in a later pass.
+ */
+public class ApiFailurePolicy {
+
+	static Logger log = LoggerFactory.getLogger(ApiFailurePolicy.class);
+
+	public static enum Endpoint {
+		ENTREZ_SEARCH,
+		ENTREZ_FETCH,
+		ENTREZ_LINK,
+		CROSSREF,
+		CROSSREF_CITATION,
+		UNPAYWALL,
+		UNPAYWALL_PDF,
+		PMCIDCONV
+	}
+
+	@FunctionalInterface
+	public interface ApiCall<X> {
+		X call() throws Exception;
+	}
+
+	/**
+	 * Told about every attempt at a call, for instrumentation.
+	 */
+	@FunctionalInterface
+	public interface CallObserver {
+		void observe(Endpoint endpoint, long millis, boolean success);
+	}
+
+	private int maxAttempts;
+	private long baseDelayMillis;
+	private long maxDelayMillis;
+	private int failureThreshold;
+	private long openMillis;
+	private Map<Endpoint,CircuitBreaker> breakers = new EnumMap<>(Endpoint.class);
+	private Map<Endpoint,Set<String>> deadLetters = new EnumMap<>(Endpoint.class);
+	private CallObserver observer = (endpoint, millis, success) -> {};
+
+	/**
+	 * @param maxAttempts the number of times a call is tried before its ids are dead lettered
+	 * @param baseDelayMillis the backoff ceiling after the first failure, doubled after each subsequent failure
+	 * @param maxDelayMillis the largest backoff ceiling
+	 * @param failureThreshold consecutive failures on an endpoint that open its circuit
+	 * @param openMillis how long an open circuit holds calls back before a trial call is let through
+	 */
+	public ApiFailurePolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, int failureThreshold, long openMillis) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+		for (Endpoint e: Endpoint.values()) {
+			breakers.put(e, new CircuitBreaker(e));
+			deadLetters.put(e, ConcurrentHashMap.newKeySet());
+		}
+	}
+
+	public static ApiFailurePolicy defaultPolicy() {
+		return new ApiFailurePolicy(5, 500, 60000, 5, 60000);
+	}
+
+	public void setObserver(CallObserver observer) {
+		this.observer = observer;
+	}
+
+	public <X> Optional<X> call(Endpoint endpoint, String id, ApiCall<X> call) {
+		return call(endpoint, Collections.singleton(id), call);
+	}
+
+	/**
+	 * Unwraps calls that already return an optional result. An empty result is a miss not a failure
+	 * so it is not retried.
+	 */
+	public <X> Optional<X> callOptional(Endpoint endpoint, String id, ApiCall<Optional<X>> call) {
+		return call(endpoint, Collections.singleton(id), call).flatMap(o -> o);
+	}
+
+	/**
+	 * Makes the call, retrying on any exception.
+	 * @param endpoint the endpoint the call is made to
+	 * @param ids the identifiers the call is made for. These are dead lettered if the call fails.
+	 * @param call the API call
+	 * @return the result of the call or empty if it failed
+	 */
+	public <X> Optional<X> call(Endpoint endpoint, Collection<String> ids, ApiCall<X> call) {
+		CircuitBreaker breaker = breakers.get(endpoint);
+		for (int attempt = 0; attempt < maxAttempts; attempt++) {
+			if (!breaker.awaitCall()) {
+				log.debug("{} call for {} ids interrupted waiting for the circuit to close", endpoint, ids.size());
+				break;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				X out = call.call();
+				observer.observe(endpoint, System.currentTimeMillis()-start, true);
+				breaker.success();
+				return Optional.ofNullable(out);
+			} catch (InterruptedException e) {
+				breaker.abandoned();
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Exception e) {
+				observer.observe(endpoint, System.currentTimeMillis()-start, false);
+				breaker.failure();
+				log.warn("{} call for {} ids failed on attempt {}: {}", endpoint, ids.size(), attempt+1, e.getMessage());
+				if (attempt+1 < maxAttempts && !backoff(attempt)) break;
+			}
+		}
+		deadLetters.get(endpoint).addAll(ids);
+		return Optional.empty();
+	}
+
+	// full jitter: sleep for a random time up to an exponentially growing ceiling
+	private boolean backoff(int attempt) {
+		long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 30));
+		long delay = ThreadLocalRandom.current().nextLong(ceiling+1);
+		try {
+			Thread.sleep(delay);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Removes and returns the dead letters for an endpoint, ready for them to be retried.
+	 */
+	public Set<String> drainDeadLetters(Endpoint endpoint) {
+		Set<String> tmp = deadLetters.get(endpoint);
+		Set<String> out = new HashSet<>(tmp);
+		tmp.removeAll(out);
+		return out;
+	}
+
+	/**
+	 * A copy of the dead letters for an endpoint, which are left in place.
+	 */
+	public Set<String> peekDeadLetters(Endpoint endpoint) {
+		return new HashSet<>(deadLetters.get(endpoint));
+	}
+
+	public int deadLetterCount() {
+		return deadLetters.values().stream().mapToInt(Set::size).sum();
+	}
+
+	public List<Map<String,Object>> deadLetters() {
+		List<Map<String,Object>> out = new ArrayList<>();
+		deadLetters.forEach((endpoint, ids) -> ids.forEach(id -> {
+			Map<String,Object> tmp = new LinkedHashMap<>();
+			tmp.put("endpoint", endpoint.name());
+			tmp.put("id", id);
+			out.add(tmp);
+		}));
+		return out;
+	}
+
+	public void writeDeadLetters(Path file) throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(file)) {
+			for (Map.Entry<Endpoint,Set<String>> kv: deadLetters.entrySet()) {
+				for (String id: kv.getValue()) {
+					w.write(kv.getKey().name()+"\t"+id);
+					w.newLine();
+				}
+			}
+		}
+	}
+
+	public void readDeadLetters(Path file) throws IOException {
+		if (!Files.exists(file)) return;
+		try (Stream<String> lines = Files.lines(file)) {
+			lines.map(l -> l.split("\t",2)).filter(a -> a.length == 2).forEach(a ->
+				deadLetters.get(Endpoint.valueOf(a[0])).add(a[1]));
+		}
+	}
+
+	private class CircuitBreaker {
+
+		Endpoint endpoint;
+		int consecutiveFailures = 0;
+		long openUntil = 0;
+		boolean trialInProgress = false;
+
+		CircuitBreaker(Endpoint endpoint) {this.endpoint = endpoint;}
+
+		/**
+		 * Waits while the circuit is open or a trial call is running.
+		 * @return false if interrupted while waiting
+		 */
+		synchronized boolean awaitCall() {
+			while (consecutiveFailures >= failureThreshold) {
+				long wait = openUntil-System.currentTimeMillis();
+				// half open - let one trial call through once the open period has elapsed
+				if (wait <= 0 && !trialInProgress) {
+					trialInProgress = true;
+					return true;
+				}
+				try {
+					// woken early when the trial finishes
+					if (trialInProgress) wait(); else wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+
+		synchronized void success() {
+			if (consecutiveFailures >= failureThreshold) log.info("{} circuit closed", endpoint);
+			consecutiveFailures = 0;
+			trialInProgress = false;
+			notifyAll();
+		}
+
+		// a call that was interrupted lets another caller make the trial
+		synchronized void abandoned() {
+			trialInProgress = false;
+			notifyAll();
+		}
+
+		synchronized void failure() {
+			consecutiveFailures++;
+			trialInProgress = false;
+			if (consecutiveFailures >= failureThreshold) {
+				if (consecutiveFailures == failureThreshold) log.warn("{} circuit opened after {} failures", endpoint, consecutiveFailures);
+				openUntil = System.currentTimeMillis()+openMillis;
+			}
+			notifyAll();
+		}
+	}
+
+}
@@ -0,0 +1,358 @@
+package uk.co.terminological.literaturereview;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.terminological.literaturereview.TrafficArchive.Response;
+
+/**
+ * Intercepts the http and https requests made from this JVM, which is where the bibliographic API
+ * clients end up, so that a build can be run against recorded traffic instead of the live services.
+ * In record mode each request goes to the live service and its response is saved to a
+ * {@link TrafficArchive}. In replay mode responses come from the archive after a synthetic delay, and
+ * requests that were never recorded fail. In reroute mode requests for some hosts are sent to another
+ * server instead, such as a {@link FakeApiServer}. When no mode is active requests go straight to the live service.
+ * API keys and contact details are left out of the recorded requests so that archives can be shared.
+ */
+public class ApiTraffic {
+
+	static Logger log = LoggerFactory.getLogger(ApiTraffic.class);
+
+	private static final Set<String> IGNORED_PARAMS = new HashSet<>(Arrays.asList("api_key", "email", "tool", "mailto"));
+
+	private static URL httpTemplate;
+	private static URL httpsTemplate;
+	private static volatile ApiTraffic active;
+
+	private TrafficArchive archive;
+	private boolean replay;
+	private double latencyScale;
+	private long extraLatencyMillis;
+	private Map<String,URL> reroutes;
+
+	private ApiTraffic(TrafficArchive archive, boolean replay, double latencyScale, long extraLatencyMillis) {
+		this.archive = archive;
+		this.replay = replay;
+		this.latencyScale = latencyScale;
+		this.extraLatencyMillis = extraLatencyMillis;
+	}
+
+	/**
+	 * Starts saving every response to a new archive, replacing any previous mode.
+	 */
+	public static synchronized void record(Path archive) throws IOException {
+		// before the archive is created, so that nothing is left open if the handler cannot be installed
+		install();
+		start(new ApiTraffic(TrafficArchive.create(archive), false, 0, 0));
+		log.warn("Recording API traffic to {}", archive);
+	}
+
+	/**
+	 * Starts serving responses from an archive, replacing any previous mode.
+	 * @param latencyScale the fraction of the recorded response time to wait before each response
+	 * @param extraLatencyMillis a fixed time to wait before each response, in addition to the scaled time
+	 */
+	public static synchronized void replay(Path archive, double latencyScale, long extraLatencyMillis) throws IOException {
+		TrafficArchive tmp = TrafficArchive.open(archive);
+		start(new ApiTraffic(tmp, true, latencyScale, extraLatencyMillis));
+		log.warn("Replaying {} API responses from {}", tmp.size(), archive);
+	}
+
+	/**
+	 * Starts sending requests for the given hosts to other servers, replacing any previous mode. Requests 
+	 * for other hosts go to the live service.
+	 * @param hosts a map from host name to the base url of the server that stands in for it
+	 */
+	public static synchronized void reroute(Map<String,URL> hosts) throws IOException {
+		ApiTraffic tmp = new ApiTraffic(null, false, 0, 0);
+		tmp.reroutes = new LinkedHashMap<>(hosts);
+		start(tmp);
+		log.warn("Rerouting API traffic for {}", hosts.keySet());
+	}
+
+	/**
+	 * Goes back to the live services, and completes any archive being recorded.
+	 */
+	public static synchronized void stop() throws IOException {
+		ApiTraffic tmp = active;
+		active = null;
+		if (tmp != null && tmp.archive != null) {
+			tmp.archive.close();
+			log.warn("Stopped {} API traffic after {} responses", tmp.replay ? "replaying" : "recording", tmp.archive.size());
+		} else if (tmp != null) {
+			log.warn("Stopped rerouting API traffic");
+		}
+	}
+
+	public static boolean isActive() {
+		return active != null;
+	}
+
+	private static void start(ApiTraffic traffic) throws IOException {
+		install();
+		stop();
+		active = traffic;
+	}
+
+	// URL.setURLStreamHandlerFactory can only be called once per JVM, so the handler is installed
+	// once and checks the active mode on each connection. Urls made before it is installed keep the
+	// default handlers, which are used for live requests. The templates are only kept once the handler
+	// is installed, so that a failure is reported on every attempt rather than only the first.
+	private static synchronized void install() throws IOException {
+		if (httpTemplate != null) return;
+		URL http = new URL("http://localhost/");
+		URL https = new URL("https://localhost/");
+		try {
+			URL.setURLStreamHandlerFactory(protocol ->
+				protocol.equals("http") || protocol.equals("https") ? new Handler(protocol) : null);
+		} catch (Error e) {
+			throw new IOException("Cannot intercept API traffic: another URL stream handler factory is already installed in this JVM", e);
+		}
+		httpTemplate = http;
+		httpsTemplate = https;
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				stop();
+			} catch (IOException e) {
+				log.warn("Could not close API traffic archive: {}", e.getMessage());
+			}
+		}));
+	}
+
+	private static class Handler extends URLStreamHandler {
+
+		String protocol;
+
+		Handler(String protocol) {this.protocol = protocol;}
+
+		@Override
+		protected URLConnection openConnection(URL u) throws IOException {
+			ApiTraffic traffic = active;
+			if (traffic == null) return live(u).openConnection();
+			return new ExchangeConnection(u, traffic);
+		}
+
+		@Override
+		protected URLConnection openConnection(URL u, Proxy p) throws IOException {
+			ApiTraffic traffic = active;
+			if (traffic == null) return live(u).openConnection(p);
+			return new ExchangeConnection(u, traffic);
+		}
+
+		@Override
+		protected int getDefaultPort() {
+			return protocol.equals("https") ? 443 : 80;
+		}
+	}
+
+	/**
+	 * The same url with the default JDK handler.
+	 */
+	static URL live(URL u) throws MalformedURLException {
+		return new URL(u.getProtocol().equals("https") ? httpsTemplate : httpTemplate, u.toExternalForm());
+	}
+
+	private URL rerouted(URL u) throws MalformedURLException {
+		URL base = reroutes.get(u.getHost());
+		if (base == null) return u;
+		String file = u.getFile();
+		String path = base.getPath().replaceAll("/$", "");
+		return new URL(base.getProtocol(), base.getHost(), base.getPort(), path+file);
+	}
+
+	/**
+	 * The url without query parameters that identify the user.
+	 */
+	static String redact(URL u) {
+		String url = u.toExternalForm();
+		int i = url.indexOf('?');
+		if (i == -1) return url;
+		String query = Arrays.stream(url.substring(i+1).split("&"))
+				.filter(p -> !IGNORED_PARAMS.contains(p.split("=",2)[0]))
+				.collect(Collectors.joining("&"));
+		return url.substring(0, i)+(query.isEmpty() ? "" : "?"+query);
+	}
+
+	Response exchange(ExchangeConnection c) throws IOException {
+		if (reroutes != null) return liveExchange(c, rerouted(c.getURL()));
+		String url = redact(c.getURL());
+		String request = c.getRequestMethod()+" "+url;
+		String key = TrafficArchive.key(c.getRequestMethod(), url, c.requestBody());
+		if (replay) {
+			Response out = archive.get(key);
+			if (out == null) throw new IOException("No recorded response for "+request);
+			pause((long) (out.latencyMillis*latencyScale)+extraLatencyMillis);
+			return out;
+		}
+		Response out = liveExchange(c, c.getURL());
+		archive.put(key, request, out);
+		return out;
+	}
+
+	private static void pause(long millis) throws InterruptedIOException {
+		if (millis <= 0) return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Makes the request to the given url using the default JDK handler and reads the whole response.
+	 */
+	static Response liveExchange(ExchangeConnection c, URL target) throws IOException {
+		HttpURLConnection real = (HttpURLConnection) live(target).openConnection();
+		real.setRequestMethod(c.getRequestMethod());
+		c.requestHeaders.forEach((k,vs) -> {
+			if (k != null) vs.forEach(v -> real.addRequestProperty(k, v));
+		});
+		real.setConnectTimeout(c.getConnectTimeout());
+		real.setReadTimeout(c.getReadTimeout());
+		real.setInstanceFollowRedirects(c.getInstanceFollowRedirects());
+		real.setUseCaches(false);
+		long start = System.currentTimeMillis();
+		if (c.body != null) {
+			real.setDoOutput(true);
+			try (OutputStream os = real.getOutputStream()) {
+				os.write(c.requestBody());
+			}
+		}
+		int status = real.getResponseCode();
+		byte[] body = TrafficArchive.readAll(status >= 400 ? real.getErrorStream() : real.getInputStream());
+		return new Response(status, real.getResponseMessage(), real.getHeaderFields(), body, System.currentTimeMillis()-start);
+	}
+
+	/**
+	 * A connection whose request is buffered and whose response is read completely before it is
+	 * handed back to the caller.
+	 */
+	static class ExchangeConnection extends HttpURLConnection {
+
+		ApiTraffic traffic;
+		ByteArrayOutputStream body;
+		Map<String,List<String>> requestHeaders;
+		Response response;
+		List<String[]> headerFields;
+
+		ExchangeConnection(URL u, ApiTraffic traffic) {
+			super(u);
+			this.traffic = traffic;
+		}
+
+		byte[] requestBody() {
+			return body == null ? new byte[0] : body.toByteArray();
+		}
+
+		@Override
+		public void connect() throws IOException {
+			if (connected) return;
+			requestHeaders = getRequestProperties();
+			response = traffic.exchange(this);
+			headerFields = new ArrayList<>();
+			headerFields.add(new String[] {null, "HTTP/1.1 "+response.status+(response.message == null ? "" : " "+response.message)});
+			response.headers.forEach((k,vs) -> {
+				if (k != null) vs.forEach(v -> headerFields.add(new String[] {k,v}));
+			});
+			connected = true;
+		}
+
+		@Override
+		public void disconnect() {}
+
+		@Override
+		public boolean usingProxy() {
+			return false;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			if (connected) throw new ProtocolException("Cannot write output after reading input");
+			if (body == null) {
+				body = new ByteArrayOutputStream();
+				if (method.equals("GET")) method = "POST";
+			}
+			return body;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			connect();
+			if (response.status == 404 || response.status == 410) throw new FileNotFoundException(url.toString());
+			if (response.status >= 400) throw new IOException("Server returned HTTP response code: "+response.status+" for URL: "+url);
+			return new ByteArrayInputStream(response.body);
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			if (!connected || response.status < 400) return null;
+			return new ByteArrayInputStream(response.body);
+		}
+
+		@Override
+		public int getResponseCode() throws IOException {
+			connect();
+			return response.status;
+		}
+
+		@Override
+		public String getResponseMessage() throws IOException {
+			connect();
+			return response.message;
+		}
+
+		@Override
+		public String getHeaderField(String name) {
+			if (!connected) return null;
+			String out = null;
+			for (String[] h: headerFields) {
+				if (h[0] != null && h[0].equalsIgnoreCase(name)) out = h[1];
+			}
+			return out;
+		}
+
+		@Override
+		public Map<String,List<String>> getHeaderFields() {
+			if (!connected) return Collections.emptyMap();
+			Map<String,List<String>> out = new LinkedHashMap<>();
+			headerFields.forEach(h -> out.computeIfAbsent(h[0], k -> new ArrayList<>()).add(h[1]));
+			return Collections.unmodifiableMap(out);
+		}
+
+		@Override
+		public String getHeaderFieldKey(int n) {
+			return connected && n < headerFields.size() ? headerFields.get(n)[0] : null;
+		}
+
+		@Override
+		public String getHeaderField(int n) {
+			return connected && n < headerFields.size() ? headerFields.get(n)[1] : null;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package uk.co.terminological.literaturereview;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint;
+
+/**
+ * Collects metrics for each stage of a build: wall time, API calls and their latencies by endpoint,
+ * cache hit rates, what was written to the graph and in how many transactions, and the largest heap use.
+ * API calls are reported by the {@link ApiFailurePolicy} and graph writes by a neo4j transaction event
+ * handler, and both are attributed to whichever stage is running at the time. The heap in use is sampled
+ * every 100 ms while a stage runs, so a peak between two samples can be missed, but each sample is of the
+ * whole heap at one time, unlike the peaks of the separate heap pools, which are reached at different times.
+ */
+public class BuildMetrics implements ApiFailurePolicy.CallObserver, TransactionEventHandler<long[]> {
+
+	static Logger log = LoggerFactory.getLogger(BuildMetrics.class);
+
+	// upper bounds of the latency histogram buckets in milliseconds; the last bucket is open
+	private static final long[] LATENCY_BUCKETS = {50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+	private static final int NODES_CREATED = 0;
+	private static final int NODES_DELETED = 1;
+	private static final int RELATIONSHIPS_CREATED = 2;
+	private static final int RELATIONSHIPS_DELETED = 3;
+	private static final int PROPERTIES_SET = 4;
+	private static final int LABELS_SET = 5;
+
+	private static final long HEAP_SAMPLE_MILLIS = 100;
+
+	private List<Stage> stages = new ArrayList<>();
+	private volatile Stage current;
+	private Map<String,IntSupplier[]> caches = new LinkedHashMap<>();
+	private ScheduledExecutorService sampler;
+	private ScheduledFuture<?> sampling;
+
+	/**
+	 * Adds a cache whose hit rate is reported for each stage.
+	 * @param hits the number of lookups answered by the cache so far
+	 * @param lookups the number of lookups the cache had to make so far
+	 */
+	public void registerCache(String name, IntSupplier hits, IntSupplier lookups) {
+		caches.put(name, new IntSupplier[] {hits, lookups});
+	}
+
+	public synchronized void clear() {
+		stages.clear();
+	}
+
+	public synchronized void startStage(String name) {
+		if (current != null) endStage();
+		Stage stage = new Stage(name);
+		current = stage;
+		stages.add(stage);
+		if (sampler == null) sampler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("heap-sample").setDaemon(true).build());
+		sampling = sampler.scheduleAtFixedRate(() -> sampleHeap(stage), 0, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private static void sampleHeap(Stage stage) {
+		stage.heapPeakBytes.accumulateAndGet(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), Math::max);
+	}
+
+	public synchronized void endStage() {
+		Stage stage = current;
+		if (stage == null) return;
+		current = null;
+		stage.wallMillis = System.currentTimeMillis()-stage.startMillis;
+		sampling.cancel(false);
+		sampleHeap(stage);
+		caches.forEach((k,v) -> {
+			long[] start = stage.caches.get(k);
+			start[0] = v[0].getAsInt()-start[0];
+			start[1] = v[1].getAsInt()-start[1];
+		});
+		log.info("Stage {}: {} secs, {} api calls, {} transactions, {} nodes and {} relationships created",
+				stage.name, stage.wallMillis/1000,
+				stage.endpoints.values().stream().mapToLong(e -> e.calls.get()).sum(),
+				stage.transactions.get(), stage.writes[NODES_CREATED].get(), stage.writes[RELATIONSHIPS_CREATED].get());
+	}
+
+	@Override
+	public void observe(Endpoint endpoint, long millis, boolean success) {
+		Stage stage = current;
+		if (stage != null) stage.endpoints.get(endpoint).add(millis, success);
+	}
+
+	@Override
+	public long[] beforeCommit(TransactionData data) throws Exception {
+		long[] out = new long[6];
+		out[NODES_CREATED] = count(data.createdNodes());
+		out[NODES_DELETED] = count(data.deletedNodes());
+		out[RELATIONSHIPS_CREATED] = count(data.createdRelationships());
+		out[RELATIONSHIPS_DELETED] = count(data.deletedRelationships());
+		out[PROPERTIES_SET] = count(data.assignedNodeProperties())+count(data.assignedRelationshipProperties());
+		out[LABELS_SET] = count(data.assignedLabels());
+		return out;
+	}
+
+	@Override
+	public void afterCommit(TransactionData data, long[] counts) {
+		Stage stage = current;
+		if (stage == null || counts == null) return;
+		stage.transactions.incrementAndGet();
+		long size = 0;
+		for (int i=0; i<counts.length; i++) {
+			stage.writes[i].addAndGet(counts[i]);
+			size += counts[i];
+		}
+		stage.largestTransaction.accumulateAndGet(size, Math::max);
+	}
+
+	@Override
+	public void afterRollback(TransactionData data, long[] counts) {
+		Stage stage = current;
+		if (stage != null) stage.rollbacks.incrementAndGet();
+	}
+
+	private static long count(Iterable<?> items) {
+		long i = 0;
+		for (@SuppressWarnings("unused") Object o: items) i++;
+		return i;
+	}
+
+	/**
+	 * @return one row per stage
+	 */
+	public synchronized List<Map<String,Object>> stages() {
+		return stages.stream().map(s -> {
+			Map<String,Object> tmp = new LinkedHashMap<>();
+			tmp.put("stage", s.name);
+			tmp.put("started", s.started);
+			tmp.put("wallMillis", s == current ? System.currentTimeMillis()-s.startMillis : s.wallMillis);
+			tmp.put("apiCalls", s.endpoints.values().stream().mapToLong(e -> e.calls.get()).sum());
+			tmp.put("apiFailures", s.endpoints.values().stream().mapToLong(e -> e.failures.get()).sum());
+			tmp.put("transactions", s.transactions.get());
+			tmp.put("rollbacks", s.rollbacks.get());
+			tmp.put("largestTransaction", s.largestTransaction.get());
+			tmp.put("meanTransaction", s.transactions.get() == 0 ? 0.0 :
+				(double) Arrays.stream(s.writes).mapToLong(AtomicLong::get).sum() / s.transactions.get());
+			tmp.put("nodesCreated", s.writes[NODES_CREATED].get());
+			tmp.put("nodesDeleted", s.writes[NODES_DELETED].get());
+			tmp.put("relationshipsCreated", s.writes[RELATIONSHIPS_CREATED].get());
+			tmp.put("relationshipsDeleted", s.writes[RELATIONSHIPS_DELETED].get());
+			tmp.put("propertiesSet", s.writes[PROPERTIES_SET].get());
+			tmp.put("labelsSet", s.writes[LABELS_SET].get());
+			tmp.put("heapPeakBytes", s.heapPeakBytes.get());
+			caches.keySet().forEach(k -> {
+				long[] c = s.caches.get(k);
+				tmp.put(k+"HitRate", s == current || c[0]+c[1] == 0 ? null : (double) c[0]/(c[0]+c[1]));
+			});
+			return tmp;
+		}).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return one row per stage and endpoint called in that stage, with a latency histogram
+	 */
+	public synchronized List<Map<String,Object>> apiCalls() {
+		List<Map<String,Object>> out = new ArrayList<>();
+		stages.forEach(s -> s.endpoints.forEach((endpoint, e) -> {
+			if (e.calls.get() == 0) return;
+			Map<String,Object> tmp = new LinkedHashMap<>();
+			tmp.put("stage", s.name);
+			tmp.put("endpoint", endpoint.name());
+			tmp.put("calls", e.calls.get());
+			tmp.put("failures", e.failures.get());
+			tmp.put("meanMillis", (double) e.totalMillis.get()/e.calls.get());
+			tmp.put("maxMillis", e.maxMillis.get());
+			for (int i=0; i<=LATENCY_BUCKETS.length; i++) {
+				tmp.put(bucketName(i), e.buckets[i].get());
+			}
+			out.add(tmp);
+		}));
+		return out;
+	}
+
+	private static String bucketName(int i) {
+		return i < LATENCY_BUCKETS.length ? "under"+LATENCY_BUCKETS[i]+"ms" : "over"+LATENCY_BUCKETS[i-1]+"ms";
+	}
+
+	/**
+	 * Writes the stage and API call metrics as a json document.
+	 */
+	public void writeJson(Path file) throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(file)) {
+			w.write("{\n  \"stages\": ");
+			w.write(toJson(stages()));
+			w.write(",\n  \"apiCalls\": ");
+			w.write(toJson(apiCalls()));
+			w.write("\n}\n");
+		}
+	}
+
+	private static String toJson(List<Map<String,Object>> rows) {
+		return rows.stream().map(row -> row.entrySet().stream()
+				.map(kv -> quote(kv.getKey())+": "+toJson(kv.getValue()))
+				.collect(Collectors.joining(", ", "{", "}")))
+			.collect(Collectors.joining(",\n    ", "[\n    ", "\n  ]"));
+	}
+
+	private static String toJson(Object value) {
+		if (value == null) return "null";
+		if (value instanceof Double && !Double.isFinite((Double) value)) return "null";
+		if (value instanceof Number || value instanceof Boolean) return value.toString();
+		return quote(value.toString());
+	}
+
+	private static String quote(String s) {
+		StringBuilder out = new StringBuilder("\"");
+		for (char c: s.toCharArray()) {
+			if (c == '"' || c == '\\') out.append('\\').append(c);
+			else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+			else out.append(c);
+		}
+		return out.append('"').toString();
+	}
+
+	private class Stage {
+
+		String name;
+		String started = LocalDateTime.now().toString();
+		long startMillis = System.currentTimeMillis();
+		long wallMillis;
+		AtomicLong heapPeakBytes = new AtomicLong();
+		Map<Endpoint,EndpointCalls> endpoints = new EnumMap<>(Endpoint.class);
+		Map<String,long[]> caches = new LinkedHashMap<>();
+		AtomicLong transactions = new AtomicLong();
+		AtomicLong rollbacks = new AtomicLong();
+		AtomicLong largestTransaction = new AtomicLong();
+		AtomicLong[] writes = new AtomicLong[6];
+
+		Stage(String name) {
+			this.name = name;
+			for (Endpoint e: Endpoint.values()) endpoints.put(e, new EndpointCalls());
+			for (int i=0; i<writes.length; i++) writes[i] = new AtomicLong();
+			// counters at the start of the stage, replaced by the change over the stage when it ends
+			BuildMetrics.this.caches.forEach((k,v) -> caches.put(k, new long[] {v[0].getAsInt(), v[1].getAsInt()}));
+		}
+	}
+
+	private static class EndpointCalls {
+
+		AtomicLong calls = new AtomicLong();
+		AtomicLong failures = new AtomicLong();
+		AtomicLong totalMillis = new AtomicLong();
+		AtomicLong maxMillis = new AtomicLong();
+		AtomicLong[] buckets = new AtomicLong[LATENCY_BUCKETS.length+1];
+
+		EndpointCalls() {
+			for (int i=0; i<buckets.length; i++) buckets[i] = new AtomicLong();
+		}
+
+		void add(long millis, boolean success) {
+			calls.incrementAndGet();
+			if (!success) failures.incrementAndGet();
+			totalMillis.addAndGet(millis);
+			maxMillis.accumulateAndGet(millis, Math::max);
+			int i = 0;
+			while (i < LATENCY_BUCKETS.length && millis >= LATENCY_BUCKETS[i]) i++;
+			buckets[i].incrementAndGet();
+		}
+	}
+}
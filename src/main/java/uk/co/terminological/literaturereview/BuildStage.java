@@ -0,0 +1,30 @@
+package uk.co.terminological.literaturereview;
+
+/**
+ * The stages of a {@link CitationGraph} build, in the order they are run. Each stage finds the work it
+ * needs to do from the graph, so any stage can be rerun on its own once the stages before it have completed.
+ */
+public enum BuildStage {
+
+	PUBMED_SEARCH("search pubmed and fetch the results"),
+	CROSSREF_REFERENCES("expand references of articles with a doi using crossref"),
+	PUBMED_CENTRAL_REFERENCES("expand references of articles with a pmid using pubmed central"),
+	PDF_REFERENCES("extract references from open access pdfs of unreferenced search results"),
+	PUBMED_ID_MAPPING("fetch pubmed metadata for articles missing a pmid or doi"),
+	CROSSREF_METADATA("fetch crossref metadata and citation counts"),
+	UNPAYWALL_METADATA("fetch unpaywall metadata for doi stubs"),
+	PDF_LINKS("find open access pdf links for search results"),
+	AFFILIATIONS("link similar affiliations"),
+	POSTPROCESS("run the build queries in cypherQuery.yaml");
+
+	private String description;
+
+	BuildStage(String description) {
+		this.description = description;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+}
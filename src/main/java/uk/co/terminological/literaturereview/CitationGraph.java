@@ -1,8 +1,16 @@
 package uk.co.terminological.literaturereview;
 
-import static uk.co.terminological.datatypes.StreamExceptions.tryRethrow;
+import static uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint.CROSSREF;
+import static uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint.CROSSREF_CITATION;
+import static uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint.ENTREZ_FETCH;
+import static uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint.ENTREZ_LINK;
+import static uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint.ENTREZ_SEARCH;
+import static uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint.PMCIDCONV;
+import static uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint.UNPAYWALL;
+import static uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint.UNPAYWALL_PDF;
 import static uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels.EXPAND;
 import static uk.co.terminological.literaturegraph.PubMedGraphUtils.lookupDoisForUnreferenced;
+import static uk.co.terminological.literaturegraph.PubMedGraphUtils.mapCermineReferenceDois;
 import static uk.co.terminological.literaturegraph.PubMedGraphUtils.mapCermineReferences;
 import static uk.co.terminological.literaturegraph.PubMedGraphUtils.mapCrossRefReferences;
 import static uk.co.terminological.literaturegraph.PubMedGraphUtils.mapEntriesToNode;
@@ -21,13 +29,24 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.ConsoleAppender;
@@ -36,13 +55,16 @@ import org.apache.log4j.Level;
 import org.apache.log4j.PatternLayout;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.QueryStatistics;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import pl.edu.icm.cermine.exception.AnalysisException;
 import uk.co.terminological.bibliography.BibliographicApiException;
 import uk.co.terminological.bibliography.BibliographicApis;
@@ -61,14 +83,20 @@ import uk.co.terminological.datatypes.FluentList;
 import uk.co.terminological.datatypes.StreamExceptions;
 import uk.co.terminological.jsr223.RClass;
 import uk.co.terminological.jsr223.RMethod;
+import uk.co.terminological.jsr223.ROutput;
+import uk.co.terminological.literaturegraph.AuthorDisambiguator;
+import uk.co.terminological.literaturegraph.AuthorProjection;
+import uk.co.terminological.literaturegraph.BatchedQuery;
+import uk.co.terminological.literaturegraph.BuildCheckpoints;
+import uk.co.terminological.literaturegraph.BulkLoader;
+import uk.co.terminological.literaturegraph.CooccurrenceCounter;
 import uk.co.terminological.literaturegraph.GraphDatabaseApi;
 import uk.co.terminological.literaturegraph.PubMedGraphSchema;
 import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
 import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
 import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
 import uk.co.terminological.literaturegraph.PubMedGraphUtils;
-import uk.co.terminological.nlptools.Similarity;
-import uk.co.terminological.nlptools.StringCrossMapper;
+import uk.co.terminological.literaturegraph.RelationshipWriter;
 
 @RClass(
 		imports = {"ggplot2","dplyr"},
@@ -89,7 +117,37 @@ public class CitationGraph {
 	private String broaderSearch;
 	private LocalDate earliest;
 	private LocalDate latest;
+	private FakeApiServer fakeApiServer;
 	private List<CitationGraphAnalyser> analysers = new ArrayList<>();
+	private int crossRefWorkers = 8;
+	private RateLimiter crossRefLimiter = RateLimiter.create(25);
+	
+	private ApiFailurePolicy failurePolicy = ApiFailurePolicy.defaultPolicy();
+	private CitationResolutionCache citationCache = new CitationResolutionCache();
+	private int pdfDownloadWorkers = 4;
+	private int pdfParseWorkers = 2;
+	private int pdfTimeoutSeconds = 300;
+	private int pdfMemoryMb = 256;
+	private int pdfParseMemoryMb = 1024;
+	private BuildMetrics metrics = new BuildMetrics();
+	private boolean schemaReady = false;
+	private boolean incremental = false;
+	private boolean bulkLoad = false;
+	private LocalDate since;
+	private int citationRefreshDays = 28;
+	private ResponseMemo<String,Optional<CrossRefSingleResult>> crossRefMemo = new ResponseMemo<>("crossref", MEMO_SIZE);
+	private ResponseMemo<String,Optional<UnpaywallResult>> unpaywallMemo = new ResponseMemo<>("unpaywall", MEMO_SIZE);
+	
+	private static final String DEAD_LETTERS = "deadLetters.tsv";
+	private static final String CITATION_CACHE = "citationCache.tsv";
+	private static final String BUILD_METRICS = "buildMetrics.json";
+	private static final String TRAFFIC_CACHE = "trafficCache";
+	private static final long PDF_MAX_BYTES = 32*1024*1024;
+	private static final long ENTREZ_TARGET_LATENCY = 5000;
+	private static final long ENTREZ_TARGET_BATCH_BYTES = 8*1024*1024;
+	private static final int ENTREZ_MAX_IN_FLIGHT = 3000;
+	private static final int MEMO_SIZE = 20000;
+	private static final int WRITE_CHUNK_SIZE = 10000;
 
 	@RMethod
 	public static CitationGraph fromPropertyFile(String propFilename) throws IOException, BibliographicApiException, AnalysisException {
@@ -173,7 +231,14 @@ public class CitationGraph {
 		
 		biblioApi = BibliographicApis.create(secretsPath, cachePath);
 		graphApi = GraphDatabaseApi.create(graphDbPath, graphConfPath);
+		failurePolicy.readDeadLetters(workingDir.resolve(DEAD_LETTERS));
+		citationCache.load(workingDir.resolve(CITATION_CACHE));
 		
+		graphApi.get().registerTransactionEventHandler(metrics);
+		failurePolicy.setObserver(metrics);
+		metrics.registerCache("crossrefMemo", () -> crossRefMemo.hits(), () -> crossRefMemo.loads());
+		metrics.registerCache("unpaywallMemo", () -> unpaywallMemo.hits(), () -> unpaywallMemo.loads());
+		metrics.registerCache("citationCache", citationCache::hits, citationCache::lookups);
 	}
 
 	private static String fromProperty(Properties prop, String name) {
@@ -190,7 +255,32 @@ public class CitationGraph {
 	@RMethod
 	public void shutdown()	{
 		this.analysers.forEach(a -> a.shutdown());
+		graphApi.get().unregisterTransactionEventHandler(metrics);
 		graphApi.shutdown();
+		try {
+			ApiTraffic.stop();
+		} catch (IOException e) {
+			log.warn("Could not close API traffic archive: {}", e.getMessage());
+		}
+		if (fakeApiServer != null) fakeApiServer.stop();
+		try {
+			deleteRecursively(workingDir.resolve(TRAFFIC_CACHE));
+		} catch (IOException e) {
+			log.warn("Could not delete API traffic cache: {}", e.getMessage());
+		}
+	}
+	
+	/**
+	 * Sets the number of concurrent CrossRef lookups and the maximum request rate across all of them.
+	 * The CrossRef polite pool currently allows around 50 requests per second.
+	 * 
+	 * @param workers number of concurrent requests
+	 * @param requestsPerSecond the token bucket refill rate shared by all workers
+	 */
+	@RMethod
+	public void setCrossRefConcurrency(int workers, double requestsPerSecond) {
+		this.crossRefWorkers = workers;
+		this.crossRefLimiter = RateLimiter.create(requestsPerSecond);
 	}
 	
 	@RMethod
@@ -198,17 +288,59 @@ public class CitationGraph {
 		Path propPath= Paths.get(propFilename.replace("~", System.getProperty("user.home")));
 		Properties prop = System.getProperties();
 		prop.load(Files.newInputStream(propPath));
-		this.build(
+		this.setCrossRefConcurrency(
+				Integer.parseInt(prop.getProperty("crossref-workers", Integer.toString(crossRefWorkers))),
+				Double.parseDouble(prop.getProperty("crossref-requests-per-second", Double.toString(crossRefLimiter.getRate())))
+		);
+		this.setCitationRefreshDays(
+				Integer.parseInt(prop.getProperty("citation-refresh-days", Integer.toString(citationRefreshDays))));
+		this.setBulkLoad(Boolean.parseBoolean(prop.getProperty("bulk-load", Boolean.toString(bulkLoad))));
+		this.runBuild(
 				prop.getProperty("search"),
 				prop.getProperty("broader-search"),
 				prop.getProperty("earliest"),
-				prop.getProperty("latest")
+				prop.getProperty("latest"),
+				Boolean.parseBoolean(prop.getProperty("incremental", "false"))
 		);
 	}
 	
 	/**
-	 * Conducts a build process using the supplied configuration 
-	 * Does not check the graph is empty
+	 * Sets the limits on the size of each transaction that writes fetched records into the graph. Batches of
+	 * articles or references that would go over either limit are committed in several transactions.
+	 * @param maxOperations the estimated number of nodes, relationships and properties in a transaction
+	 * @param maxMemoryMb the estimated heap used by the state of a transaction
+	 */
+	@RMethod
+	public void setTransactionLimits(int maxOperations, int maxMemoryMb) {
+		PubMedGraphUtils.setCommitLimits(maxOperations, maxMemoryMb*1024L*1024L);
+	}
+	
+	/**
+	 * Writes the results of the pubmed search into an empty graph with the neo4j batch inserter instead of
+	 * a transaction per batch. The graph is shutdown while the store is written, so no other process can 
+	 * use it during the first stage of a build.
+	 * @param bulkLoad true to use the batch inserter for first builds
+	 */
+	@RMethod
+	public void setBulkLoad(boolean bulkLoad) {
+		this.bulkLoad = bulkLoad;
+	}
+	
+	/**
+	 * Sets how old a citation count can be before an incremental build fetches it again.
+	 * @param days the maximum age in days
+	 */
+	@RMethod
+	public void setCitationRefreshDays(int days) {
+		this.citationRefreshDays = days;
+	}
+	
+	/**
+	 * Conducts a build process using the supplied configuration. The build is run as a series of 
+	 * stages, and the completion of each stage is recorded in the graph. If the graph holds a partial 
+	 * build with the same configuration, the build resumes after the last completed stage. If the 
+	 * configuration is different the checkpoints are cleared and every stage is run again, although
+	 * the graph itself is not emptied.
 	 * @throws IOException
 	 * @throws BibliographicApiException
 	 * @throws AnalysisException
@@ -220,38 +352,217 @@ public class CitationGraph {
 			String earliest,
 			String latest
 		) throws IOException, BibliographicApiException, AnalysisException {
-
+		runBuild(search, broaderSearch, earliest, latest, false);
+	}
+	
+	/**
+	 * Updates an existing graph for a new search or date window. Only articles from the search that are
+	 * not already in the graph are fetched and expanded, citation counts older than the refresh period
+	 * are fetched again, and affiliation matching and the build queries are only rerun if new articles 
+	 * were found. An interrupted update resumes in the same way as a build. 
+	 * @throws IOException
+	 * @throws BibliographicApiException
+	 * @throws AnalysisException
+	 */
+	@RMethod
+	public void updateBuild(
+			String search,
+			String broaderSearch,
+			String earliest,
+			String latest
+		) throws IOException, BibliographicApiException, AnalysisException {
+		runBuild(search, broaderSearch, earliest, latest, true);
+	}
+	
+	private void runBuild(String search, String broaderSearch, String earliest, String latest, boolean incremental) throws IOException {
 		
-		this.search = search;
-		this.broaderSearch = broaderSearch;
-		this.earliest = LocalDate.parse(earliest);
-		this.latest = LocalDate.parse(latest);
+		log.warn("Starting graphDb {}", incremental ? "update" : "build");
+		setup();
 		
-		log.warn("Starting graphDb build");
+		Map<String,String> params = buildParameters(search, broaderSearch, earliest, latest, incremental);
+		Optional<Map<String,String>> saved = BuildCheckpoints.loadParameters(graphApi);
+		// the start date of an update is kept when it is resumed
+		if (saved.map(p -> withoutKey(p, "since")).equals(Optional.of(params))) {
+			params = saved.get();
+		} else {
+			log.info("New build configuration: clearing checkpoints");
+			metrics.clear();
+			if (incremental) params.put("since", LocalDate.now().toString());
+			BuildCheckpoints.clear(graphApi);
+			BuildCheckpoints.saveParameters(params, graphApi);
+		}
+		configure(params);
 		
+		Map<String,String> completed = BuildCheckpoints.completedStages(graphApi);
+		for (BuildStage stage: BuildStage.values()) {
+			if (completed.containsKey(stage.name())) {
+				log.info("Skipping stage {} which completed at {}", stage, completed.get(stage.name()));
+			} else {
+				runStage(stage);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Runs a single build stage, whether or not it has already completed, using the configuration of the 
+	 * last build.
+	 * @param stageName one of the names from getBuildStages()
+	 * @throws IOException
+	 */
+	@RMethod
+	public void runStage(String stageName) throws IOException {
+		setup();
+		configure(BuildCheckpoints.loadParameters(graphApi).orElseThrow(
+				() -> new IOException("No build configuration found in graph. Run build() first.")));
+		runStage(BuildStage.valueOf(stageName.toUpperCase()));
+	}
+	
+	/**
+	 * Lists the build stages in the order they run, and when each was last completed.
+	 * @return a dataframe with stage, description and completed columns
+	 */
+	@RMethod
+	public ROutput.Dataframe getBuildStages() {
+		Map<String,String> completed = BuildCheckpoints.completedStages(graphApi);
+		return Arrays.stream(BuildStage.values()).map(stage -> {
+			Map<String,Object> tmp = new LinkedHashMap<>();
+			tmp.put("stage", stage.name());
+			tmp.put("description", stage.getDescription());
+			tmp.put("completed", completed.get(stage.name()));
+			return tmp;
+		}).collect(ROutput.mapsToDataframe());
+	}
+	
+	/**
+	 * Metrics for each stage run since the build started: wall time, API calls and failures, graph
+	 * writes and transactions, heap high water mark and cache hit rates. The same metrics are written to
+	 * buildMetrics.json in the working directory after each stage.
+	 * @return a dataframe with one row per stage
+	 */
+	@RMethod
+	public ROutput.Dataframe getBuildMetrics() {
+		return metrics.stages().stream().collect(ROutput.mapsToDataframe());
+	}
+	
+	/**
+	 * The API calls made in each stage with a histogram of their latencies.
+	 * @return a dataframe with one row per stage and endpoint
+	 */
+	@RMethod
+	public ROutput.Dataframe getApiMetrics() {
+		return metrics.apiCalls().stream().collect(ROutput.mapsToDataframe());
+	}
+	
+	/**
+	 * Clears the record of completed stages so the next build runs every stage.
+	 */
+	@RMethod
+	public void resetBuild() {
+		BuildCheckpoints.clear(graphApi);
+	}
+	
+	private void setup() {
+		if (schemaReady) return;
 		//if (!graphApi.get().schema().getIndexes().iterator().hasNext()) {
 		PubMedGraphSchema.setupSchema(graphApi);
 		//}
-
-		try (Transaction tx = graphApi.get().beginTx()) {
-			PubMedGraphUtils.setLockNode(graphApi.get().createNode());
-			tx.success();
+		schemaReady = true;
+	}
+	
+	private static Map<String,String> buildParameters(String search, String broaderSearch, String earliest, String latest, boolean incremental) {
+		Map<String,String> out = new HashMap<>();
+		out.put("search", search);
+		out.put("broaderSearch", broaderSearch);
+		out.put("earliest", earliest);
+		out.put("latest", latest);
+		out.put("incremental", Boolean.toString(incremental));
+		out.values().removeIf(v -> v == null);
+		return out;
+	}
+	
+	private static Map<String,String> withoutKey(Map<String,String> map, String key) {
+		Map<String,String> out = new HashMap<>(map);
+		out.remove(key);
+		return out;
+	}
+	
+	private void configure(Map<String,String> params) {
+		this.search = params.get("search");
+		this.broaderSearch = params.get("broaderSearch");
+		this.earliest = LocalDate.parse(params.get("earliest"));
+		this.latest = LocalDate.parse(params.get("latest"));
+		this.incremental = Boolean.parseBoolean(params.get("incremental"));
+		this.since = params.containsKey("since") ? LocalDate.parse(params.get("since")) : null;
+		// responses are only shared within a build
+		this.crossRefMemo = new ResponseMemo<>("crossref", MEMO_SIZE);
+		this.unpaywallMemo = new ResponseMemo<>("unpaywall", MEMO_SIZE);
+	}
+	
+	private void runStage(BuildStage stage) throws IOException {
+		log.warn("Starting build stage {}: {}", stage, stage.getDescription());
+		long start = System.currentTimeMillis();
+		metrics.startStage(stage.name());
+		try {
+			runStageSteps(stage);
+		} finally {
+			metrics.endStage();
+			metrics.writeJson(workingDir.resolve(BUILD_METRICS));
 		}
-		
+		BuildCheckpoints.markComplete(stage.name(), graphApi);
+		BuildCheckpoints.clearSteps(stage.name(), graphApi);
+		writeDeadLetters();
+		log.debug(crossRefMemo.summary());
+		log.debug(unpaywallMemo.summary());
+		log.warn("Completed build stage {} in {} secs", stage, (System.currentTimeMillis()-start)/1000);
+	}
+	
+	private void runStageSteps(BuildStage stage) throws IOException {
+		switch (stage) {
+			case PUBMED_SEARCH: pubMedSearchStage(); break;
+			case CROSSREF_REFERENCES: crossRefReferencesStage(); break;
+			case PUBMED_CENTRAL_REFERENCES: pubMedCentralReferencesStage(); break;
+			case PDF_REFERENCES: pdfReferencesStage(); break;
+			case PUBMED_ID_MAPPING: pubMedIdMappingStage(); break;
+			case CROSSREF_METADATA: crossRefMetadataStage(); break;
+			case UNPAYWALL_METADATA: unpaywallMetadataStage(); break;
+			case PDF_LINKS: pdfLinksStage(); break;
+			case AFFILIATIONS: affiliationsStage(); break;
+			case POSTPROCESS: postProcessStage(); break;
+		}
+	}
+	
+	private void pubMedSearchStage() throws IOException {
 		// get search results for broad catch all terms without any date constraints.
 		// This may be a large set and should be tested to be reasonable
-		EntrezSearch broadSearch = searchPubMed(this.broaderSearch).get();
+		EntrezSearch broadSearch = searchPubMed(this.broaderSearch).orElseThrow(() -> new IOException("Pubmed search failed: "+this.broaderSearch));
 		log.info("Pubmed broad search found {} articles",broadSearch.count().get());
 		
 		// once search is conducted use entrez history to retrieve result.
 		// and write the result into the graph
+		Set<String> pmids = broadSearch.getIds().collect(Collectors.toSet());
 		
-		Set<EntrezEntry> ent = fetchPubMedEntries(broadSearch.getIds().collect(Collectors.toSet()), EXPAND);
-		log.info("Of broad search pubmed found {} articles with metadata in pubmed",ent.size());
-		// At this stage we have search result + metadata
+		if (incremental) {
+			// articles already in the graph are marked as search results but not fetched again
+			Set<String> known = PubMedGraphUtils.lookupPmidsWithMetadata(graphApi);
+			known.retainAll(pmids);
+			PubMedGraphUtils.addLabelsByIds(Labels.ARTICLE, Prop.PMID, known, EXPAND, graphApi);
+			pmids.removeAll(known);
+			log.info("{} articles are already in the graph, {} are new", known.size(), pmids.size());
+		}
 		
+		// a first build is written straight into the store, which is much faster than merging each article
+		int ent = bulkLoad && !incremental && !PubMedGraphUtils.hasArticles(graphApi) ?
+				bulkLoadPubMedEntries(pmids, EXPAND) :
+				fetchPubMedEntries(pmids, EXPAND);
+		log.info("Of broad search pubmed found {} articles with metadata in pubmed",ent);
+		// At this stage we have search result + metadata
+	}
+	
+	private void crossRefReferencesStage() {
 		// Next for everything with a doi, we update metadata and expand one level using xRef
 		Set<String> xrefDois = lookupDoisForUnreferenced(graphApi);
+		if (incremental) xrefDois.retainAll(PubMedGraphUtils.lookupDoisUpdatedSince(since, graphApi));
 		log.info("Looking up {} articles with a doi in xRef", xrefDois.size());
 		Set<String> toDois = findCrossRefReferencesFromNodes(xrefDois);
 		log.info("Found {} sibling articles using xRef", toDois.size());
@@ -259,147 +570,458 @@ public class CitationGraph {
 		// focussing just on those that have been added as a reference - i.e. the new ones from xref
 		toDois.removeAll(xrefDois);
 		log.info("Of which {} xRef articles are new", toDois.size());
-		
+	}
+	
+	private void pubMedCentralReferencesStage() {
 		// link back out using pubmed this time from the set, create the links and fill in metadata from 
 		// pubmed for the new articles... If there was a hit on the doi then remove it from the list of dois
 		Set<String> pmidsLeftInBroaderSet = PubMedGraphUtils.lookupPMIDSForUnreferenced(graphApi);
+		if (incremental) pmidsLeftInBroaderSet.retainAll(PubMedGraphUtils.lookupPMIDSUpdatedSince(since, graphApi));
 		log.info("{} articles without references have pubmedids", pmidsLeftInBroaderSet.size());
 		List<EntrezLink> links2 = findPMCReferencesFromPMIDs(pmidsLeftInBroaderSet);
 		log.info("{} individual targets found in PMC (not articles though)", links2.stream().flatMap(l -> l.toId.stream()).collect(Collectors.toSet()).size());
 		Set<String> pmidStubs = PubMedGraphUtils.lookupPmidStubs(graphApi);
 		log.info("{} of which are new sibling articles found in pubmed",pmidStubs.size());
-		//Set<EntrezEntry> entries5 = fetchPubMedEntries(pmidStubs);
-		//entries5.forEach(e -> e.getDoi().ifPresent(d -> toDois.remove(d)));
-		
+	}
+	
+	private void pdfReferencesStage() throws IOException {
 		// OK we are left with some unreferenced articles in the original broader set
-		Set<String> articlesWithoutRefs = PubMedGraphUtils.lookupDoisForUnreferenced(graphApi);
-		Set<String> doisInBroaderSet = PubMedGraphUtils.lookupBroadSearchDois(graphApi);
-		articlesWithoutRefs.retainAll(doisInBroaderSet);
-		
-		log.info("{} articles in original search remain unreferenced",articlesWithoutRefs.size());
-		
-		articlesWithoutRefs.forEach(
-			StreamExceptions.ignore(
-				doi -> {
-					// Look these up in unpaywall and get pdfs (can do directly)
-					Optional<InputStream> ois = biblioApi.getUnpaywall().getPdfByDoi(doi.toLowerCase());
-					ois.ifPresent( is -> {
-						
-						List<String> refs = biblioApi.getPdfFetcher().extractArticleRefs(doi, is);
-						log.debug("Found {} references for {}", refs.size(), doi);
-						
-						Set<CrossRefWork> works = refs.stream().flatMap(ref -> {
-							log.debug(ref);
-							return biblioApi.getCrossref().findWorkByCitationString(ref).stream();
-						}).collect(Collectors.toSet());
-						
-						log.debug("Found {} xref entries for {} references", works.size(), refs.size());
-						mapCermineReferences(doi, works, graphApi);
-					});
-		}));
-		
+		// these are read from the graph as the pdfs are processed rather than all being held first. Writing
+		// the references only takes articles out of the lookup, as the cited articles are not in the broad search.
+		try (Stream<String> articlesWithoutRefs = PubMedGraphUtils.streamBroadSearchDoisForUnreferenced(incremental ? since : null, graphApi)) {
+			findPdfReferences(articlesWithoutRefs);
+		}
+	}
+	
+	private void pubMedIdMappingStage() {
 		Set<String> doisMissingPMIDS = PubMedGraphUtils.lookupDoisMissingPMID(graphApi);
-		Set<String> PMIDSMissingDois = PubMedGraphUtils.lookupPMIDSMissingDoi(graphApi);
 		// reverse lookup dois that XRef found back but that were not linked to by pubmed
 		// grab those from pubmed and update graph metadata from pubmed
-		// this be a big number and need to be broken into batches?
-		log.info("Mapping {} dois back to pubmed",toDois.size()); 
-		tryRethrow( t -> {
-			Map<String,String> moreDoi2PMIDs = biblioApi.getPmcIdConv().getPMIdsByIdAndType(doisMissingPMIDS, IdType.DOI);
-			PMIDSMissingDois.addAll(moreDoi2PMIDs.values());
-			Set<EntrezEntry> entries4 = fetchPubMedEntries(PMIDSMissingDois);
-			// entries4.forEach(e -> e.getDoi().ifPresent(d -> toDois.remove(d)));
-			log.info("Found pmids for {} entries which were previously missing them",entries4.size());
-		});
-		
+		// the pmids missing dois are read from the graph as they are fetched
+		log.info("Mapping {} dois back to pubmed",doisMissingPMIDS.size()); 
+		int entries4;
+		try (Stream<String> PMIDSMissingDois = PubMedGraphUtils.streamPMIDSMissingDoi(graphApi)) {
+			entries4 = fetchPubMedEntriesForDois(doisMissingPMIDS, PMIDSMissingDois);
+		}
+		log.info("Found pmids for {} entries which were previously missing them",entries4);
+	}
+	
+	private void crossRefMetadataStage() {
 		// there are now probably a lot of articles for which we could get basic metadata from xref
 		// key bit we need is cited by.
-		Set<String> xrefDois2 = PubMedGraphUtils.lookupDoisForUnknownCitedBy(graphApi);
-		Set<String> toDois2 = updateMetadataFromCrossRef(xrefDois2);
+		// in an update earlier misses are not looked up again, only the new articles and their references
+		Set<String> delta = incremental ? PubMedGraphUtils.lookupDoisUpdatedOrReferencedSince(since, graphApi) : null;
+		Set<String> toDois2;
+		try (Stream<String> xrefDois2 = PubMedGraphUtils.streamDoisForUnknownCitedBy(graphApi)) {
+			toDois2 = updateMetadataFromCrossRef(delta == null ? xrefDois2 : xrefDois2.filter(delta::contains));
+		}
 		
 		log.info("Updated {} article metadata from xRef which were previously missing",toDois2.size());
 		
+		if (incremental) {
+			// counts that were just updated are not refreshed again
+			Set<String> refreshed;
+			try (Stream<String> stale = PubMedGraphUtils.streamDoisWithStaleCitedBy(LocalDate.now().minusDays(citationRefreshDays), graphApi)) {
+				refreshed = updateCitedByCountsFromCrossRef(stale.filter(doi -> !toDois2.contains(doi)));
+			}
+			log.info("Refreshed {} citation counts older than {} days from xRef", refreshed.size(), citationRefreshDays);
+		}
+	}
+	
+	private void unpaywallMetadataStage() {
 		// there may be a few straggles for which we cannot get metadata from xref
 		// highly unlikely that we can get them from unpaywall but give it a go. 
-		Set<String> doiStub = PubMedGraphUtils.lookupDoiStubs(graphApi);
-		//log.info("Looking up {} dois with no metadata on Unpaywall",doiStub.size());
-		Set<String> unpaywallSources = updateMetadataFromUnpaywall(doiStub);
+		Set<String> delta = incremental ? PubMedGraphUtils.lookupDoisUpdatedOrReferencedSince(since, graphApi) : null;
+		Set<String> unpaywallSources;
+		try (Stream<String> doiStub = PubMedGraphUtils.streamDoiStubs(graphApi)) {
+			unpaywallSources = updateMetadataFromUnpaywall(delta == null ? doiStub : doiStub.filter(delta::contains));
+		}
 		log.info("Updated {} article metadata from Unpaywall which were previously missing",unpaywallSources.size());
-
+	}
+	
+	private void pdfLinksStage() {
 		// the basic broad search articles - find pdf links.
 		//TODO: should this be determined in response to the pagerank? 
-		Set<String> loadedDois = PubMedGraphUtils.lookupBroadSearchDois(graphApi);
-		//log.info("finding open access pdf links for {} dois",loadedDois.size());
-		Set<String> identifyPdf = updatePdfLinksFromUnpaywall(loadedDois);
+		Set<String> delta = incremental ? PubMedGraphUtils.lookupDoisUpdatedSince(since, graphApi) : null;
+		Set<String> identifyPdf;
+		try (Stream<String> loadedDois = PubMedGraphUtils.streamBroadSearchDois(graphApi)) {
+			identifyPdf = updatePdfLinksFromUnpaywall(delta == null ? loadedDois : loadedDois.filter(delta::contains));
+		}
 		log.info("found open access pdf links for {} dois",identifyPdf.size());
-		
-		StringCrossMapper mapper = new StringCrossMapper(Arrays.asList("University","Institute","Department", "Research","of","at","is","a","for", "Dept"));
+	}
+	
+	private void affiliationsStage() {
+		// in an update only the affiliations from new articles are matched, against all the others
+		Set<Long> sources = incremental ? PubMedGraphUtils.lookupAffiliationsUpdatedSince(since, graphApi) : null;
+		if (sources != null && sources.isEmpty()) {
+			log.info("No new affiliations to match");
+			return;
+		}
+		AffiliationMatcher matcher = new AffiliationMatcher(Arrays.asList("University","Institute","Department", "Research","of","at","is","a","for", "Dept"));
 		log.info("loading affiliations from graph");
 		
 		try (Transaction tx = graphApi.get().beginTx()) {
-			
-			graphApi.get().findNodes(Labels.AFFILIATION).stream().forEach( //.limit(30).forEach(
+			graphApi.get().findNodes(Labels.AFFILIATION).stream().forEach(
 				n -> {
 					String affil = n.getProperty(Prop.ORGANISATION_NAME).toString();
-					mapper.addSource(Long.toString(n.getId()),affil.toString()); 
-					mapper.addTarget(Long.toString(n.getId()),affil.toString());
-			});
-			
-			log.info(mapper.summaryStats());
-			mapper.getTopMatchesBySimilarity(20, d -> d.termsByTfIdf(), Similarity::getCosineDifference).forEach(triple -> {
-				if (!triple.getFirst().equals(triple.getSecond())) {
-					Node in = graphApi.get().getNodeById(Long.parseLong(triple.getFirst().getIdentifier()));
-					Node out = graphApi.get().getNodeById(Long.parseLong(triple.getSecond().getIdentifier()));
-					//Relationship r = 
-					in.createRelationshipTo(out, Rel.SIMILAR_TO);
-				}
-				tx.success();
+					if (sources == null || sources.contains(n.getId())) matcher.addSource(n.getId(),affil); 
+					matcher.addTarget(n.getId(),affil);
 			});
-			
+			tx.success();
 		}
 		
+		// matches from an earlier run are replaced. Affiliations are shared between articles, so in an update
+		// the sources include old affiliations whose earlier matches would otherwise be written twice.
+		if (sources == null) RelationshipWriter.deleteFrom(Labels.AFFILIATION, Rel.SIMILAR_TO, WRITE_CHUNK_SIZE, graphApi);
+		else RelationshipWriter.deleteFrom(sources, Rel.SIMILAR_TO, WRITE_CHUNK_SIZE, graphApi);
+		// only pairs that share a MinHash band are compared, rather than all pairs
+		try (RelationshipWriter writer = new RelationshipWriter(graphApi, Rel.SIMILAR_TO, WRITE_CHUNK_SIZE)) {
+			matcher.getTopMatches(20, 0.0, match -> writer.add(match.source, match.target));
+		}
+	}
+	
+	// stops reading at the first article found
+	private boolean noneUpdatedSince() {
+		try (Stream<String> updated = PubMedGraphUtils.streamPMIDSUpdatedSince(since, graphApi)) {
+			return !updated.findAny().isPresent();
+		}
+	}
+	
+	private void postProcessStage() {
+		if (incremental && noneUpdatedSince()) {
+			log.info("No new articles since {}: build queries not rerun", since);
+			return;
+		}
+		PubMedGraphUtils.logIngestIndexes();
 		Yaml yaml = new Yaml();
 		InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream("cypherQuery.yaml");
 		Map<String, Object> obj = yaml.load(inputStream);
 		
 		@SuppressWarnings("unchecked")
-		List<Map<String,String>> queries = (List<Map<String, String>>) obj.get("build");
-		queries.forEach(map -> {
-			map.forEach((k,v) -> {
-				log.info("Executing: "+k);
-				try (Transaction tx = graphApi.get().beginTx()) {
-					org.neo4j.graphdb.Result r = graphApi.get().execute(v);
-					QueryStatistics q = r.getQueryStatistics();
-					log.info("nodes: added {},removed {}; relationships: added {},removed {}; properties: added {}",
-							q.getNodesCreated(),
-							q.getNodesDeleted(),
-							q.getRelationshipsCreated(),
-							q.getRelationshipsDeleted(),
-							q.getPropertiesSet()
-							);
-					tx.success();
+		List<Map<String,Object>> queries = (List<Map<String, Object>>) obj.get("build");
+		
+		// each step starts once the steps it depends on have finished, so that independent chains of
+		// steps run at the same time. A step that does not list its dependencies follows the step before it.
+		// Steps that finished in an earlier run of this stage are skipped.
+		Map<String,String> completed = BuildCheckpoints.completedStages(graphApi);
+		Map<String,CompletableFuture<Void>> steps = new LinkedHashMap<>();
+		ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("build-query-%d").setDaemon(true).build());
+		String previous = null;
+		for (Map<String,Object> map: queries) {
+			for (Map.Entry<String,Object> e: map.entrySet()) {
+				String name = e.getKey();
+				@SuppressWarnings("unchecked")
+				Map<String,Object> step = e.getValue() instanceof Map ? (Map<String,Object>) e.getValue() : Collections.singletonMap("query", e.getValue());
+				@SuppressWarnings("unchecked")
+				List<String> dependsOn = step.containsKey("dependsOn") ? (List<String>) step.get("dependsOn") :
+					previous == null ? Collections.emptyList() : Collections.singletonList(previous);
+				CompletableFuture<?>[] before = dependsOn.stream().map(d -> {
+					if (!steps.containsKey(d)) throw new IllegalArgumentException(name+" depends on "+d+" which is not an earlier build step");
+					return steps.get(d);
+				}).toArray(CompletableFuture<?>[]::new);
+				String checkpoint = BuildCheckpoints.step(BuildStage.POSTPROCESS.name(), name);
+				if (completed.containsKey(checkpoint)) {
+					log.info("Skipping {} which completed at {}", name, completed.get(checkpoint));
+					steps.put(name, CompletableFuture.allOf(before));
+				} else {
+					steps.put(name, CompletableFuture.allOf(before).thenRunAsync(() -> {
+						runBuildQuery(name, step);
+						BuildCheckpoints.markComplete(checkpoint, graphApi);
+					}, pool));
 				}
+				previous = name;
+			}
+		}
+		try {
+			CompletableFuture.allOf(steps.values().toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			List<String> failed = steps.entrySet().stream().filter(kv -> kv.getValue().isCompletedExceptionally()).map(kv -> kv.getKey()).collect(Collectors.toList());
+			log.error("Build queries failed or not run: {}", failed);
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private void runBuildQuery(String name, Map<String,Object> step) {
+		log.info("Executing: "+name);
+		long start = System.currentTimeMillis();
+		long[] q;
+		if (step.containsKey("disambiguate")) {
+			// author merges computed in the JVM from blocks of authors with the same keys
+			Map<String,Integer> merged = AuthorDisambiguator.run(graphApi);
+			q = new long[] {0, merged.get("total"), 0, 0, 0};
+		} else if (step.containsKey("projection")) {
+			// weighted author networks projected from the article graph in the JVM
+			long created = AuthorProjection.run(Rel.valueOf(step.get("projection").toString()), 
+					Runtime.getRuntime().availableProcessors(), graphApi);
+			q = new long[] {0, 0, created, 0, 0};
+		} else if (step.containsKey("cooccurrence")) {
+			// co-occurrence counts, occurrences, pmi and npmi computed in one pass in the JVM
+			@SuppressWarnings("unchecked")
+			Map<String,String> args = (Map<String,String>) step.get("cooccurrence");
+			long created = CooccurrenceCounter.run(Label.label(args.get("label")), RelationshipType.withName(args.get("relationship")), 
+					Runtime.getRuntime().availableProcessors(), graphApi);
+			q = new long[] {0, 0, created, 0, 0};
+		} else if (step.containsKey("batches")) {
+			// a batched step: the query is run for batches of the keys from the driving query
+			q = BatchedQuery.run(name, 
+					step.get("batches").toString(), 
+					step.get("query").toString(),
+					(Integer) step.getOrDefault("batchSize", 1000),
+					(Integer) step.getOrDefault("parallel", 1),
+					graphApi);
+		} else {
+			q = BatchedQuery.runOnce(step.get("query").toString(), graphApi);
+		}
+		log.info("{} finished in {} secs - nodes: added {},removed {}; relationships: added {},removed {}; properties: added {}",
+				name, (System.currentTimeMillis()-start)/1000, q[0], q[1], q[2], q[3], q[4]);
+	}
+	
+	/**
+	 * Retries the lookups that failed during the build after the API retries were exhausted, or 
+	 * that were skipped while an API was unavailable. These are kept in deadLetters.tsv in the 
+	 * working directory between sessions. Lookups that fail again are kept for a later retry.
+	 * @return the number of lookups that are still failing
+	 * @throws IOException
+	 */
+	@RMethod
+	public int retryFailedLookups() throws IOException {
+		log.info("Retrying {} failed lookups", failurePolicy.deadLetterCount());
+		fetchPubMedEntries(failurePolicy.drainDeadLetters(ENTREZ_FETCH));
+		findPMCReferencesFromPMIDs(failurePolicy.drainDeadLetters(ENTREZ_LINK));
+		findCrossRefReferencesFromNodes(failurePolicy.drainDeadLetters(CROSSREF));
+		updateMetadataFromUnpaywall(failurePolicy.drainDeadLetters(UNPAYWALL).stream());
+		Set<String> pdfDois = failurePolicy.drainDeadLetters(UNPAYWALL_PDF);
+		pdfDois.addAll(failurePolicy.drainDeadLetters(CROSSREF_CITATION));
+		findPdfReferences(pdfDois.stream());
+		fetchPubMedEntriesForDois(failurePolicy.drainDeadLetters(PMCIDCONV), Stream.empty());
+		failurePolicy.drainDeadLetters(ENTREZ_SEARCH).forEach(q -> log.warn("Pubmed search failed and needs a new build: {}", q));
+		writeDeadLetters();
+		return failurePolicy.deadLetterCount();
+	}
+	
+	/**
+	 * The lookups that have failed and are waiting to be retried.
+	 * @return a dataframe of endpoint and id
+	 */
+	@RMethod
+	public ROutput.Dataframe getFailedLookups() {
+		return failurePolicy.deadLetters().stream().collect(ROutput.mapsToDataframe());
+	}
+	
+	private void writeDeadLetters() throws IOException {
+		if (failurePolicy.deadLetterCount() > 0) 
+			log.warn("{} lookups failed and can be retried with retryFailedLookups()", failurePolicy.deadLetterCount());
+		failurePolicy.writeDeadLetters(workingDir.resolve(DEAD_LETTERS));
+	}
+	
+	/**
+	 * Looks up the pmids of the dois, and fetches them from pubmed followed by the other pmids, skipping
+	 * any of those that the dois already gave.
+	 */
+	private int fetchPubMedEntriesForDois(Set<String> dois, Stream<String> pmids) {
+		Set<String> doiPmids = new HashSet<>();
+		if (!dois.isEmpty()) {
+			failurePolicy.call(PMCIDCONV, dois, () -> biblioApi.getPmcIdConv().getPMIdsByIdAndType(dois, IdType.DOI))
+				.ifPresent(moreDoi2PMIDs -> doiPmids.addAll(moreDoi2PMIDs.values()));
+		}
+		return fetchPubMedEntriesInto(Stream.concat(doiPmids.stream(), pmids.filter(pmid -> !doiPmids.contains(pmid))),
+				entries -> mapEntriesToNode(entries.stream(), graphApi, earliest, latest));
+	}
+	
+	/**
+	 * Fetches open access pdfs for the dois from unpaywall, extracts the reference strings using cermine and 
+	 * looks each reference up in crossref. Downloading, parsing and lookups run in separate worker pools. 
+	 * Any pdf that could not be processed because of an API failure is kept for a later retry.
+	 */
+	private void findPdfReferences(Stream<String> dois) throws IOException {
+		// works found by citation lookups in this pass, kept until their citing pdf is written
+		Map<String,CrossRefWork> found = new ConcurrentHashMap<>();
+		PdfReferenceExtractor<String> extractor = new PdfReferenceExtractor<>(
+				pdfDownloadWorkers, pdfParseWorkers, crossRefWorkers, 
+				pdfTimeoutSeconds*1000L, pdfMemoryMb*1024L*1024L, pdfParseMemoryMb*1024L*1024L, PDF_MAX_BYTES);
+		AtomicInteger tried = new AtomicInteger(0);
+		int count = extractor.extract(dois.peek(doi -> tried.incrementAndGet()), 
+			// Look these up in unpaywall and get pdfs (can do directly)
+			doi -> failurePolicy.callOptional(UNPAYWALL_PDF, doi, () -> biblioApi.getUnpaywall().getPdfByDoi(doi.toLowerCase())),
+			(doi, is) -> CitationResolutionCache.distinct(biblioApi.getPdfFetcher().extractArticleRefs(doi, is)),
+			(doi, ref) -> {
+				log.debug(ref);
+				return citationCache.resolve(ref, r -> {
+					Optional<CrossRefWork> work = failurePolicy.call(CROSSREF_CITATION, doi, () -> {
+								crossRefLimiter.acquire();
+								return biblioApi.getCrossref().findWorkByCitationString(r);
+							})
+							.orElseThrow(() -> new IOException("citation lookup failed"))
+							.stream().findFirst();
+					work.ifPresent(w -> w.getIdentifier().ifPresent(id -> found.put(id.toLowerCase(), w)));
+					return work.flatMap(w -> w.getIdentifier());
+				}).map(Stream::of).orElse(Stream.empty());
+			},
+			(doi, citedDois) -> {
+				Set<CrossRefWork> works = new HashSet<>();
+				Set<String> cached = new HashSet<>();
+				citedDois.forEach(cited -> {
+					CrossRefWork w = found.remove(cited);
+					if (w != null) works.add(w); else cached.add(cited);
+				});
+				mapCermineReferences(doi, works, graphApi);
+				// metadata for these is filled in from crossref by a later stage
+				mapCermineReferenceDois(doi, cached, graphApi);
 			});
-		});
-		
-		
-		
+		log.info("Found references in {} of {} pdfs", count, tried.get());
+		log.info(citationCache.summary());
+		citationCache.save(workingDir.resolve(CITATION_CACHE));
+	}
+	
+	/**
+	 * Sets the limits for the stage that extracts references from open access pdfs. Reference lookups
+	 * use the CrossRef concurrency settings.
+	 * 
+	 * @param downloadWorkers number of concurrent pdf downloads
+	 * @param parseWorkers number of pdfs parsed at the same time
+	 * @param timeoutSeconds time allowed to download, parse and look up the references of a single pdf 
+	 * @param memoryMb total size of pdfs held in memory waiting to be parsed
+	 */
+	@RMethod
+	public void setPdfExtractionLimits(int downloadWorkers, int parseWorkers, int timeoutSeconds, int memoryMb) {
+		this.pdfDownloadWorkers = downloadWorkers;
+		this.pdfParseWorkers = parseWorkers;
+		this.pdfTimeoutSeconds = timeoutSeconds;
+		this.pdfMemoryMb = memoryMb;
+	}
+	
+	/**
+	 * Sets the heap reserved by the pdf parses that are running at the same time. Each parse reserves an
+	 * estimate based on the size of its pdf, and waits if the total would be more than this.
+	 * 
+	 * @param parseMemoryMb total heap for running parses
+	 */
+	@RMethod
+	public void setPdfParseMemory(int parseMemoryMb) {
+		this.pdfParseMemoryMb = parseMemoryMb;
+	}
+	
+	/**
+	 * Saves every API response made from now on into an archive that can be replayed with replayApiTraffic().
+	 * The local API cache is bypassed while recording so that every response a build needs is captured.
+	 * The archive is complete once stopApiTraffic() or shutdown() is called.
+	 * @param archiveFile the zip file to create
+	 * @throws IOException
+	 * @throws BibliographicApiException
+	 * @throws AnalysisException
+	 */
+	@RMethod
+	public void recordApiTraffic(String archiveFile) throws IOException, BibliographicApiException, AnalysisException {
+		ApiTraffic.record(Paths.get(archiveFile.replace("~", System.getProperty("user.home"))));
+		useTrafficCache();
+	}
+	
+	/**
+	 * Serves API responses from an archive made by recordApiTraffic() instead of the live services, so 
+	 * that a build can be repeated offline. Requests that were not recorded fail.
+	 * @param archiveFile the zip file to replay
+	 * @param latencyScale the fraction of the recorded response time to wait before each response, 0 for none
+	 * @param extraLatencyMillis a fixed delay added to each response
+	 * @throws IOException
+	 * @throws BibliographicApiException
+	 * @throws AnalysisException
+	 */
+	@RMethod
+	public void replayApiTraffic(String archiveFile, double latencyScale, int extraLatencyMillis) throws IOException, BibliographicApiException, AnalysisException {
+		ApiTraffic.replay(Paths.get(archiveFile.replace("~", System.getProperty("user.home"))), latencyScale, extraLatencyMillis);
+		useTrafficCache();
+	}
+	
+	/**
+	 * Goes back to the live API services and the local API cache.
+	 * @throws IOException
+	 * @throws BibliographicApiException
+	 * @throws AnalysisException
+	 */
+	@RMethod
+	public void stopApiTraffic() throws IOException, BibliographicApiException, AnalysisException {
+		ApiTraffic.stop();
+		useLiveApiCache();
+	}
+	
+	/**
+	 * Starts a local stand in for the Entrez, CrossRef, Unpaywall and PMC id converter services, serving
+	 * a seeded synthetic literature, and sends all API traffic to it instead of the live services. This
+	 * is for load testing builds. Every pubmed search finds a tenth of the synthetic articles published
+	 * between the build dates.
+	 * @param seed the seed for the synthetic literature
+	 * @param articles the number of articles in the synthetic literature
+	 * @param meanReferences the average number of references per article
+	 * @param latencyMillis the mean response time of each service
+	 * @param errorRate the fraction of requests that fail with a server error
+	 * @param requestsPerSecond the rate limit of each service, above which requests get a 429 response, 0 for none
+	 * @throws IOException
+	 * @throws BibliographicApiException
+	 * @throws AnalysisException
+	 */
+	@RMethod
+	public void startFakeApiServer(int seed, int articles, int meanReferences, int latencyMillis, double errorRate, double requestsPerSecond) throws IOException, BibliographicApiException, AnalysisException {
+		stopFakeApiServer();
+		LocalDate from = earliest == null ? LocalDate.now().minusYears(20) : earliest;
+		LocalDate to = latest == null ? LocalDate.now() : latest;
+		fakeApiServer = new FakeApiServer(new SyntheticBibliography(seed, articles, from, to, meanReferences), 0.1);
+		for (FakeApiServer.Service s: FakeApiServer.Service.values()) fakeApiServer.setBehaviour(s, latencyMillis, errorRate, requestsPerSecond);
+		fakeApiServer.start();
+		ApiTraffic.reroute(fakeApiServer.reroutes());
+		useTrafficCache();
+	}
+	
+	/**
+	 * Stops the fake API server and goes back to the live API services and the local API cache.
+	 * @throws IOException
+	 * @throws BibliographicApiException
+	 * @throws AnalysisException
+	 */
+	@RMethod
+	public void stopFakeApiServer() throws IOException, BibliographicApiException, AnalysisException {
+		if (fakeApiServer == null) return;
+		ApiTraffic.stop();
+		fakeApiServer.stop();
+		fakeApiServer = null;
+		useLiveApiCache();
 	}
-
 	
+	private void useApiCache(Path cache) throws IOException, BibliographicApiException, AnalysisException {
+		biblioApi = BibliographicApis.create(secretsPath, cache);
+		crossRefMemo = new ResponseMemo<>("crossref", MEMO_SIZE);
+		unpaywallMemo = new ResponseMemo<>("unpaywall", MEMO_SIZE);
+	}
+	
+	// recording, replay and the fake server start from an empty API cache in the working directory so that
+	// every request reaches them, and the cache is deleted when they stop
+	private void useTrafficCache() throws IOException, BibliographicApiException, AnalysisException {
+		Path cache = workingDir.resolve(TRAFFIC_CACHE);
+		deleteRecursively(cache);
+		Files.createDirectories(cache);
+		useApiCache(cache);
+	}
+	
+	private void useLiveApiCache() throws IOException, BibliographicApiException, AnalysisException {
+		useApiCache(cachePath);
+		deleteRecursively(workingDir.resolve(TRAFFIC_CACHE));
+	}
+	
+	private static void deleteRecursively(Path dir) throws IOException {
+		if (!Files.exists(dir)) return;
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
 
 	private Optional<EntrezSearch> searchPubMed(String search) {
-		try {
-			Optional<EntrezSearch> tmp = biblioApi.getEntrez()
-					.buildSearchQuery(search)
-					.betweenDates(earliest, latest)
-					.execute();
-			log.info("Pubmed search found: "+tmp.flatMap(o -> o.count()).orElse(0)+" results");
-			return tmp;
-		} catch (BibliographicApiException e) {
-			e.printStackTrace();
-			return Optional.empty();
-		}
+		Optional<EntrezSearch> tmp = failurePolicy.callOptional(ENTREZ_SEARCH, search, () -> biblioApi.getEntrez()
+				.buildSearchQuery(search)
+				.betweenDates(earliest, latest)
+				.execute());
+		log.info("Pubmed search found: "+tmp.flatMap(o -> o.count()).orElse(0)+" results");
+		return tmp;
 	}
 
 	/*Optional<Search> fullSearchPubMed(String search) {
@@ -433,23 +1055,66 @@ public class CitationGraph {
 		return out;
 	}*/
 
-	private Set<EntrezEntry> fetchPubMedEntries(Collection<String> pmids, Label... labels) {
-		Set<EntrezEntry> entriesOut = new HashSet<>();
-		List<String> deferred = new ArrayList<>(pmids);
-		while (!deferred.isEmpty()) {
-			try {
-				int size = 300 > deferred.size()? deferred.size(): 300;
-				Set<EntrezEntry> entries = biblioApi.getEntrez().getPMEntriesByPMIds(deferred.subList(0, size));
-				mapEntriesToNode(entries.stream(), graphApi, earliest, latest, labels);
-				log.info("retrieved {} articles referred to in broad search",entries.stream().count());
-				deferred.subList(0, size).clear();
-				entriesOut.addAll(entries);
-			} catch (BibliographicApiException e) {
-				e.printStackTrace();
-			}
+	/**
+	 * Fetches pubmed entries in batches and writes them to the graph. The next batch is fetched 
+	 * while the current one is being written, and the batch size adapts to the Entrez response time
+	 * and payload.
+	 * @return the number of entries written
+	 */
+	private int fetchPubMedEntries(Collection<String> pmids, Label... labels) {
+		return fetchPubMedEntriesInto(pmids, entries -> mapEntriesToNode(entries.stream(), graphApi, earliest, latest, labels), labels);
+	}
+	
+	/**
+	 * Fetches the entries into a new loader and writes them into the graph with the batch inserter.
+	 */
+	private int bulkLoadPubMedEntries(Collection<String> pmids, Label... labels) throws IOException {
+		BulkLoader loader = new BulkLoader();
+		fetchPubMedEntriesInto(pmids, entries -> loader.add(entries, labels));
+		graphApi.get().unregisterTransactionEventHandler(metrics);
+		schemaReady = false;
+		int out;
+		try {
+			out = loader.write(graphApi);
+		} finally {
+			// the graph is reopened as a new database, whether or not the load succeeded
+			graphApi.get().registerTransactionEventHandler(metrics);
+			setup();
 		}
-		return entriesOut;
-		
+		if (labels.length > 0) {
+			Set<String> failed = failurePolicy.peekDeadLetters(ENTREZ_FETCH);
+			failed.retainAll(pmids);
+			PubMedGraphUtils.mapPmidStubs(failed, graphApi, labels);
+		}
+		return out;
+	}
+	
+	private int fetchPubMedEntriesInto(Collection<String> pmids, Consumer<Collection<EntrezEntry>> writer, Label... labels) {
+		int out = fetchPubMedEntriesInto(pmids.stream(), writer);
+		if (labels.length > 0) {
+			// keep the labels on the articles we failed to fetch so a retry does not lose them
+			Set<String> failed = failurePolicy.peekDeadLetters(ENTREZ_FETCH);
+			failed.retainAll(pmids);
+			PubMedGraphUtils.mapPmidStubs(failed, graphApi, labels);
+		}
+		return out;
+	}
+	
+	/**
+	 * Fetches pmids as they are read from a stream, such as a graph lookup.
+	 */
+	private int fetchPubMedEntriesInto(Stream<String> pmids, Consumer<Collection<EntrezEntry>> writer) {
+		PipelinedBatchFetcher<String,EntrezEntry> fetcher = new PipelinedBatchFetcher<>(
+				"entrez", 300, 20, 1000, 
+				ENTREZ_TARGET_LATENCY, ENTREZ_TARGET_BATCH_BYTES, ENTREZ_MAX_IN_FLIGHT, 
+				PubMedGraphUtils::estimateBytes);
+		return fetcher.fetchAndWrite(pmids,
+			batch -> failurePolicy.call(ENTREZ_FETCH, batch, () -> biblioApi.getEntrez().getPMEntriesByPMIds(batch))
+				.orElse(Collections.emptySet()),
+			entries -> {
+				writer.accept(entries);
+				log.info("retrieved {} articles referred to in broad search",entries.size());
+			});
 	}
 
 
@@ -475,7 +1140,8 @@ public class CitationGraph {
 
 	
 	private List<EntrezLink> findPMCReferencesFromPMIDs(Collection<String> pmids) {
-		return findPMCReferences(biblioApi.getEntrez().buildLinksQueryForIdsAndDatabase(pmids, Database.PUBMED));
+		if (pmids.isEmpty()) return Collections.emptyList();
+		return findPMCReferences(pmids, biblioApi.getEntrez().buildLinksQueryForIdsAndDatabase(pmids, Database.PUBMED));
 	}
 
 	/*List<Link> findPMCReferencesFromSearch(Search search) {
@@ -484,27 +1150,22 @@ public class CitationGraph {
 	
 	//https://eutils.ncbi.nlm.nih.gov/entrez/eutils/elink.fcgi?dbfrom=pmc&db=pubmed&id=212403&cmd=neighbor&linkname=pmc_refs_pubmed
 	// provides pubmed ids for all citations if has a pmc id
-	private List<EntrezLink> findPMCReferences(ELinksQueryBuilder elqb) {
-		try {
+	private List<EntrezLink> findPMCReferences(Collection<String> pmids, ELinksQueryBuilder elqb) {
+		List<EntrezLink> tmp = failurePolicy.call(ENTREZ_LINK, pmids, () -> elqb
+				.toDatabase(Database.PUBMED)
+				.command(Command.NEIGHBOR)
+				.withLinkname("pubmed_pubmed_refs")
+				.execute())
+			.map(r -> r.stream()
+				.flatMap(u -> u.getLinks().stream())
+				.collect(Collectors.toList()))
+			.orElse(Collections.emptyList());
 
-			List<EntrezLink> tmp = elqb
-					.toDatabase(Database.PUBMED)
-					.command(Command.NEIGHBOR)
-					.withLinkname("pubmed_pubmed_refs")
-					.execute().stream()
-					.flatMap(u -> u.getLinks().stream())
-					.collect(Collectors.toList());
+		log.info("Entrez found "+tmp.size()+" pubmed articles referenced by pubmed articles");
 
-			log.info("Entrez found "+tmp.size()+" pubmed articles referenced by pubmed articles");
+		mapPubMedCentralReferences(tmp, graphApi);
 
-			mapPubMedCentralReferences(tmp, graphApi);
-
-			return tmp;
-
-		} catch (BibliographicApiException e) {
-			e.printStackTrace();
-		}
-		return Collections.emptyList();
+		return tmp;
 
 	}
 
@@ -543,59 +1204,89 @@ public class CitationGraph {
 	/**
 	 * gets a record for each doi, updates the metadata a matching article in the graph or creates one
 	 * creates a stub record with basic metadata for each of the citations (or matches an existing record)
-	 * creates the links between cited and citing
+	 * creates the links between cited and citing.
+	 * Lookups are made concurrently but written to the graph one at a time on this thread.
 	 * @param dois
 	 * @return a set of dois representing the references
 	 */
 	private Set<String> findCrossRefReferencesFromNodes(Set<String> dois) {
 		Set<String> outDois = new HashSet<>();
-		for (String doi: dois) {
-			Optional<CrossRefSingleResult> tmp = biblioApi.getCrossref().getByDoi(doi);
-			tmp.ifPresent(t -> updateCrossRefMetadata(t.getWork(),graphApi));
-			List<CrossRefReference> referencedDois = tmp.stream()
-					.map(t -> t.getWork())
-					.flatMap(w -> w.getReferences())
-					.collect(Collectors.toList());
-			log.debug("Crossref found "+referencedDois.size()+" articles related to: "+doi);
-			mapCrossRefReferences(doi,referencedDois,graphApi);
-			outDois.addAll(referencedDois.stream().flatMap(c -> c.getIdentifier().stream()).map(s -> s.toLowerCase()).collect(Collectors.toSet()));
-		}
+		crossRefFetcher().fetchAndWrite(dois, 
+			doi -> crossRefByDoi(doi),
+			(doi, tmp) -> {
+				tmp.ifPresent(t -> updateCrossRefMetadata(t.getWork(),graphApi));
+				List<CrossRefReference> referencedDois = tmp.stream()
+						.map(t -> t.getWork())
+						.flatMap(w -> w.getReferences())
+						.collect(Collectors.toList());
+				log.debug("Crossref found "+referencedDois.size()+" articles related to: "+doi);
+				mapCrossRefReferences(doi,referencedDois,graphApi);
+				outDois.addAll(referencedDois.stream().flatMap(c -> c.getIdentifier().stream()).map(s -> s.toLowerCase()).collect(Collectors.toSet()));
+			});
 		return outDois;
 	}
 
-	private Set<String> updateMetadataFromCrossRef(Set<String> dois) {
+	private Set<String> updateMetadataFromCrossRef(Stream<String> dois) {
 		Set<String> outDois = new HashSet<>();
-		for (String doi: dois) {
-			Optional<CrossRefSingleResult> tmp = biblioApi.getCrossref().getByDoi(doi);
-			tmp.ifPresent(t -> {
+		crossRefFetcher().fetchAndWrite(dois, 
+			doi -> crossRefByDoi(doi),
+			(doi, tmp) -> {
+				tmp.ifPresent(t -> {
 					Optional<String> out = updateCrossRefMetadata(t.getWork(),graphApi);
 					out.ifPresent(o->outDois.add(o.toLowerCase()));
-					});
-		}
+				});
+			});
+		return outDois;
+	}
+	
+	private Set<String> updateCitedByCountsFromCrossRef(Stream<String> dois) {
+		Set<String> outDois = new HashSet<>();
+		crossRefFetcher().fetchAndWrite(dois, 
+			doi -> crossRefByDoi(doi),
+			(doi, tmp) -> tmp.flatMap(t -> PubMedGraphUtils.updateCitedByCount(t.getWork(), graphApi)).ifPresent(outDois::add));
 		return outDois;
 	}
 	
-	private Set<String> updateMetadataFromUnpaywall(Set<String> dois) {
+	/**
+	 * Crossref records are remembered for the build so a doi is only fetched once, whichever stage asks for it.
+	 * Every request, including each retry, waits for the crossref rate limit.
+	 */
+	private Optional<CrossRefSingleResult> crossRefByDoi(String doi) {
+		return failurePolicy.callOptional(CROSSREF, doi, () -> crossRefMemo.get(doi.toLowerCase(), () -> {
+			crossRefLimiter.acquire();
+			return biblioApi.getCrossref().getByDoi(doi);
+		}));
+	}
+	
+	private Optional<UnpaywallResult> unpaywallByDoi(String doi) {
+		return failurePolicy.callOptional(UNPAYWALL, doi, () -> unpaywallMemo.get(doi.toLowerCase(), () -> biblioApi.getUnpaywall().getUnpaywallByDoi(doi.toLowerCase())));
+	}
+	
+	private ConcurrentFetcher crossRefFetcher() {
+		return new ConcurrentFetcher("crossref", crossRefWorkers);
+	}
+	
+	private Set<String> updateMetadataFromUnpaywall(Stream<String> dois) {
 		Set<String> out = new HashSet<String>();
-		for (String doi: dois) {
-			Optional<UnpaywallResult> res = biblioApi.getUnpaywall().getUnpaywallByDoi(doi.toLowerCase());
+		dois.forEach(doi -> {
+			Optional<UnpaywallResult> res = unpaywallByDoi(doi);
 			res.ifPresent(r -> {
 				log.debug("found unpaywall entry for: "+doi);
 				updateUnpaywallMetadata(r, graphApi).ifPresent(d -> out.add(d.toLowerCase()));
 			});
-		}
+		});
 		return out;
 	}
 	
-	private Set<String> updatePdfLinksFromUnpaywall(Set<String> dois) {
+	private Set<String> updatePdfLinksFromUnpaywall(Stream<String> dois) {
 		Set<String> out = new HashSet<String>();
-		for (String doi: dois) {
-			Optional<UnpaywallResult> res = biblioApi.getUnpaywall().getUnpaywallByDoi(doi.toLowerCase());
+		dois.forEach(doi -> {
+			Optional<UnpaywallResult> res = unpaywallByDoi(doi);
 			res.ifPresent(r -> {
 				log.debug("found unpaywall entry for: "+doi);
 				updatePdfLink(r, graphApi).ifPresent(d -> out.add(d.toLowerCase()));
 			});
-		}
+		});
 		return out;
 	}
 	
@@ -0,0 +1,188 @@
+package uk.co.terminological.literaturereview;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Remembers which doi a free text citation string resolved to, and which citation strings did not
+ * resolve at all, between builds. Citation strings are keyed by a normalised fingerprint so that the
+ * same reference formatted slightly differently in different pdfs is only looked up once. Lookups for the
+ * same fingerprint that are in progress at the same time are merged into one.
+ */
+public class CitationResolutionCache {
+
+	static Logger log = LoggerFactory.getLogger(CitationResolutionCache.class);
+
+	private static final String MISS = "";
+	private static final int MISS_EXPIRY_DAYS = 180;
+
+	@FunctionalInterface
+	public interface CitationLookup {
+		/**
+		 * @return the doi the citation resolves to, or empty if the citation does not resolve
+		 * @throws Exception if the lookup failed, in which case the result is not cached
+		 */
+		Optional<String> lookup(String citation) throws Exception;
+	}
+
+	private Map<String,Entry> resolved = new ConcurrentHashMap<>();
+	private Map<String,CompletableFuture<Optional<String>>> inFlight = new ConcurrentHashMap<>();
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger misses = new AtomicInteger();
+	private AtomicInteger lookups = new AtomicInteger();
+
+	private static class Entry {
+		String doi;
+		LocalDate date;
+		Entry(String doi, LocalDate date) {this.doi = doi; this.date = date;}
+	}
+
+	/**
+	 * A fingerprint of the citation which ignores case, accents, punctuation, leading reference
+	 * numbers, and the order and repetition of words.
+	 */
+	public static String key(String citation) {
+		String s = Normalizer.normalize(citation, Normalizer.Form.NFKD).replaceAll("\\p{M}", "");
+		s = s.toLowerCase(Locale.ROOT);
+		s = s.replaceFirst("^\\s*(\\[\\d+\\]|\\(\\d+\\)|\\d+\\.)", "");
+		s = s.replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+		return Arrays.stream(s.split(" ")).filter(t -> !t.isEmpty()).collect(Collectors.toCollection(TreeSet::new)).stream()
+				.collect(Collectors.joining(" "));
+	}
+
+	/**
+	 * Removes citations that have the same fingerprint as an earlier one in the collection.
+	 */
+	public static List<String> distinct(Collection<String> citations) {
+		Set<String> seen = new HashSet<>();
+		List<String> out = new ArrayList<>();
+		citations.forEach(c -> {
+			String k = key(c);
+			if (!k.isEmpty() && seen.add(k)) out.add(c);
+		});
+		return out;
+	}
+
+	/**
+	 * Resolves a citation to a doi using the cache, or the lookup if the citation has not been seen before.
+	 * A failed lookup is not cached, and is thrown both here and to any resolution of the same citation
+	 * that was waiting for it.
+	 * @return the doi or empty if the citation does not resolve
+	 * @throws RuntimeException if the lookup failed, wrapping the failure if it was a checked exception
+	 */
+	public Optional<String> resolve(String citation, CitationLookup lookup) {
+		String key = key(citation);
+		Entry cached = resolved.get(key);
+		if (cached != null) {
+			if (cached.doi.equals(MISS)) {
+				misses.incrementAndGet();
+				return Optional.empty();
+			}
+			hits.incrementAndGet();
+			return Optional.of(cached.doi);
+		}
+		CompletableFuture<Optional<String>> mine = new CompletableFuture<>();
+		CompletableFuture<Optional<String>> existing = inFlight.putIfAbsent(key, mine);
+		if (existing != null) {
+			try {
+				Optional<String> out = existing.join();
+				hits.incrementAndGet();
+				return out;
+			} catch (CompletionException e) {
+				throw unchecked(e.getCause());
+			}
+		}
+		try {
+			// another lookup for this key may have finished since we checked
+			cached = resolved.get(key);
+			if (cached != null) {
+				Optional<String> out = cached.doi.equals(MISS) ? Optional.empty() : Optional.of(cached.doi);
+				mine.complete(out);
+				return out;
+			}
+			lookups.incrementAndGet();
+			Optional<String> out = lookup.lookup(citation).map(d -> d.toLowerCase());
+			resolved.put(key, new Entry(out.orElse(MISS), LocalDate.now()));
+			mine.complete(out);
+			return out;
+		} catch (Exception e) {
+			mine.completeExceptionally(e);
+			throw unchecked(e);
+		} finally {
+			inFlight.remove(key, mine);
+		}
+	}
+
+	private static RuntimeException unchecked(Throwable e) {
+		Throwables.throwIfUnchecked(e);
+		return new RuntimeException("citation lookup failed: "+e.getMessage(), e);
+	}
+
+	/**
+	 * @return the number of resolutions answered from the cache, including cached misses
+	 */
+	public int hits() {
+		return hits.get()+misses.get();
+	}
+
+	/**
+	 * @return the number of resolutions that had to be looked up
+	 */
+	public int lookups() {
+		return lookups.get();
+	}
+
+	public String summary() {
+		return "citation cache: "+resolved.size()+" entries, "+hits.get()+" hits, "+misses.get()+" cached misses, "+lookups.get()+" lookups";
+	}
+
+	/**
+	 * Loads a cache written by {@link #save(Path)}, dropping misses that are old enough that the citation may
+	 * have since been indexed.
+	 */
+	public void load(Path file) throws IOException {
+		if (!Files.exists(file)) return;
+		LocalDate cutoff = LocalDate.now().minusDays(MISS_EXPIRY_DAYS);
+		try (Stream<String> lines = Files.lines(file)) {
+			lines.map(l -> l.split("\t",-1)).filter(a -> a.length == 3).forEach(a -> {
+				LocalDate date = LocalDate.parse(a[2]);
+				if (!a[1].equals(MISS) || date.isAfter(cutoff)) resolved.put(a[0], new Entry(a[1], date));
+			});
+		}
+		log.debug("Loaded {} cached citations", resolved.size());
+	}
+
+	public void save(Path file) throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(file)) {
+			for (Map.Entry<String,Entry> kv: resolved.entrySet()) {
+				w.write(kv.getKey()+"\t"+kv.getValue().doi+"\t"+kv.getValue().date);
+				w.newLine();
+			}
+		}
+	}
+}
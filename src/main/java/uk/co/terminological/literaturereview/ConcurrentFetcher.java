@@ -0,0 +1,97 @@
+package uk.co.terminological.literaturereview;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs a blocking fetch over a collection of identifiers on a pool of worker threads. The fetch
+ * waits for the rate limit of its endpoint itself, so that retries are throttled too. Results are
+ * handed back one at a time to a writer running on the calling thread, so graph writes stay single
+ * threaded and see the same data they would if the fetches had been done one after another.
+ */
+public class ConcurrentFetcher {
+
+	static Logger log = LoggerFactory.getLogger(ConcurrentFetcher.class);
+
+	private String name;
+	private int workers;
+
+	public ConcurrentFetcher(String name, int workers) {
+		this.name = name;
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Fetches every input concurrently and passes each result to the writer as it completes.
+	 * At most a few times the worker count of results are held in memory waiting for the writer.
+	 *
+	 * @param inputs the identifiers to fetch
+	 * @param fetch a blocking call for a single identifier. This is called on a worker thread.
+	 * @param writer consumes the identifier and its result. This is called on the calling thread.
+	 * @return the number of results written
+	 */
+	public <I,O> int fetchAndWrite(Collection<I> inputs, Function<I,O> fetch, BiConsumer<I,O> writer) {
+		return fetchAndWrite(inputs.iterator(), " of "+inputs.size(), fetch, writer);
+	}
+
+	/**
+	 * Fetches inputs as they are read from a stream, such as a graph lookup, so that they are never all
+	 * held in memory. The stream is read on the calling thread and is not closed.
+	 */
+	public <I,O> int fetchAndWrite(Stream<I> inputs, Function<I,O> fetch, BiConsumer<I,O> writer) {
+		return fetchAndWrite(inputs.iterator(), "", fetch, writer);
+	}
+
+	private <I,O> int fetchAndWrite(Iterator<I> it, String of, Function<I,O> fetch, BiConsumer<I,O> writer) {
+		ExecutorService pool = Executors.newFixedThreadPool(workers,
+				new ThreadFactoryBuilder().setNameFormat(name+"-%d").setDaemon(true).build());
+		CompletionService<Entry<I,O>> completion = new ExecutorCompletionService<>(pool);
+		int window = workers*4;
+		int inFlight = 0;
+		int written = 0;
+		long start = System.currentTimeMillis();
+		try {
+			while (it.hasNext() || inFlight > 0) {
+				while (it.hasNext() && inFlight < window) {
+					I input = it.next();
+					completion.submit(() -> new SimpleImmutableEntry<I,O>(input, fetch.apply(input)));
+					inFlight++;
+				}
+				Future<Entry<I,O>> done = completion.take();
+				inFlight--;
+				try {
+					Entry<I,O> result = done.get();
+					writer.accept(result.getKey(), result.getValue());
+					written++;
+					if (written % 1000 == 0) log.info("{}: written {}{}", name, written, of);
+				} catch (ExecutionException e) {
+					log.warn("{}: fetch failed: {}", name, e.getCause().getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			log.warn("{}: interrupted after {}{}", name, written, of);
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+		}
+		log.debug("{}: fetched {} items in {} ms", name, written, System.currentTimeMillis()-start);
+		return written;
+	}
+
+}
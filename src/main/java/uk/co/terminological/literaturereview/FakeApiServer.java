@@ -0,0 +1,465 @@
+package uk.co.terminological.literaturereview;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.co.terminological.literaturereview.SyntheticBibliography.Article;
+import uk.co.terminological.literaturereview.SyntheticBibliography.Author;
+
+/**
+ * An embedded http server that stands in for the Entrez (esearch, efetch and elink), CrossRef works,
+ * Unpaywall and PMC id converter services, serving records from a {@link SyntheticBibliography} in the
+ * formats the real services use. Each service can be given a response time, an error rate and a rate
+ * limit, above which requests get a 429 response. The server keeps the real paths of each service so
+ * that {@link ApiTraffic#reroute(Map)} can send traffic for the real hosts to it. Open access pdfs are
+ * not generated, so unpaywall never reports one.
+ */
+public class FakeApiServer {
+
+	static Logger log = LoggerFactory.getLogger(FakeApiServer.class);
+
+	public static enum Service {
+		ENTREZ("eutils.ncbi.nlm.nih.gov"),
+		CROSSREF("api.crossref.org"),
+		UNPAYWALL("api.unpaywall.org"),
+		PMCIDCONV("www.ncbi.nlm.nih.gov");
+
+		String host;
+		Service(String host) {this.host = host;}
+	}
+
+	private static class Behaviour {
+		long latencyMillis;
+		double errorRate;
+		RateLimiter limiter;
+		Behaviour(long latencyMillis, double errorRate, double requestsPerSecond) {
+			this.latencyMillis = latencyMillis;
+			this.errorRate = errorRate;
+			this.limiter = requestsPerSecond > 0 ? RateLimiter.create(requestsPerSecond) : null;
+		}
+	}
+
+	private SyntheticBibliography literature;
+	private double searchFraction;
+	private Map<Service,Behaviour> behaviours = new EnumMap<>(Service.class);
+	private Map<String,List<Integer>> history = new ConcurrentHashMap<>();
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * @param literature the articles to serve
+	 * @param searchFraction the fraction of articles in the date range that any pubmed search finds
+	 */
+	public FakeApiServer(SyntheticBibliography literature, double searchFraction) {
+		this.literature = literature;
+		this.searchFraction = searchFraction;
+		for (Service s: Service.values()) setBehaviour(s, 0, 0, 0);
+	}
+
+	/**
+	 * @param latencyMillis the mean response time, which is exponentially distributed
+	 * @param errorRate the fraction of requests that get a 500 response
+	 * @param requestsPerSecond the rate above which requests get a 429 response, or 0 for no limit
+	 */
+	public void setBehaviour(Service service, long latencyMillis, double errorRate, double requestsPerSecond) {
+		behaviours.put(service, new Behaviour(latencyMillis, errorRate, requestsPerSecond));
+	}
+
+	/**
+	 * Starts the server on a free local port.
+	 * @return the port
+	 */
+	public int start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("fake-api-%d").setDaemon(true).build());
+		server.setExecutor(executor);
+		server.createContext("/entrez/eutils/esearch.fcgi", ex -> handle(ex, Service.ENTREZ, this::esearch));
+		server.createContext("/entrez/eutils/efetch.fcgi", ex -> handle(ex, Service.ENTREZ, this::efetch));
+		server.createContext("/entrez/eutils/elink.fcgi", ex -> handle(ex, Service.ENTREZ, this::elink));
+		server.createContext("/works", ex -> handle(ex, Service.CROSSREF, this::works));
+		server.createContext("/v2/", ex -> handle(ex, Service.UNPAYWALL, this::unpaywall));
+		server.createContext("/pmc/utils/idconv/", ex -> handle(ex, Service.PMCIDCONV, this::idconv));
+		server.start();
+		log.warn("Fake API server on port {} serving {}", port(), literature);
+		return port();
+	}
+
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		if (server != null) server.stop(0);
+		if (executor != null) executor.shutdownNow();
+	}
+
+	/**
+	 * @return the real host names of the services, each mapped to this server
+	 */
+	public Map<String,URL> reroutes() throws IOException {
+		Map<String,URL> out = new LinkedHashMap<>();
+		for (Service s: Service.values()) out.put(s.host, new URL("http", "localhost", port(), "/"));
+		return out;
+	}
+
+	private static class Reply {
+		int status;
+		String contentType;
+		String body;
+		Reply(int status, String contentType, String body) {this.status = status; this.contentType = contentType; this.body = body;}
+		static Reply xml(String body) {return new Reply(200, "text/xml; charset=UTF-8", "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"+body);}
+		static Reply json(String body) {return new Reply(200, "application/json;charset=UTF-8", body);}
+		static Reply notFound(String body) {return new Reply(404, "application/json;charset=UTF-8", body);}
+	}
+
+	private void handle(HttpExchange ex, Service service, Function<Map<String,List<String>>,Reply> handler) throws IOException {
+		try {
+			Behaviour b = behaviours.get(service);
+			Reply reply;
+			if (b.limiter != null && !b.limiter.tryAcquire()) {
+				ex.getResponseHeaders().add("Retry-After", "1");
+				reply = new Reply(429, "text/plain", "Too Many Requests");
+			} else {
+				if (b.latencyMillis > 0) Thread.sleep((long) (-Math.log(1-ThreadLocalRandom.current().nextDouble())*b.latencyMillis));
+				if (ThreadLocalRandom.current().nextDouble() < b.errorRate) {
+					reply = new Reply(500, "text/plain", "Internal Server Error");
+				} else {
+					Map<String,List<String>> params = params(ex);
+					reply = handler.apply(params);
+				}
+			}
+			byte[] body = reply.body.getBytes(StandardCharsets.UTF_8);
+			ex.getResponseHeaders().add("Content-Type", reply.contentType);
+			ex.sendResponseHeaders(reply.status, body.length == 0 ? -1 : body.length);
+			try (OutputStream os = ex.getResponseBody()) {
+				os.write(body);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			log.warn("Fake API server could not handle {}: {}", ex.getRequestURI(), e.toString());
+			ex.sendResponseHeaders(500, -1);
+		} finally {
+			ex.close();
+		}
+	}
+
+	// query parameters, path segments after the context under "path", and form encoded bodies
+	private static Map<String,List<String>> params(HttpExchange ex) throws IOException {
+		Map<String,List<String>> out = new LinkedHashMap<>();
+		String path = ex.getRequestURI().getRawPath().substring(ex.getHttpContext().getPath().length());
+		out.put("path", Collections.singletonList(decode(path.replaceFirst("^/", ""))));
+		parse(ex.getRequestURI().getRawQuery(), out);
+		byte[] body = ByteStreams.toByteArray(ex.getRequestBody());
+		if (body.length > 0) parse(new String(body, StandardCharsets.UTF_8), out);
+		return out;
+	}
+
+	private static void parse(String query, Map<String,List<String>> out) {
+		if (query == null || query.isEmpty()) return;
+		for (String p: query.split("&")) {
+			String[] kv = p.split("=", 2);
+			out.computeIfAbsent(decode(kv[0]), k -> new ArrayList<>()).add(kv.length > 1 ? decode(kv[1]) : "");
+		}
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static Optional<String> param(Map<String,List<String>> params, String name) {
+		return Optional.ofNullable(params.get(name)).flatMap(l -> l.stream().findFirst());
+	}
+
+	private static List<String> ids(Map<String,List<String>> params, String name) {
+		return params.getOrDefault(name, Collections.emptyList()).stream()
+				.flatMap(s -> Arrays.stream(s.split(",")))
+				.map(String::trim).filter(s -> !s.isEmpty())
+				.collect(Collectors.toList());
+	}
+
+	private static LocalDate date(Optional<String> s, boolean end) {
+		if (!s.isPresent() || s.get().isEmpty()) return null;
+		String[] parts = s.get().split("[/-]");
+		int y = Integer.parseInt(parts[0]);
+		if (parts.length == 1) return end ? LocalDate.of(y, 12, 31) : LocalDate.of(y, 1, 1);
+		int m = Integer.parseInt(parts[1]);
+		if (parts.length == 2) return end ? LocalDate.of(y, m, 1).plusMonths(1).minusDays(1) : LocalDate.of(y, m, 1);
+		return LocalDate.of(y, m, Integer.parseInt(parts[2]));
+	}
+
+	// ENTREZ
+
+	private Reply esearch(Map<String,List<String>> params) {
+		String webEnv = param(params, "WebEnv").orElse(null);
+		List<Integer> result = webEnv == null ? null : history.get(webEnv);
+		if (result == null) {
+			result = literature.search(param(params, "term").orElse(""), searchFraction,
+					date(param(params, "mindate"), false), date(param(params, "maxdate"), true));
+			webEnv = "MCID_"+UUID.randomUUID().toString().replace("-", "");
+			history.put(webEnv, result);
+		}
+		int start = Integer.parseInt(param(params, "retstart").orElse("0"));
+		int max = Integer.parseInt(param(params, "retmax").orElse("20"));
+		List<Integer> page = result.subList(Math.min(start, result.size()), Math.min(start+max, result.size()));
+		StringBuilder out = new StringBuilder("<eSearchResult>");
+		out.append(tag("Count", result.size())).append(tag("RetMax", page.size())).append(tag("RetStart", start));
+		out.append(tag("QueryKey", 1)).append(tag("WebEnv", webEnv));
+		out.append("<IdList>");
+		page.forEach(i -> out.append(tag("Id", literature.article(i).pmid)));
+		out.append("</IdList><TranslationSet/>");
+		out.append(tag("QueryTranslation", param(params, "term").orElse("")));
+		out.append("</eSearchResult>");
+		return Reply.xml(out.toString());
+	}
+
+	private List<Integer> fetchIds(Map<String,List<String>> params) {
+		List<String> ids = ids(params, "id");
+		if (ids.isEmpty() && params.containsKey("WebEnv")) {
+			List<Integer> result = history.getOrDefault(param(params, "WebEnv").get(), Collections.emptyList());
+			int start = Integer.parseInt(param(params, "retstart").orElse("0"));
+			int max = Integer.parseInt(param(params, "retmax").orElse("10000"));
+			return result.subList(Math.min(start, result.size()), Math.min(start+max, result.size()));
+		}
+		return ids.stream().map(literature::indexOfPmid).filter(i -> i >= 0).collect(Collectors.toList());
+	}
+
+	private Reply efetch(Map<String,List<String>> params) {
+		StringBuilder out = new StringBuilder("<PubmedArticleSet>\n");
+		fetchIds(params).forEach(i -> out.append(pubmedArticle(literature.article(i))));
+		out.append("</PubmedArticleSet>");
+		return Reply.xml(out.toString());
+	}
+
+	private String pubmedArticle(Article a) {
+		StringBuilder out = new StringBuilder("<PubmedArticle><MedlineCitation Status=\"MEDLINE\" Owner=\"NLM\">");
+		out.append("<PMID Version=\"1\">").append(a.pmid).append("</PMID>");
+		out.append("<Article PubModel=\"Print-Electronic\"><Journal><JournalIssue CitedMedium=\"Internet\">");
+		out.append(tag("Volume", a.volume)).append(tag("Issue", a.issue));
+		out.append("<PubDate>").append(tag("Year", a.date.getYear()))
+			.append(tag("Month", a.date.getMonth().getDisplayName(TextStyle.SHORT, Locale.ENGLISH)))
+			.append(tag("Day", a.date.getDayOfMonth())).append("</PubDate>");
+		out.append("</JournalIssue>").append(tag("Title", a.journal)).append("</Journal>");
+		out.append(tag("ArticleTitle", a.title));
+		out.append("<Pagination>").append(tag("MedlinePgn", a.page)).append("</Pagination>");
+		if (a.doi != null) out.append("<ELocationID EIdType=\"doi\" ValidYN=\"Y\">").append(xml(a.doi)).append("</ELocationID>");
+		out.append("<Abstract>").append(tag("AbstractText", a.abstractText)).append("</Abstract>");
+		out.append("<AuthorList CompleteYN=\"Y\">");
+		a.authors.forEach(au -> {
+			out.append("<Author ValidYN=\"Y\">").append(tag("LastName", au.lastName)).append(tag("ForeName", au.firstName)).append(tag("Initials", au.initials));
+			if (au.orcid != null) out.append("<Identifier Source=\"ORCID\">").append(au.orcid).append("</Identifier>");
+			out.append("<AffiliationInfo>").append(tag("Affiliation", au.affiliation)).append("</AffiliationInfo></Author>");
+		});
+		out.append("</AuthorList><Language>eng</Language>");
+		out.append("<ArticleDate DateType=\"Electronic\">").append(tag("Year", a.date.getYear()))
+			.append(tag("Month", String.format("%02d", a.date.getMonthValue()))).append(tag("Day", String.format("%02d", a.date.getDayOfMonth()))).append("</ArticleDate>");
+		out.append("</Article><MeshHeadingList>");
+		a.meshCodes.forEach(m -> out.append("<MeshHeading><DescriptorName UI=\"").append(m[0]).append("\" MajorTopicYN=\"N\">").append(xml(m[1])).append("</DescriptorName></MeshHeading>"));
+		out.append("</MeshHeadingList><KeywordList Owner=\"NOTNLM\">");
+		a.keywords.forEach(k -> out.append("<Keyword MajorTopicYN=\"N\">").append(xml(k)).append("</Keyword>"));
+		out.append("</KeywordList></MedlineCitation><PubmedData><History>");
+		out.append("<PubMedPubDate PubStatus=\"pubmed\">").append(tag("Year", a.date.getYear())).append(tag("Month", a.date.getMonthValue())).append(tag("Day", a.date.getDayOfMonth())).append("</PubMedPubDate>");
+		out.append("</History><PublicationStatus>ppublish</PublicationStatus><ArticleIdList>");
+		out.append("<ArticleId IdType=\"pubmed\">").append(a.pmid).append("</ArticleId>");
+		if (a.doi != null) out.append("<ArticleId IdType=\"doi\">").append(xml(a.doi)).append("</ArticleId>");
+		if (a.pmcid != null) out.append("<ArticleId IdType=\"pmc\">").append(a.pmcid).append("</ArticleId>");
+		out.append("</ArticleIdList></PubmedData></PubmedArticle>\n");
+		return out.toString();
+	}
+
+	private Reply elink(Map<String,List<String>> params) {
+		String linkname = param(params, "linkname").orElse("pubmed_pubmed");
+		boolean scores = param(params, "cmd").map(c -> c.equals("neighbor_score")).orElse(false);
+		// each id parameter is a separate link set, comma separated ids in one parameter are combined
+		List<List<Integer>> sets = params.getOrDefault("id", Collections.emptyList()).stream()
+				.map(s -> Arrays.stream(s.split(",")).map(literature::indexOfPmid).filter(i -> i >= 0).collect(Collectors.toList()))
+				.collect(Collectors.toList());
+		StringBuilder out = new StringBuilder("<eLinkResult>");
+		sets.forEach(set -> {
+			out.append("<LinkSet>").append(tag("DbFrom", param(params, "dbfrom").orElse("pubmed"))).append("<IdList>");
+			set.forEach(i -> out.append(tag("Id", literature.article(i).pmid)));
+			out.append("</IdList>");
+			List<Integer> links = set.stream().flatMapToInt(i -> links(i, linkname)).distinct().boxed()
+					.filter(j -> literature.article(j).pmid != null).collect(Collectors.toList());
+			if (!links.isEmpty()) {
+				out.append("<LinkSetDb>").append(tag("DbTo", param(params, "db").orElse("pubmed"))).append(tag("LinkName", linkname));
+				links.forEach(j -> {
+					out.append("<Link>").append(tag("Id", literature.article(j).pmid));
+					if (scores) out.append(tag("Score", 1000000-Math.abs(j-set.get(0))));
+					out.append("</Link>");
+				});
+				out.append("</LinkSetDb>");
+			}
+			out.append("</LinkSet>");
+		});
+		out.append("</eLinkResult>");
+		return Reply.xml(out.toString());
+	}
+
+	// related articles are approximated by the citation neighbourhood
+	private IntStream links(int i, String linkname) {
+		switch (linkname) {
+			case "pubmed_pubmed_refs": return Arrays.stream(literature.references(i));
+			case "pubmed_pubmed_citedin": return Arrays.stream(literature.citedBy(i));
+			default: return IntStream.concat(Arrays.stream(literature.references(i)), Arrays.stream(literature.citedBy(i)));
+		}
+	}
+
+	// CROSSREF
+
+	private Reply works(Map<String,List<String>> params) {
+		String doi = param(params, "path").orElse("");
+		if (doi.isEmpty()) {
+			// bibliographic queries; the pdfs that citation strings come from are not generated
+			return Reply.json("{\"status\":\"ok\",\"message-type\":\"work-list\",\"message-version\":\"1.0.0\",\"message\":{\"total-results\":0,\"items\":[],\"items-per-page\":20,\"query\":{\"start-index\":0,\"search-terms\":null}}}");
+		}
+		int i = literature.indexOfDoi(doi);
+		if (i < 0) return new Reply(404, "text/plain", "Resource not found.");
+		return Reply.json("{\"status\":\"ok\",\"message-type\":\"work\",\"message-version\":\"1.0.0\",\"message\":"+crossRefWork(literature.article(i))+"}");
+	}
+
+	private String crossRefWork(Article a) {
+		List<String> fields = new ArrayList<>();
+		fields.add(json("DOI")+":"+json(a.doi));
+		fields.add(json("URL")+":"+json("http://dx.doi.org/"+a.doi));
+		fields.add(json("type")+":"+json("journal-article"));
+		fields.add(json("title")+":["+json(a.title)+"]");
+		fields.add(json("container-title")+":["+json(a.journal)+"]");
+		fields.add(json("volume")+":"+json(a.volume));
+		fields.add(json("issue")+":"+json(a.issue));
+		fields.add(json("page")+":"+json(a.page));
+		fields.add(json("abstract")+":"+json("<jats:p>"+a.abstractText+"</jats:p>"));
+		String dateParts = "{\"date-parts\":[["+a.date.getYear()+","+a.date.getMonthValue()+","+a.date.getDayOfMonth()+"]]}";
+		fields.add(json("issued")+":"+dateParts);
+		fields.add(json("published-print")+":"+dateParts);
+		List<String> authors = new ArrayList<>();
+		for (int k=0; k<a.authors.size(); k++) {
+			Author au = a.authors.get(k);
+			authors.add("{\"given\":"+json(au.firstName)+",\"family\":"+json(au.lastName)+",\"sequence\":"+json(k == 0 ? "first" : "additional")
+				+(au.orcid == null ? "" : ",\"ORCID\":"+json("http://orcid.org/"+au.orcid))
+				+",\"affiliation\":[{\"name\":"+json(au.affiliation)+"}]}");
+		}
+		fields.add(json("author")+":["+String.join(",", authors)+"]");
+		fields.add(json("is-referenced-by-count")+":"+literature.citedBy(a.index).length);
+		fields.add(json("references-count")+":"+a.references.length);
+		List<String> refs = new ArrayList<>();
+		for (int j: a.references) {
+			Article ref = literature.article(j);
+			String unstructured = ref.authors.get(0).lastName+" "+ref.authors.get(0).initials+". "+ref.title+". "+ref.journal+". "+ref.date.getYear()+";"+ref.volume+"("+ref.issue+"):"+ref.page+".";
+			refs.add("{\"key\":"+json(a.doi+"_ref"+j)+(ref.doi == null ? "" : ",\"DOI\":"+json(ref.doi)+",\"doi-asserted-by\":\"crossref\"")
+				+",\"unstructured\":"+json(unstructured)+"}");
+		}
+		fields.add(json("reference")+":["+String.join(",", refs)+"]");
+		return "{"+String.join(",", fields)+"}";
+	}
+
+	// UNPAYWALL
+
+	private Reply unpaywall(Map<String,List<String>> params) {
+		String doi = param(params, "path").orElse("");
+		int i = literature.indexOfDoi(doi);
+		if (i < 0) return Reply.notFound("{\"HTTP_status_code\":404,\"error\":true,\"message\":"+json("'"+doi+"' is an invalid doi. See https://doi.org/"+doi)+"}");
+		Article a = literature.article(i);
+		String authors = a.authors.stream().map(au -> "{\"given\":"+json(au.firstName)+",\"family\":"+json(au.lastName)+"}").collect(Collectors.joining(","));
+		return Reply.json("{\"doi\":"+json(a.doi)+",\"doi_url\":"+json("https://doi.org/"+a.doi)+",\"title\":"+json(a.title)
+			+",\"genre\":\"journal-article\",\"journal_name\":"+json(a.journal)+",\"published_date\":"+json(a.date.toString())
+			+",\"year\":"+a.date.getYear()+",\"is_oa\":false,\"oa_status\":\"closed\",\"best_oa_location\":null,\"oa_locations\":[]"
+			+",\"z_authors\":["+authors+"],\"updated\":"+json(LocalDate.now().toString()+"T00:00:00")+"}");
+	}
+
+	// PMC ID CONVERTER
+
+	private Reply idconv(Map<String,List<String>> params) {
+		List<String> ids = ids(params, "ids");
+		String idType = param(params, "idtype").orElse("");
+		List<Map<String,String>> records = ids.stream().map(id -> {
+			Map<String,String> rec = new LinkedHashMap<>();
+			int i = idType.equals("doi") || id.startsWith("10.") ? literature.indexOfDoi(id) :
+				idType.equals("pmid") ? literature.indexOfPmid(id) :
+				literature.indexOfPmid(Long.toString(Long.parseLong(id.replaceFirst("(?i)^PMC", ""))-1000000+SyntheticBibliography.FIRST_PMID));
+			Article a = literature.article(i);
+			rec.put("requested-id", id);
+			if (a == null || (a.pmcid == null && idType.equals("pmcid"))) {
+				rec.put("status", "error");
+				rec.put("errmsg", "invalid article id");
+			} else {
+				if (a.pmcid != null) rec.put("pmcid", a.pmcid);
+				if (a.pmid != null) rec.put("pmid", a.pmid);
+				if (a.doi != null) rec.put("doi", a.doi);
+			}
+			return rec;
+		}).collect(Collectors.toList());
+		if (param(params, "format").map(f -> f.equals("json")).orElse(false)) {
+			String body = records.stream().map(rec -> rec.entrySet().stream()
+					.filter(kv -> !kv.getKey().equals("requested-id"))
+					.map(kv -> json(kv.getKey())+":"+json(kv.getValue())).collect(Collectors.joining(",", "{", "}")))
+				.collect(Collectors.joining(",", "[", "]"));
+			return Reply.json("{\"status\":\"ok\",\"responseDate\":"+json(LocalDate.now().toString())+",\"request\":"+json("ids="+String.join(",", ids))+",\"records\":"+body+"}");
+		}
+		StringBuilder out = new StringBuilder("<pmcids status=\"ok\"><request idtype=\""+xml(idType)+"\"><echo>ids="+xml(String.join(",", ids))+"</echo></request>");
+		records.forEach(rec -> {
+			out.append("<record");
+			rec.forEach((k,v) -> out.append(" ").append(k).append("=\"").append(xml(v)).append("\""));
+			out.append("/>");
+		});
+		out.append("</pmcids>");
+		return Reply.xml(out.toString());
+	}
+
+	// FORMATTING
+
+	private static String tag(String name, Object value) {
+		return "<"+name+">"+xml(String.valueOf(value))+"</"+name+">";
+	}
+
+	private static String xml(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static String json(String s) {
+		if (s == null) return "null";
+		StringBuilder out = new StringBuilder("\"");
+		for (char c: s.toCharArray()) {
+			if (c == '"' || c == '\\') out.append('\\').append(c);
+			else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+			else out.append(c);
+		}
+		return out.append('"').toString();
+	}
+}
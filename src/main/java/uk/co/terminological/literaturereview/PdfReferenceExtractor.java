@@ -0,0 +1,321 @@
+package uk.co.terminological.literaturereview;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A worker pool for getting references out of open access pdfs. Each pdf goes through three steps,
+ * downloading, parsing and resolving the reference strings, and each step has its own thread pool so
+ * that slow parsing does not hold up downloads and vice versa. Pdfs are held in memory between
+ * download and parsing, and the total size of these is capped. Each parse also reserves an estimate of
+ * the heap it needs from a separate budget. Each pdf has a time limit for all three steps, after which
+ * its work is cancelled and the pdf is skipped. A parse cannot be stopped, so a parse that is still
+ * running when its pdf times out is abandoned: its thread gives up its parse slot but keeps its heap
+ * reservation until it finishes. Results are written on the calling thread, and a pdf whose references
+ * cannot all be resolved, or whose results cannot be written, is skipped.
+ */
+public class PdfReferenceExtractor<X> {
+
+	static Logger log = LoggerFactory.getLogger(PdfReferenceExtractor.class);
+
+	@FunctionalInterface
+	public interface Download {
+		Optional<InputStream> download(String doi) throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface Parse {
+		List<String> parse(String doi, InputStream pdf) throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface Resolve<X> {
+		Stream<X> resolve(String doi, String reference);
+	}
+
+	private int downloadWorkers;
+	private int parseWorkers;
+	private int resolveWorkers;
+	private long timeoutMillis;
+	private int memoryKb;
+	private int parseMemoryKb;
+	private int maxPdfKb;
+	private AtomicInteger abandoned;
+
+	private ExecutorService downloads;
+	private ExecutorService parsers;
+	private ExecutorService resolvers;
+	private ScheduledExecutorService timer;
+	private Semaphore memory;
+	private Semaphore parseMemory;
+	private Semaphore parseSlots;
+	private BlockingQueue<Job> done;
+
+	/**
+	 * @param downloadWorkers concurrent pdf downloads
+	 * @param parseWorkers concurrent pdf parses
+	 * @param resolveWorkers concurrent reference lookups
+	 * @param timeoutMillis the time allowed for each pdf from the start of its download
+	 * @param memoryBytes the total size of downloaded pdfs waiting for or being parsed
+	 * @param parseMemoryBytes the total heap reserved by running parses
+	 * @param maxPdfBytes pdfs larger than this are skipped
+	 */
+	public PdfReferenceExtractor(int downloadWorkers, int parseWorkers, int resolveWorkers, long timeoutMillis, long memoryBytes, long parseMemoryBytes, long maxPdfBytes) {
+		this.downloadWorkers = Math.max(1, downloadWorkers);
+		this.parseWorkers = Math.max(1, parseWorkers);
+		this.resolveWorkers = Math.max(1, resolveWorkers);
+		this.timeoutMillis = timeoutMillis;
+		this.maxPdfKb = (int) Math.max(1, maxPdfBytes/1024);
+		this.memoryKb = (int) Math.max(this.maxPdfKb, memoryBytes/1024);
+		this.parseMemoryKb = (int) Math.max(1, parseMemoryBytes/1024);
+	}
+
+	// cermine holds the parsed pages and their layout, which is many times the size of the pdf
+	private static final int PARSE_HEAP_FACTOR = 16;
+	private static final int PARSE_HEAP_BASE_KB = 32*1024;
+
+	private int parseKb(int pdfKb) {
+		return (int) Math.min(parseMemoryKb, PARSE_HEAP_BASE_KB+(long) pdfKb*PARSE_HEAP_FACTOR);
+	}
+
+	/**
+	 * Extracts and resolves the references for each doi and passes them to the writer.
+	 * @return the number of pdfs whose references were written
+	 */
+	public int extract(Collection<String> dois, Download download, Parse parse, Resolve<X> resolve, BiConsumer<String,Set<X>> writer) {
+		return extract(dois.stream(), download, parse, resolve, writer);
+	}
+
+	/**
+	 * Extracts the references for dois as they are read from a stream, such as a graph lookup. The stream
+	 * is read on the calling thread and is not closed.
+	 * @return the number of pdfs whose references were written
+	 */
+	public int extract(Stream<String> dois, Download download, Parse parse, Resolve<X> resolve, BiConsumer<String,Set<X>> writer) {
+		downloads = pool("pdf-download", downloadWorkers);
+		// a thread per parse, so that a parse that never returns can be left behind
+		parsers = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("pdf-parse-%d").setDaemon(true).build());
+		parseSlots = new Semaphore(parseWorkers);
+		parseMemory = new Semaphore(parseMemoryKb);
+		abandoned = new AtomicInteger(0);
+		resolvers = pool("pdf-resolve", resolveWorkers);
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("pdf-timeout").setDaemon(true).build());
+		memory = new Semaphore(memoryKb);
+		done = new LinkedBlockingQueue<>();
+
+		Iterator<String> it = dois.iterator();
+		int window = downloadWorkers+parseWorkers+resolveWorkers;
+		int inFlight = 0;
+		int written = 0;
+		try {
+			while (it.hasNext() || inFlight > 0) {
+				while (it.hasNext() && inFlight < window) {
+					start(new Job(it.next()), download, parse, resolve);
+					inFlight++;
+				}
+				Job job = done.take();
+				inFlight--;
+				if (job.failure != null) {
+					log.debug("No references for {}: {}", job.doi, job.failure);
+				} else if (job.works != null) {
+					log.debug("Found {} xref entries for {} references", job.works.size(), job.references);
+					try {
+						writer.accept(job.doi, job.works);
+						written++;
+					} catch (Exception e) {
+						log.warn("Could not write references for {}: {}", job.doi, e.getMessage());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			log.warn("Pdf extraction interrupted after writing {} pdfs", written);
+			Thread.currentThread().interrupt();
+		} finally {
+			Stream.of(downloads, parsers, resolvers, timer).forEach(ExecutorService::shutdownNow);
+		}
+		if (abandoned.get() > 0) log.warn("Abandoned {} pdf parses that did not finish in time", abandoned.get());
+		return written;
+	}
+
+	// the state of the last extraction, which only gets back to its limits once abandoned parses return
+	int abandoned() {return abandoned.get();}
+	int availableMemoryKb() {return memory.availablePermits();}
+	int availableParseMemoryKb() {return parseMemory.availablePermits();}
+	int availableParseSlots() {return parseSlots.availablePermits();}
+
+	private static ExecutorService pool(String name, int workers) {
+		return Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder().setNameFormat(name+"-%d").setDaemon(true).build());
+	}
+
+	private void start(Job job, Download download, Parse parse, Resolve<X> resolve) {
+		job.timeout = timer.schedule(() -> job.finish(null, "timed out after "+timeoutMillis+" ms"), timeoutMillis, TimeUnit.MILLISECONDS);
+		job.submit(downloads, () -> {
+			try {
+				Optional<InputStream> ois = download.download(job.doi);
+				if (!ois.isPresent()) {
+					job.finish(null, "no pdf available");
+					return;
+				}
+				// reserve the largest allowed pdf size then give back what was not used
+				memory.acquire(maxPdfKb);
+				job.hold(maxPdfKb);
+				byte[] pdf;
+				try (InputStream is = ois.get()) {
+					pdf = ByteStreams.toByteArray(ByteStreams.limit(is, maxPdfKb*1024L+1));
+				}
+				if (pdf.length > maxPdfKb*1024L) {
+					job.finish(null, "pdf larger than "+maxPdfKb+" kb");
+					return;
+				}
+				int pdfKb = Math.max(1, pdf.length/1024);
+				job.releaseTo(pdfKb);
+				job.submit(parsers, () -> {
+					int heapKb = parseKb(pdfKb);
+					boolean slot = false;
+					boolean reserved = false;
+					try {
+						parseSlots.acquire();
+						slot = true;
+						parseMemory.acquire(heapKb);
+						reserved = true;
+						if (!job.parsing()) return;
+						// the slot now belongs to the job, which gives it back if the parse is abandoned
+						slot = false;
+						List<String> refs = parse.parse(job.doi, new ByteArrayInputStream(pdf));
+						job.releaseTo(0);
+						job.parsed();
+						resolveAll(job, refs, resolve);
+					} catch (InterruptedException e) {
+						job.finish(null, "interrupted");
+					} catch (Exception e) {
+						job.finish(null, "could not parse pdf: "+e.getMessage());
+					} finally {
+						// the heap is only free once the parse has actually returned
+						if (reserved) parseMemory.release(heapKb);
+						if (slot) parseSlots.release();
+						job.parsed();
+						job.releaseTo(0);
+					}
+				});
+			} catch (InterruptedException e) {
+				job.finish(null, "interrupted");
+			} catch (Exception e) {
+				job.finish(null, "could not download pdf: "+e.getMessage());
+			}
+		});
+	}
+
+	private void resolveAll(Job job, List<String> refs, Resolve<X> resolve) {
+		log.debug("Found {} references for {}", refs.size(), job.doi);
+		job.references = refs.size();
+		if (refs.isEmpty()) {
+			job.finish(Collections.emptySet(), null);
+			return;
+		}
+		Set<X> works = ConcurrentHashMap.newKeySet();
+		AtomicInteger remaining = new AtomicInteger(refs.size());
+		refs.forEach(ref -> job.submit(resolvers, () -> {
+			try {
+				works.addAll(resolve.resolve(job.doi, ref).collect(Collectors.toList()));
+			} catch (Exception e) {
+				// the pdf is skipped rather than written with some of its references missing
+				job.finish(null, "could not resolve references: "+e.getMessage());
+			} finally {
+				if (remaining.decrementAndGet() == 0) job.finish(works, null);
+			}
+		}));
+	}
+
+	private class Job {
+
+		String doi;
+		int references;
+		Set<X> works;
+		String failure;
+		ScheduledFuture<?> timeout;
+		List<Future<?>> futures = Collections.synchronizedList(new ArrayList<>());
+		AtomicBoolean finished = new AtomicBoolean(false);
+		boolean holdsParseSlot = false;
+		int heldKb = 0;
+
+		Job(String doi) {this.doi = doi;}
+
+		// memory already acquired for this pdf; given straight back if the pdf has already finished
+		synchronized void hold(int kb) {
+			if (finished.get()) memory.release(kb);
+			else heldKb += kb;
+		}
+
+		synchronized void releaseTo(int kb) {
+			if (heldKb > kb) {
+				memory.release(heldKb-kb);
+				heldKb = kb;
+			}
+		}
+
+		// takes over a parse slot, unless the pdf has already finished
+		synchronized boolean parsing() {
+			if (finished.get()) return false;
+			holdsParseSlot = true;
+			return true;
+		}
+
+		// gives the parse slot back, whether the parse has returned or is being abandoned
+		synchronized void parsed() {
+			if (holdsParseSlot) {
+				holdsParseSlot = false;
+				parseSlots.release();
+			}
+		}
+
+		void submit(ExecutorService pool, Runnable task) {
+			if (!finished.get()) futures.add(pool.submit(task));
+		}
+
+		// only the first outcome counts; anything still running for this pdf is cancelled
+		void finish(Set<X> works, String failure) {
+			if (finished.compareAndSet(false, true)) {
+				this.works = works;
+				this.failure = failure;
+				if (timeout != null) timeout.cancel(false);
+				releaseTo(0);
+				synchronized(this) {
+					if (holdsParseSlot) abandoned.incrementAndGet();
+				}
+				parsed();
+				synchronized(futures) {
+					futures.forEach(f -> f.cancel(true));
+				}
+				done.add(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package uk.co.terminological.literaturereview;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Fetches a list of identifiers in batches on a background thread while the previous batch is
+ * written on the calling thread. The batch size grows or shrinks so that each request takes
+ * roughly the target latency and returns roughly the target payload, and a semaphore bounds
+ * the number of fetched but unwritten records held in memory at any one time.
+ */
+public class PipelinedBatchFetcher<I,O> {
+
+	static Logger log = LoggerFactory.getLogger(PipelinedBatchFetcher.class);
+
+	private String name;
+	private int batchSize;
+	private int minBatchSize;
+	private int maxBatchSize;
+	private long targetLatencyMillis;
+	private long targetBatchBytes;
+	private int maxInFlight;
+	private ToLongFunction<O> sizeEstimate;
+	private volatile Semaphore budget;
+
+	/**
+	 * A batch fetch. Retrying failures is the responsibility of the fetch, and any exception 
+	 * thrown here stops the pipeline once the batches already fetched have been written.
+	 */
+	@FunctionalInterface
+	public interface BatchFetch<I,O> {
+		Collection<O> fetch(List<I> batch) throws Exception;
+	}
+
+	/**
+	 * @param name used for naming the fetch thread and in log messages
+	 * @param initialBatchSize the first batch size tried
+	 * @param minBatchSize the smallest batch size the fetcher will shrink to
+	 * @param maxBatchSize the largest batch size the fetcher will grow to
+	 * @param targetLatencyMillis the response time each batch is sized to achieve
+	 * @param targetBatchBytes the estimated payload each batch is sized to achieve
+	 * @param maxInFlight the maximum number of fetched records waiting to be written
+	 * @param sizeEstimate an estimate of the in memory size of a single record in bytes
+	 */
+	public PipelinedBatchFetcher(String name, int initialBatchSize, int minBatchSize, int maxBatchSize,
+			long targetLatencyMillis, long targetBatchBytes, int maxInFlight, ToLongFunction<O> sizeEstimate) {
+		this.name = name;
+		this.minBatchSize = Math.max(1, minBatchSize);
+		this.maxBatchSize = Math.max(this.minBatchSize, Math.min(maxBatchSize, maxInFlight));
+		this.batchSize = clamp(initialBatchSize);
+		this.targetLatencyMillis = targetLatencyMillis;
+		this.targetBatchBytes = targetBatchBytes;
+		this.maxInFlight = maxInFlight;
+		this.sizeEstimate = sizeEstimate;
+	}
+
+	/**
+	 * Fetches all the ids and passes each batch of results to the writer as soon as the writer
+	 * is free.
+	 *
+	 * @return the number of records written
+	 */
+	public int fetchAndWrite(Collection<I> ids, BatchFetch<I,O> fetch, Consumer<Collection<O>> writer) {
+		return fetchAndWrite(new ArrayList<>(ids).iterator(), fetch, writer);
+	}
+
+	/**
+	 * Fetches ids as they are read from a stream, such as a graph lookup, so that they are never all
+	 * held in memory. The stream is read on the fetching thread and is not closed.
+	 *
+	 * @return the number of records written
+	 */
+	public int fetchAndWrite(Stream<I> ids, BatchFetch<I,O> fetch, Consumer<Collection<O>> writer) {
+		return fetchAndWrite(ids.iterator(), fetch, writer);
+	}
+
+	private int fetchAndWrite(Iterator<I> ids, BatchFetch<I,O> fetch, Consumer<Collection<O>> writer) {
+		BlockingQueue<Batch<O>> queue = new ArrayBlockingQueue<>(4);
+		Semaphore budget = new Semaphore(maxInFlight);
+		this.budget = budget;
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		ExecutorService producer = Executors.newSingleThreadExecutor(
+				new ThreadFactoryBuilder().setNameFormat(name+"-fetch").setDaemon(true).build());
+
+		Future<?> fetching = producer.submit(() -> {
+			try {
+				while (ids.hasNext()) {
+					List<I> slice = new ArrayList<>(batchSize);
+					while (slice.size() < batchSize && ids.hasNext()) slice.add(ids.next());
+					int size = slice.size();
+					budget.acquire(size);
+					long start = System.currentTimeMillis();
+					Collection<O> out;
+					try {
+						out = fetch.fetch(slice);
+					} catch (Exception e) {
+						budget.release(size);
+						throw e;
+					}
+					long latency = System.currentTimeMillis()-start;
+					long bytes = out.stream().mapToLong(sizeEstimate).sum();
+					// release any permits held for records that did not come back
+					int held = Math.min(size, out.size());
+					budget.release(size - held);
+					adapt(size, latency, bytes);
+					try {
+						queue.put(new Batch<O>(out, held));
+					} catch (InterruptedException e) {
+						budget.release(held);
+						throw e;
+					}
+					// a batch put after the writer stopped is not written, so gives its permits back here
+					if (stopped.get()) release(queue, budget);
+				}
+			} finally {
+				// once the writer has stopped nothing takes from the queue, so the end marker must not wait for space
+				if (stopped.get()) queue.offer(Batch.end());
+				else queue.put(Batch.end());
+			}
+			return null;
+		});
+
+		int written = 0;
+		try {
+			while (true) {
+				Batch<O> batch = queue.take();
+				if (batch.isEnd()) break;
+				try {
+					writer.accept(batch.items);
+					written += batch.items.size();
+				} finally {
+					budget.release(batch.permits);
+				}
+			}
+			fetching.get();
+		} catch (InterruptedException e) {
+			log.warn("{}: interrupted after writing {} records", name, written);
+			fetching.cancel(true);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.warn("{}: fetching stopped: {}", name, e.getCause().getMessage());
+		} finally {
+			stopped.set(true);
+			release(queue, budget);
+			producer.shutdownNow();
+		}
+		return written;
+	}
+
+	// discards the batches that will not be written, giving back their permits
+	private static <O> void release(BlockingQueue<Batch<O>> queue, Semaphore budget) {
+		for (Batch<O> b = queue.poll(); b != null; b = queue.poll()) budget.release(b.permits);
+	}
+
+	/**
+	 * The permits of the last fetch that are not held by fetched records, which is the maximum in flight
+	 * once every record has been written or discarded.
+	 */
+	int availablePermits() {
+		return budget == null ? maxInFlight : budget.availablePermits();
+	}
+
+	/**
+	 * Scales the next batch size by how far this batch was from the latency and payload
+	 * targets, limited to halving or doubling in one step.
+	 */
+	private void adapt(int size, long latencyMillis, long bytes) {
+		double latencyFactor = (double) targetLatencyMillis / Math.max(1, latencyMillis);
+		double payloadFactor = (double) targetBatchBytes / Math.max(1, bytes);
+		double factor = Math.max(0.5, Math.min(2.0, Math.min(latencyFactor, payloadFactor)));
+		int next = clamp((int) Math.round(size*factor));
+		log.debug("{}: batch of {} took {} ms for ~{} bytes; next batch {}", name, size, latencyMillis, bytes, next);
+		batchSize = next;
+	}
+
+	private int clamp(int size) {
+		return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+	}
+
+	private static class Batch<O> {
+		Collection<O> items;
+		int permits;
+		Batch(Collection<O> items, int permits) {this.items = items; this.permits = permits;}
+		boolean isEnd() {return items == null;}
+		static <O> Batch<O> end() {return new Batch<O>(null, 0);}
+	}
+}
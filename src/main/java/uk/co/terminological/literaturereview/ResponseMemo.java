@@ -0,0 +1,102 @@
+package uk.co.terminological.literaturereview;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the responses to API calls for the length of a build, so that a record asked for by more than
+ * one stage is only fetched and parsed once. The least recently used responses are dropped once the memo is
+ * full. Calls for the same key that are in progress at the same time are merged, and failed calls are not
+ * remembered so that they can be retried.
+ */
+public class ResponseMemo<K,V> {
+
+	@FunctionalInterface
+	public interface Loader<V> {
+		V load() throws Exception;
+	}
+
+	private String name;
+	private Map<K,V> responses;
+	private Map<K,CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	private AtomicInteger hits = new AtomicInteger();
+	private AtomicInteger loads = new AtomicInteger();
+
+	/**
+	 * @param name used in the summary
+	 * @param maxSize the number of responses kept
+	 */
+	public ResponseMemo(String name, int maxSize) {
+		this.name = name;
+		this.responses = new LinkedHashMap<K,V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the remembered response for the key, or the response from the loader if there is none
+	 * @throws Exception if the loader failed
+	 */
+	public V get(K key, Loader<V> loader) throws Exception {
+		synchronized (responses) {
+			if (responses.containsKey(key)) {
+				hits.incrementAndGet();
+				return responses.get(key);
+			}
+		}
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+		if (existing != null) {
+			hits.incrementAndGet();
+			try {
+				return existing.join();
+			} catch (CompletionException e) {
+				throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+			}
+		}
+		try {
+			// another call for this key may have finished since we checked
+			synchronized (responses) {
+				if (responses.containsKey(key)) {
+					V out = responses.get(key);
+					mine.complete(out);
+					return out;
+				}
+			}
+			loads.incrementAndGet();
+			V out = loader.load();
+			synchronized (responses) {
+				responses.put(key, out);
+			}
+			mine.complete(out);
+			return out;
+		} catch (Exception e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, mine);
+		}
+	}
+
+	public int hits() {
+		return hits.get();
+	}
+
+	public int loads() {
+		return loads.get();
+	}
+
+	public String summary() {
+		synchronized (responses) {
+			return name+" memo: "+responses.size()+" entries, "+hits.get()+" hits, "+loads.get()+" loads";
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package uk.co.terminological.literaturereview;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A seeded model of a literature for load testing, used by the {@link FakeApiServer}. Articles are
+ * numbered in date order and each cites a random set of older articles, with a bias towards the oldest
+ * so that some articles are heavily cited. Everything about an article is generated from the seed and its
+ * number when it is asked for, so only the citation index is held in memory and the same seed always
+ * gives the same literature.
+ */
+public class SyntheticBibliography {
+
+	private static final String[] WORDS = {"clinical", "outcomes", "patients", "model", "analysis", "cohort", "risk",
+			"prediction", "learning", "network", "records", "health", "disease", "treatment", "trial", "survival",
+			"hospital", "data", "language", "text", "mining", "genome", "cancer", "infection", "population",
+			"evaluation", "deep", "semantic", "extraction", "classification", "mortality", "sepsis", "imaging"};
+	private static final String[] FAMILY = {"Smith", "Jones", "Taylor", "Brown", "Williams", "Wilson", "Johnson",
+			"Davies", "Patel", "Wright", "Chen", "Wang", "Li", "Zhang", "Garcia", "Muller", "Rossi", "Kim", "Singh", "Khan"};
+	private static final String[] GIVEN = {"Alice", "Ben", "Chloe", "David", "Emma", "Farid", "Grace", "Hiro",
+			"Ines", "James", "Kate", "Liam", "Maria", "Nikhil", "Olivia", "Pedro", "Qi", "Rosa", "Sam", "Tariq"};
+	private static final String[] PLACES = {"London", "Oxford", "Boston", "Toronto", "Sydney", "Berlin", "Paris",
+			"Beijing", "Tokyo", "Delhi", "Madrid", "Leeds", "Bristol", "Utrecht", "Geneva"};
+	private static final String[] KINDS = {"University of", "Institute of Health,", "Department of Medicine,", "Research Centre,"};
+
+	public static final long FIRST_PMID = 20000000;
+
+	private long seed;
+	private int size;
+	private LocalDate earliest;
+	private long days;
+	private int meanReferences;
+	private int authors;
+	private int[][] citedBy;
+
+	public static class Author {
+		public String lastName;
+		public String firstName;
+		public String initials;
+		public String affiliation;
+		public String orcid;
+	}
+
+	public static class Article {
+		public int index;
+		public String pmid;
+		public String doi;
+		public String pmcid;
+		public LocalDate date;
+		public String title;
+		public String abstractText;
+		public String journal;
+		public String volume;
+		public String issue;
+		public String page;
+		public List<Author> authors = new ArrayList<>();
+		public List<String[]> meshCodes = new ArrayList<>();
+		public List<String> keywords = new ArrayList<>();
+		public int[] references;
+	}
+
+	/**
+	 * @param seed the seed for the random model
+	 * @param size the number of articles
+	 * @param earliest the date of the first article
+	 * @param latest the date of the last article
+	 * @param meanReferences the average number of articles each article cites
+	 */
+	public SyntheticBibliography(long seed, int size, LocalDate earliest, LocalDate latest, int meanReferences) {
+		this.seed = seed;
+		this.size = size;
+		this.earliest = earliest;
+		this.days = Math.max(1, ChronoUnit.DAYS.between(earliest, latest));
+		this.meanReferences = meanReferences;
+		this.authors = Math.max(10, size/2);
+		// invert the references to get the citations
+		int[] counts = new int[size];
+		for (int i=0; i<size; i++) for (int j: references(i)) counts[j]++;
+		citedBy = new int[size][];
+		for (int i=0; i<size; i++) citedBy[i] = new int[counts[i]];
+		for (int i=size-1; i>=0; i--) for (int j: references(i)) citedBy[j][--counts[j]] = i;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private Random random(int i, long stream) {
+		return new Random(mix(seed*1000003L + i*31L + stream));
+	}
+
+	// java.util.Random gives similar first values for similar seeds, so seeds are scrambled first (splitmix64)
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	public int[] references(int i) {
+		if (i == 0) return new int[0];
+		Random r = random(i, 1);
+		int count = r.nextInt(2*meanReferences+1);
+		// biased towards older articles so that citations are heavy tailed
+		return IntStream.range(0, count).map(k -> (int) (i*Math.pow(r.nextDouble(), 1.5))).distinct().sorted().toArray();
+	}
+
+	public int[] citedBy(int i) {
+		return citedBy[i];
+	}
+
+	public Article article(int i) {
+		if (i < 0 || i >= size) return null;
+		Random r = random(i, 2);
+		Article a = new Article();
+		a.index = i;
+		// about one in ten articles is not in pubmed, and one in ten has no doi
+		int kind = r.nextInt(10);
+		a.pmid = kind == 0 ? null : Long.toString(FIRST_PMID+i);
+		a.doi = kind == 1 ? null : "10.5555/synth."+i;
+		a.pmcid = r.nextInt(10) < 4 ? "PMC"+(1000000+i) : null;
+		a.date = earliest.plusDays(days*i/size);
+		a.title = sentence(r, 6+r.nextInt(8));
+		a.abstractText = IntStream.range(0, 4+r.nextInt(6)).mapToObj(k -> sentence(r, 10+r.nextInt(15))+".").collect(Collectors.joining(" "));
+		a.journal = "Journal of "+cap(WORDS[r.nextInt(WORDS.length)])+" "+cap(WORDS[r.nextInt(WORDS.length)]);
+		a.volume = Integer.toString(1+r.nextInt(60));
+		a.issue = Integer.toString(1+r.nextInt(12));
+		int page = 1+r.nextInt(2000);
+		a.page = page+"-"+(page+3+r.nextInt(20));
+		int authorCount = 1+r.nextInt(8);
+		for (int k=0; k<authorCount; k++) a.authors.add(author(r.nextInt(authors)));
+		int meshCount = 3+r.nextInt(8);
+		for (int k=0; k<meshCount; k++) {
+			int code = r.nextInt(500);
+			a.meshCodes.add(new String[] {String.format("D%06d", code), cap(WORDS[code % WORDS.length])+" "+cap(WORDS[(code/WORDS.length) % WORDS.length])});
+		}
+		int keywordCount = r.nextInt(6);
+		for (int k=0; k<keywordCount; k++) a.keywords.add(WORDS[r.nextInt(WORDS.length)]+" "+WORDS[r.nextInt(WORDS.length)]);
+		a.references = references(i);
+		return a;
+	}
+
+	public Author author(int k) {
+		Random r = random(k, 3);
+		Author au = new Author();
+		au.lastName = FAMILY[r.nextInt(FAMILY.length)]+(k % 7 == 0 ? "" : "-"+FAMILY[r.nextInt(FAMILY.length)]);
+		au.firstName = GIVEN[r.nextInt(GIVEN.length)];
+		au.initials = au.firstName.substring(0, 1);
+		au.affiliation = KINDS[r.nextInt(KINDS.length)]+" "+PLACES[r.nextInt(PLACES.length)];
+		au.orcid = r.nextInt(3) == 0 ? String.format("0000-0002-%04d-%04d", k/10000 % 10000, k % 10000) : null;
+		return au;
+	}
+
+	private static String sentence(Random r, int words) {
+		return cap(IntStream.range(0, words).mapToObj(k -> WORDS[r.nextInt(WORDS.length)]).collect(Collectors.joining(" ")));
+	}
+
+	private static String cap(String s) {
+		return s.substring(0, 1).toUpperCase()+s.substring(1);
+	}
+
+	public int indexOfPmid(String pmid) {
+		try {
+			int i = (int) (Long.parseLong(pmid.trim())-FIRST_PMID);
+			Article a = article(i);
+			return a != null && a.pmid != null ? i : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public int indexOfDoi(String doi) {
+		String tmp = doi.trim().toLowerCase();
+		if (!tmp.startsWith("10.5555/synth.")) return -1;
+		try {
+			int i = Integer.parseInt(tmp.substring("10.5555/synth.".length()));
+			Article a = article(i);
+			return a != null && a.doi != null ? i : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The articles in pubmed published between the dates that match the search. Each search term picks
+	 * a different fixed fraction of the articles.
+	 */
+	public List<Integer> search(String term, double fraction, LocalDate from, LocalDate to) {
+		long hash = term.trim().toLowerCase().hashCode();
+		int first = from == null ? 0 : (int) Math.max(0, Math.min(size, Math.ceil((double) ChronoUnit.DAYS.between(earliest, from)*size/days)));
+		int last = to == null ? size : (int) Math.max(0, Math.min(size, Math.floor((double) ChronoUnit.DAYS.between(earliest, to)*size/days)+1));
+		List<Integer> out = new ArrayList<>();
+		for (int i=first; i<last; i++) {
+			if (new Random(mix(hash*1000003L + i)).nextDouble() < fraction && article(i).pmid != null) out.add(i);
+		}
+		return out;
+	}
+
+	@Override
+	public String toString() {
+		return "synthetic literature of "+size+" articles, "+Arrays.stream(citedBy).mapToInt(c -> c.length).sum()+" citations";
+	}
+}
@@ -0,0 +1,148 @@
+package uk.co.terminological.literaturereview;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A zip file of recorded http responses. Each response is a compressed entry named by a hash of its
+ * request and the number of times that request had been made before, so the zip directory is the index
+ * and replaying the same sequence of requests gives the same sequence of responses, including any
+ * errors that were recorded. Requests made more often than they were recorded get the last response.
+ */
+public class TrafficArchive implements Closeable {
+
+	private ZipOutputStream out;
+	private ZipFile in;
+	private Map<String,Integer> recorded = new HashMap<>();
+	private Map<String,AtomicInteger> replayed = new ConcurrentHashMap<>();
+
+	public static class Response {
+
+		int status;
+		String message;
+		Map<String,List<String>> headers;
+		byte[] body;
+		long latencyMillis;
+
+		public Response(int status, String message, Map<String,List<String>> headers, byte[] body, long latencyMillis) {
+			this.status = status;
+			this.message = message;
+			this.headers = headers;
+			this.body = body;
+			this.latencyMillis = latencyMillis;
+		}
+	}
+
+	private TrafficArchive() {}
+
+	public static TrafficArchive create(Path file) throws IOException {
+		TrafficArchive out = new TrafficArchive();
+		out.out = new ZipOutputStream(Files.newOutputStream(file));
+		return out;
+	}
+
+	public static TrafficArchive open(Path file) throws IOException {
+		TrafficArchive out = new TrafficArchive();
+		out.in = new ZipFile(file.toFile());
+		Collections.list(out.in.entries()).forEach(e -> {
+			String[] name = e.getName().split("/");
+			out.recorded.merge(name[0], Integer.parseInt(name[1])+1, Math::max);
+		});
+		return out;
+	}
+
+	/**
+	 * A hash of the method, url and body of a request.
+	 */
+	public static String key(String method, String url, byte[] body) {
+		return Hashing.sha256().newHasher()
+				.putString(method, StandardCharsets.UTF_8)
+				.putString(" "+url+"\n", StandardCharsets.UTF_8)
+				.putBytes(body)
+				.hash().toString().substring(0, 32);
+	}
+
+	public synchronized void put(String key, String request, Response response) throws IOException {
+		int n = recorded.merge(key, 1, Integer::sum)-1;
+		out.putNextEntry(new ZipEntry(key+"/"+n));
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeUTF(request);
+		dos.writeInt(response.status);
+		dos.writeUTF(response.message == null ? "" : response.message);
+		dos.writeLong(response.latencyMillis);
+		List<String[]> headers = new ArrayList<>();
+		response.headers.forEach((k,vs) -> {
+			if (k != null) vs.forEach(v -> headers.add(new String[] {k,v}));
+		});
+		dos.writeInt(headers.size());
+		for (String[] h: headers) {
+			dos.writeUTF(h[0]);
+			dos.writeUTF(h[1]);
+		}
+		dos.writeInt(response.body.length);
+		dos.write(response.body);
+		dos.flush();
+		out.closeEntry();
+	}
+
+	/**
+	 * @return the next recorded response for the request, or null if it was never recorded
+	 */
+	public Response get(String key) throws IOException {
+		Integer count = recorded.get(key);
+		if (count == null) return null;
+		int n = Math.min(replayed.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement(), count-1);
+		try (InputStream is = in.getInputStream(in.getEntry(key+"/"+n))) {
+			DataInputStream dis = new DataInputStream(is);
+			dis.readUTF();
+			int status = dis.readInt();
+			String message = dis.readUTF();
+			long latency = dis.readLong();
+			Map<String,List<String>> headers = new LinkedHashMap<>();
+			int size = dis.readInt();
+			for (int i=0; i<size; i++) {
+				headers.computeIfAbsent(dis.readUTF(), k -> new ArrayList<>()).add(dis.readUTF());
+			}
+			byte[] body = new byte[dis.readInt()];
+			dis.readFully(body);
+			return new Response(status, message.isEmpty() ? null : message, headers, body, latency);
+		}
+	}
+
+	public int size() {
+		return recorded.values().stream().mapToInt(i -> i).sum();
+	}
+
+	static byte[] readAll(InputStream is) throws IOException {
+		if (is == null) return new byte[0];
+		try (InputStream tmp = is) {
+			return ByteStreams.toByteArray(tmp);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) out.close();
+		if (in != null) in.close();
+	}
+}
@@ -0,0 +1,185 @@
+package uk.co.terminological.literaturegraph;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
+
+/**
+ * One fixture per merge rule of the author disambiguation, and one for chains of merges across rules.
+ * Each author is tagged with a property of its own, which the merge copies onto the node it is merged
+ * into, so the tags on the remaining author nodes show which authors were merged together.
+ */
+public class AuthorDisambiguatorTest extends EmbeddedGraphTest {
+
+	static final String TAG = "tag_";
+
+	Transaction tx;
+
+	@Before
+	public void setUp() {
+		tx = graph.get().beginTx();
+	}
+
+	@After
+	public void tearDown() {
+		if (tx != null) tx.close();
+	}
+
+	@Test
+	public void sameOrcid() {
+		author("a", "0000-0001", null, null, "Smith J");
+		author("b", "0000-0001", null, null, "Jones K");
+		author("c", "0000-0002", null, null, "Smith J");
+		Map<String,Integer> merges = run();
+		assertEquals(groups("a,b", "c"), groups());
+		assertEquals(Integer.valueOf(1), merges.get("orcid"));
+	}
+
+	@Test
+	public void sameFullName() {
+		author("a", null, "Smith", "John", "Smith J");
+		author("b", null, "Smith", "John", "Smith J");
+		author("c", null, "Smith", "Jane", "Smith J");
+		author("d", null, "Smith", null, "Smith J");
+		Map<String,Integer> merges = run();
+		assertEquals(groups("a,b", "c", "d"), groups());
+		assertEquals(Integer.valueOf(1), merges.get("fullName"));
+	}
+
+	@Test
+	public void sameLabelOnSameArticle() {
+		Node a = author("a", null, null, null, "Smith J");
+		Node b = author("b", null, null, null, "Smith J");
+		Node c = author("c", null, null, null, "Smith J");
+		Node d = author("d", null, null, null, "Jones K");
+		article(a, b, d);
+		article(c);
+		Map<String,Integer> merges = run();
+		assertEquals(groups("a,b", "c", "d"), groups());
+		assertEquals(Integer.valueOf(1), merges.get("labelOnArticle"));
+	}
+
+	@Test
+	public void sameLabelAndSimilarAffiliation() {
+		Node x = affiliation();
+		Node y = affiliation();
+		Node z = affiliation();
+		x.createRelationshipTo(y, Rel.SIMILAR_TO);
+		y.createRelationshipTo(x, Rel.SIMILAR_TO);
+		Node a = author("a", null, null, null, "Smith J");
+		Node b = author("b", null, null, null, "Smith J");
+		Node c = author("c", null, null, null, "Smith J");
+		Node d = author("d", null, null, null, "Jones K");
+		Node e = author("e", null, null, null, "Smith J");
+		a.createRelationshipTo(x, Rel.HAS_AFFILIATION);
+		b.createRelationshipTo(y, Rel.HAS_AFFILIATION);
+		c.createRelationshipTo(z, Rel.HAS_AFFILIATION);
+		d.createRelationshipTo(y, Rel.HAS_AFFILIATION);
+		// the same affiliation node counts as similar
+		e.createRelationshipTo(x, Rel.HAS_AFFILIATION);
+		Map<String,Integer> merges = run();
+		assertEquals(groups("a,b,e", "c", "d"), groups());
+		assertEquals(Integer.valueOf(2), merges.get("labelAndAffiliation"));
+	}
+
+	@Test
+	public void sameLabelAndCoauthor() {
+		Node a = author("a", null, null, null, "Smith J");
+		Node b = author("b", null, null, null, "Smith J");
+		Node c = author("c", null, null, null, "Smith J");
+		Node co = author("co", null, null, null, "Brown A");
+		Node other = author("other", null, null, null, "Brown A");
+		article(a, co);
+		article(b, co);
+		article(c, other);
+		Map<String,Integer> merges = run();
+		assertEquals(groups("a,b", "c", "co", "other"), groups());
+		assertEquals(Integer.valueOf(1), merges.get("labelAndCoauthor"));
+	}
+
+	@Test
+	public void chainsAcrossRules() {
+		// a and b share an orcid, b and c a full name, c and d are on one article with one label
+		Node a = author("a", "0000-0001", null, null, "Smith J");
+		author("b", "0000-0001", "Smith", "John", "Smith J");
+		Node c = author("c", null, "Smith", "John", "Smith J");
+		Node d = author("d", null, null, null, "Smith J");
+		article(c, d);
+		// e and f have co-authors that were merged by an earlier rule, and g shares an affiliation with f
+		Node e = author("e", null, null, null, "Jones K");
+		Node f = author("f", null, null, null, "Jones K");
+		Node g = author("g", null, null, null, "Jones K");
+		Node x = affiliation();
+		f.createRelationshipTo(x, Rel.HAS_AFFILIATION);
+		g.createRelationshipTo(x, Rel.HAS_AFFILIATION);
+		article(e, a);
+		article(f, d);
+		author("h", null, null, null, "Jones K");
+		Map<String,Integer> merges = run();
+		assertEquals(groups("a,b,c,d", "e,f,g", "h"), groups());
+		assertEquals(Integer.valueOf(5), merges.get("total"));
+	}
+
+	private Node author(String tag, String orcid, String lastName, String firstName, String label) {
+		Node n = graph.get().createNode(Labels.AUTHOR);
+		n.setProperty(TAG+tag, true);
+		if (orcid != null) n.setProperty(Prop.ORCID, orcid);
+		if (lastName != null) n.setProperty(Prop.LAST_NAME, lastName);
+		if (firstName != null) n.setProperty(Prop.FIRST_NAME, firstName);
+		if (label != null) n.setProperty(Prop.AUTHOR_LABEL, label);
+		return n;
+	}
+
+	private Node article(Node... authors) {
+		Node n = graph.get().createNode(Labels.ARTICLE);
+		for (Node a: authors) n.createRelationshipTo(a, Rel.HAS_AUTHOR);
+		return n;
+	}
+
+	private Node affiliation() {
+		return graph.get().createNode(Labels.AFFILIATION);
+	}
+
+	private Map<String,Integer> run() {
+		tx.success();
+		tx.close();
+		tx = null;
+		return AuthorDisambiguator.run(graph);
+	}
+
+	private static Set<Set<String>> groups(String... groups) {
+		return Stream.of(groups).map(g -> new TreeSet<>(Arrays.asList(g.split(",")))).collect(Collectors.toSet());
+	}
+
+	// the tags on each remaining author node
+	private Set<Set<String>> groups() {
+		Set<Set<String>> out = new HashSet<>();
+		try (Transaction tx2 = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.AUTHOR).forEachRemaining(n -> {
+				Set<String> tags = new TreeSet<>();
+				n.getPropertyKeys().forEach(k -> {
+					if (k.startsWith(TAG)) tags.add(k.substring(TAG.length()));
+				});
+				out.add(tags);
+			});
+			tx2.success();
+		}
+		return out;
+	}
+}
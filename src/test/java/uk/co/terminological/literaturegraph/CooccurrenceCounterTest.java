@@ -0,0 +1,129 @@
+package uk.co.terminological.literaturegraph;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Rel;
+
+/**
+ * Checks the co-occurrence network built in the JVM against the cypher build queries it replaced.
+ */
+public class CooccurrenceCounterTest extends EmbeddedGraphTest {
+
+	// the removed cypher build queries for mesh codes
+	static final String CYPHER_COOCCUR =
+			"MATCH (n:MeshCode) <-[:HAS_MESH]- (m:Article) -[:HAS_MESH]-> (o:MeshCode) "+
+			"WHERE n<>o "+
+			"WITH n, o, count(distinct(m)) AS cooccurrences "+
+			"MATCH (n),(o) "+
+			"CREATE (n)-[r:CO_OCCUR]->(o) "+
+			"SET r.cooccurrences = cooccurrences "+
+			"RETURN count(r)";
+	static final String CYPHER_OCCURRENCES =
+			"MATCH (n:Article)-[u:HAS_MESH]->(m:MeshCode) "+
+			"WITH m,count(n) as total "+
+			"MATCH (m:MeshCode) "+
+			"SET m.occurrences=total";
+	static final String CYPHER_PMI =
+			"MATCH (x:MeshCode) "+
+			"WITH sum(x.occurrences) as total "+
+			"MATCH (m:MeshCode)-[r:CO_OCCUR]->(n:MeshCode) "+
+			"SET "+
+			"r.pmi = log( (toFloat(r.cooccurrences)*total) / (m.occurrences*n.occurrences) ), "+
+			"r.probability = toFloat(r.cooccurrences)/total, "+
+			"r.npmi = - log( (toFloat(r.cooccurrences)*total) / (m.occurrences*n.occurrences) ) / log ( toFloat(r.cooccurrences)/total ), "+
+			"r.total = total";
+
+	@Before
+	public void setUp() {
+		try (Transaction tx = graph.get().beginTx()) {
+			Map<String,Node> codes = new HashMap<>();
+			for (String code: Arrays.asList("A","B","C","D","E")) {
+				Node n = graph.get().createNode(Labels.MESH_CODE);
+				n.setProperty(Prop.CODE, code);
+				codes.put(code, n);
+			}
+			// a code with no articles left, whose occurrences still count towards the total
+			Node orphan = graph.get().createNode(Labels.MESH_CODE);
+			orphan.setProperty(Prop.CODE, "F");
+			orphan.setProperty(Prop.OCCURRENCES, 3L);
+			// the same code twice on one article, and an article with a single code
+			for (String article: Arrays.asList("ABC", "AB", "BCD", "AAB", "E", "CD", "ABCDE")) {
+				Node a = graph.get().createNode(Labels.ARTICLE);
+				for (char c: article.toCharArray()) a.createRelationshipTo(codes.get(String.valueOf(c)), Rel.HAS_MESH);
+			}
+			tx.success();
+		}
+	}
+
+	@Test
+	public void matchesCypherBuildQueries() {
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().execute(CYPHER_COOCCUR).close();
+			tx.success();
+		}
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().execute(CYPHER_OCCURRENCES).close();
+			tx.success();
+		}
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().execute(CYPHER_PMI).close();
+			tx.success();
+		}
+		Map<String,Object> expectedOccurrences = occurrences();
+		Map<String,Map<String,Object>> expected = cooccurrences();
+
+		CooccurrenceCounter.run(Labels.MESH_CODE, Rel.HAS_MESH, 3, graph);
+		Map<String,Object> actualOccurrences = occurrences();
+		Map<String,Map<String,Object>> actual = cooccurrences();
+
+		assertEquals(expectedOccurrences.keySet(), actualOccurrences.keySet());
+		expectedOccurrences.forEach((code, o) ->
+			assertEquals(code, ((Number) o).longValue(), ((Number) actualOccurrences.get(code)).longValue()));
+		assertEquals(expected.keySet(), actual.keySet());
+		expected.forEach((pair, props) -> {
+			Map<String,Object> tmp = actual.get(pair);
+			assertEquals(pair, ((Number) props.get(Prop.COOCCURRENCES)).longValue(), ((Number) tmp.get(Prop.COOCCURRENCES)).longValue());
+			assertEquals(pair, ((Number) props.get(Prop.TOTAL)).longValue(), ((Number) tmp.get(Prop.TOTAL)).longValue());
+			for (String p: Arrays.asList(Prop.PMI, Prop.NPMI, Prop.PROBABILITY)) {
+				assertEquals(pair+" "+p, ((Number) props.get(p)).doubleValue(), ((Number) tmp.get(p)).doubleValue(), 1E-9);
+			}
+		});
+	}
+
+	private Map<String,Object> occurrences() {
+		Map<String,Object> out = new HashMap<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.MESH_CODE).forEachRemaining(n ->
+				out.put(n.getProperty(Prop.CODE).toString(), n.getProperty(Prop.OCCURRENCES, 0L)));
+			tx.success();
+		}
+		return out;
+	}
+
+	// the properties of each CO_OCCUR relationship, by the codes at either end, failing on duplicates
+	private Map<String,Map<String,Object>> cooccurrences() {
+		Map<String,Map<String,Object>> out = new HashMap<>();
+		try (Transaction tx = graph.get().beginTx()) {
+			graph.get().findNodes(Labels.MESH_CODE).forEachRemaining(n -> {
+				for (Relationship r: n.getRelationships(org.neo4j.graphdb.Direction.OUTGOING, Rel.CO_OCCUR)) {
+					String pair = n.getProperty(Prop.CODE)+">"+r.getEndNode().getProperty(Prop.CODE);
+					assertEquals("duplicate "+pair, null, out.put(pair, r.getAllProperties()));
+				}
+			});
+			tx.success();
+		}
+		return out;
+	}
+}
@@ -0,0 +1,38 @@
+package uk.co.terminological.literaturegraph;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Opens an empty embedded graph in a temporary directory, without the bolt connector, before each test
+ * and shuts it down and deletes the directory afterwards. The graph is opened before, and shut down after,
+ * the set up and tear down methods of subclasses.
+ */
+public abstract class EmbeddedGraphTest {
+
+	protected Path dir;
+	protected GraphDatabaseApi graph;
+
+	@Before
+	public void openGraph() throws IOException {
+		dir = Files.createTempDirectory("graph");
+		Path conf = dir.resolve("neo4j.conf");
+		Files.write(conf, Arrays.asList("dbms.connector.bolt.enabled=false"));
+		graph = new GraphDatabaseApi(dir.resolve("graph"), conf);
+	}
+
+	@After
+	public void closeGraph() throws IOException {
+		if (graph != null) graph.shutdown();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+}
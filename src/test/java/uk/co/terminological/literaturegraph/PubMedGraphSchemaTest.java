@@ -0,0 +1,68 @@
+package uk.co.terminological.literaturegraph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Labels;
+import uk.co.terminological.literaturegraph.PubMedGraphSchema.Prop;
+
+/**
+ * Creates the schema on an empty graph, both directly and after a bulk load, which fails as a whole if
+ * any one index or constraint is refused.
+ */
+public class PubMedGraphSchemaTest extends EmbeddedGraphTest {
+
+	// the uniqueness constraints on articles, keywords and mesh codes, and the indexes on authors
+	static final int CONSTRAINTS = 5;
+	static final int INDEXES = 7;
+
+	@Test
+	public void createsSchema() {
+		PubMedGraphSchema.createSchema(graph);
+		assertSchema();
+	}
+
+	@Test
+	public void createsSchemaAfterBulkLoad() throws IOException {
+		PubMedGraphSchema.createSchema(graph);
+		assertEquals(0, new BulkLoader().write(graph));
+		assertSchema();
+	}
+
+	@Test
+	public void enforcesUniqueArticles() {
+		PubMedGraphSchema.createSchema(graph);
+		try {
+			try (Transaction tx = graph.get().beginTx()) {
+				for (int i=0; i<2; i++) {
+					Node n = graph.get().createNode(Labels.ARTICLE);
+					n.setProperty(Prop.PMID, "12345");
+				}
+				tx.success();
+			}
+			fail("Two articles were written with the same pmid");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	private void assertSchema() {
+		try (Transaction tx = graph.get().beginTx()) {
+			assertEquals(CONSTRAINTS, count(graph.get().schema().getConstraints()));
+			assertEquals(INDEXES, count(graph.get().schema().getIndexes()));
+			tx.success();
+		}
+	}
+
+	private static int count(Iterable<?> items) {
+		int out = 0;
+		for (Object o: items) out++;
+		return out;
+	}
+}
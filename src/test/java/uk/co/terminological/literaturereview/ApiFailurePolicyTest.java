@@ -0,0 +1,142 @@
+package uk.co.terminological.literaturereview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.co.terminological.literaturereview.ApiFailurePolicy.Endpoint;
+
+/**
+ * Drives the failure policy with fake calls that fail a set number of times, and checks the retries,
+ * backoff, dead letters and circuit breaker from the calls it makes and when it makes them.
+ */
+public class ApiFailurePolicyTest {
+
+	static final Endpoint E = Endpoint.CROSSREF;
+
+	AtomicInteger attempts = new AtomicInteger();
+	AtomicInteger failures = new AtomicInteger();
+
+	private ApiFailurePolicy policy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, int failureThreshold, long openMillis) {
+		ApiFailurePolicy out = new ApiFailurePolicy(maxAttempts, baseDelayMillis, maxDelayMillis, failureThreshold, openMillis);
+		out.setObserver((endpoint, millis, success) -> {
+			attempts.incrementAndGet();
+			if (!success) failures.incrementAndGet();
+		});
+		return out;
+	}
+
+	// a call that fails the given number of times before it succeeds
+	private static ApiFailurePolicy.ApiCall<String> failing(int times) {
+		AtomicInteger calls = new AtomicInteger();
+		return () -> {
+			if (calls.incrementAndGet() <= times) throw new IOException("fail "+calls.get());
+			return "ok";
+		};
+	}
+
+	@Test(timeout = 10000)
+	public void retriesUntilSuccess() {
+		ApiFailurePolicy p = policy(3, 1, 1, 100, 0);
+		assertEquals(Optional.of("ok"), p.call(E, "a", failing(2)));
+		assertEquals(3, attempts.get());
+		assertEquals(2, failures.get());
+		assertEquals(0, p.deadLetterCount());
+	}
+
+	@Test(timeout = 10000)
+	public void deadLettersAfterMaxAttempts() {
+		ApiFailurePolicy p = policy(3, 1, 1, 100, 0);
+		assertEquals(Optional.empty(), p.call(E, Arrays.asList("a", "b"), failing(3)));
+		assertEquals(3, attempts.get());
+		assertEquals(Collections.emptySet(), p.peekDeadLetters(Endpoint.UNPAYWALL));
+		assertEquals(2, p.peekDeadLetters(E).size());
+		assertEquals(2, p.drainDeadLetters(E).size());
+		assertEquals(0, p.deadLetterCount());
+	}
+
+	@Test(timeout = 10000)
+	public void emptyResultIsNotRetried() {
+		ApiFailurePolicy p = policy(3, 1, 1, 100, 0);
+		assertEquals(Optional.empty(), p.callOptional(E, "a", () -> Optional.empty()));
+		assertEquals(1, attempts.get());
+		assertEquals(0, p.deadLetterCount());
+	}
+
+	@Test(timeout = 10000)
+	public void backoffIsCappedByMaxDelay() {
+		// ceilings of 50, 100 then the cap of 100 between four attempts
+		ApiFailurePolicy p = policy(4, 50, 100, 100, 0);
+		long start = System.currentTimeMillis();
+		p.call(E, "a", failing(4));
+		long elapsed = System.currentTimeMillis()-start;
+		assertEquals(4, attempts.get());
+		assertTrue("backoff took "+elapsed+" ms", elapsed < 250+1000);
+	}
+
+	@Test(timeout = 10000)
+	public void openCircuitHoldsCallsThenCloses() {
+		ApiFailurePolicy p = policy(1, 0, 0, 2, 300);
+		p.call(E, "a", failing(1));
+		p.call(E, "b", failing(1));
+		// the circuit is open, so the next call waits for the open period and then goes through as the trial
+		long start = System.currentTimeMillis();
+		assertEquals(Optional.of("ok"), p.call(E, "c", failing(0)));
+		assertTrue(System.currentTimeMillis()-start >= 250);
+		// the trial succeeded, so the circuit is closed again
+		start = System.currentTimeMillis();
+		assertEquals(Optional.of("ok"), p.call(E, "d", failing(0)));
+		assertTrue(System.currentTimeMillis()-start < 250);
+		// other endpoints have their own circuit
+		start = System.currentTimeMillis();
+		p.call(E, "e", failing(1));
+		p.call(E, "f", failing(1));
+		assertEquals(Optional.of("ok"), p.call(Endpoint.UNPAYWALL, "g", failing(0)));
+		assertTrue(System.currentTimeMillis()-start < 250);
+	}
+
+	@Test(timeout = 10000)
+	public void failedTrialReopensCircuit() {
+		ApiFailurePolicy p = policy(1, 0, 0, 1, 300);
+		p.call(E, "a", failing(1));
+		long start = System.currentTimeMillis();
+		p.call(E, "b", failing(1));
+		assertTrue(System.currentTimeMillis()-start >= 250);
+		start = System.currentTimeMillis();
+		assertEquals(Optional.of("ok"), p.call(E, "c", failing(0)));
+		assertTrue(System.currentTimeMillis()-start >= 250);
+	}
+
+	@Test(timeout = 10000)
+	public void halfOpenCircuitLetsOneTrialThrough() throws InterruptedException {
+		ApiFailurePolicy p = policy(1, 0, 0, 1, 100);
+		p.call(E, "a", failing(1));
+		AtomicInteger entered = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		ApiFailurePolicy.ApiCall<String> held = () -> {
+			entered.incrementAndGet();
+			release.await();
+			return "ok";
+		};
+		Thread first = new Thread(() -> p.call(E, "b", held));
+		Thread second = new Thread(() -> p.call(E, "c", held));
+		first.start();
+		second.start();
+		Thread.sleep(500);
+		// the open period is over but only the trial call is let through while it runs
+		assertEquals(1, entered.get());
+		release.countDown();
+		first.join();
+		second.join();
+		assertEquals(2, entered.get());
+		assertEquals(Collections.singleton("a"), p.peekDeadLetters(E));
+	}
+}
@@ -0,0 +1,130 @@
+package uk.co.terminological.literaturereview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/**
+ * Runs the extractor with fake downloads, parses and lookups, and checks what is written and that the
+ * memory, parse heap and parse slots are all given back, apart from the heap of a parse that is
+ * abandoned when its pdf times out, which is given back when the parse returns.
+ */
+public class PdfReferenceExtractorTest {
+
+	static final int MEMORY_KB = 1024;
+	// room for two parses of small pdfs, which reserve a little over 32 mb each
+	static final int PARSE_MEMORY_KB = 128*1024;
+	static final int PARSE_WORKERS = 2;
+
+	Map<String,Set<String>> written = new ConcurrentHashMap<>();
+
+	private static PdfReferenceExtractor<String> extractor(long timeoutMillis) {
+		return new PdfReferenceExtractor<>(2, PARSE_WORKERS, 2, timeoutMillis, MEMORY_KB*1024L, PARSE_MEMORY_KB*1024L, 256*1024L);
+	}
+
+	// a pdf of 2 kb for every doi, except "none" which has no pdf and "large" which is too big
+	private static Optional<InputStream> download(String doi) {
+		if (doi.equals("none")) return Optional.empty();
+		return Optional.of(new ByteArrayInputStream(new byte[doi.equals("large") ? 300*1024 : 2*1024]));
+	}
+
+	private static Stream<String> resolve(String doi, String ref) {
+		if (ref.equals("bad")) throw new IllegalStateException("lookup failed");
+		return Stream.of(doi+":"+ref);
+	}
+
+	private static Set<String> set(String... items) {
+		return new HashSet<>(Arrays.asList(items));
+	}
+
+	private void assertReleased(PdfReferenceExtractor<String> x) {
+		assertEquals(MEMORY_KB, x.availableMemoryKb());
+		assertEquals(PARSE_MEMORY_KB, x.availableParseMemoryKb());
+		assertEquals(PARSE_WORKERS, x.availableParseSlots());
+	}
+
+	@Test(timeout = 10000)
+	public void writesResolvedReferences() {
+		PdfReferenceExtractor<String> x = extractor(5000);
+		int count = x.extract(Arrays.asList("a", "b", "c", "d"), PdfReferenceExtractorTest::download,
+				(doi, pdf) -> doi.equals("d") ? Collections.emptyList() : Arrays.asList("r1", "r2"),
+				PdfReferenceExtractorTest::resolve, written::put);
+		assertEquals(4, count);
+		assertEquals(set("a:r1", "a:r2"), written.get("a"));
+		assertEquals(set(), written.get("d"));
+		assertEquals(0, x.abandoned());
+		assertReleased(x);
+	}
+
+	@Test(timeout = 10000)
+	public void skipsMissingAndOversizedPdfs() {
+		PdfReferenceExtractor<String> x = extractor(5000);
+		int count = x.extract(Arrays.asList("none", "large", "a"), PdfReferenceExtractorTest::download,
+				(doi, pdf) -> Arrays.asList("r1"), PdfReferenceExtractorTest::resolve, written::put);
+		assertEquals(1, count);
+		assertEquals(set("a"), written.keySet());
+		assertReleased(x);
+	}
+
+	@Test(timeout = 10000)
+	public void skipsPdfWhenLookupFails() {
+		PdfReferenceExtractor<String> x = extractor(5000);
+		int count = x.extract(Arrays.asList("a", "b"), PdfReferenceExtractorTest::download,
+				(doi, pdf) -> doi.equals("a") ? Arrays.asList("r1", "bad", "r2") : Arrays.asList("r1"),
+				PdfReferenceExtractorTest::resolve, written::put);
+		assertEquals(1, count);
+		assertEquals(set("b"), written.keySet());
+		assertReleased(x);
+	}
+
+	@Test(timeout = 10000)
+	public void abandonsParseThatTimesOut() throws InterruptedException {
+		PdfReferenceExtractor<String> x = extractor(300);
+		CountDownLatch stuck = new CountDownLatch(1);
+		CountDownLatch returned = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+		int count = x.extract(Arrays.asList("slow", "a", "b"), PdfReferenceExtractorTest::download,
+				(doi, pdf) -> {
+					if (doi.equals("slow")) {
+						// like a parse that does not respond to interruption
+						while (true) {
+							try {
+								stuck.await();
+								break;
+							} catch (InterruptedException e) {
+								// carries on
+							}
+						}
+						returned.countDown();
+					}
+					return Arrays.asList("r1");
+				},
+				PdfReferenceExtractorTest::resolve, written::put);
+		assertTrue(System.currentTimeMillis()-start < 5000);
+		assertEquals(2, count);
+		assertEquals(set("a", "b"), written.keySet());
+		assertEquals(1, x.abandoned());
+		// the slot is given back when the parse is abandoned but its heap only when it returns
+		assertEquals(PARSE_WORKERS, x.availableParseSlots());
+		assertEquals(MEMORY_KB, x.availableMemoryKb());
+		assertTrue(x.availableParseMemoryKb() < PARSE_MEMORY_KB);
+		stuck.countDown();
+		returned.await();
+		long until = System.currentTimeMillis()+5000;
+		while (x.availableParseMemoryKb() != PARSE_MEMORY_KB && System.currentTimeMillis() < until) Thread.sleep(10);
+		assertReleased(x);
+	}
+}
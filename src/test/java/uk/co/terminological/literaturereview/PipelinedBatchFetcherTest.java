@@ -0,0 +1,82 @@
+package uk.co.terminological.literaturereview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+/**
+ * Checks that the permits bounding the records in flight are all given back, whether records are
+ * missing from a batch, the fetch fails or the writer fails, using fake fetches.
+ */
+public class PipelinedBatchFetcherTest {
+
+	static final int MAX_IN_FLIGHT = 10;
+
+	AtomicInteger inFlight = new AtomicInteger();
+	AtomicInteger maxSeen = new AtomicInteger();
+
+	private static PipelinedBatchFetcher<Integer,Integer> fetcher() {
+		return new PipelinedBatchFetcher<>("test", 5, 5, 5, 1000, 1000000, MAX_IN_FLIGHT, i -> 8);
+	}
+
+	private static List<Integer> ids(int n) {
+		return IntStream.range(0, n).boxed().collect(Collectors.toList());
+	}
+
+	// returns the even ids, and fails on the batch containing the given id
+	private List<Integer> fetch(List<Integer> batch, int failOn) throws IOException {
+		if (batch.contains(failOn)) throw new IOException("fetch failed");
+		List<Integer> out = batch.stream().filter(i -> i % 2 == 0).collect(Collectors.toList());
+		maxSeen.accumulateAndGet(inFlight.addAndGet(out.size()), Math::max);
+		return out;
+	}
+
+	@Test(timeout = 10000)
+	public void returnsPermitsForMissingRecords() {
+		PipelinedBatchFetcher<Integer,Integer> f = fetcher();
+		List<Integer> written = new ArrayList<>();
+		int count = f.fetchAndWrite(ids(100), batch -> fetch(batch, -1), out -> {
+			written.addAll(out);
+			inFlight.addAndGet(-out.size());
+		});
+		assertEquals(50, count);
+		assertEquals(50, written.size());
+		assertTrue("records in flight: "+maxSeen.get(), maxSeen.get() <= MAX_IN_FLIGHT);
+		assertEquals(MAX_IN_FLIGHT, f.availablePermits());
+	}
+
+	@Test(timeout = 10000)
+	public void returnsPermitsWhenFetchFails() {
+		PipelinedBatchFetcher<Integer,Integer> f = fetcher();
+		// the batches before the failing one are written
+		int count = f.fetchAndWrite(ids(100).stream(), batch -> fetch(batch, 12), out -> inFlight.addAndGet(-out.size()));
+		assertEquals(5, count);
+		assertEquals(MAX_IN_FLIGHT, f.availablePermits());
+	}
+
+	@Test(timeout = 10000)
+	public void returnsPermitsWhenWriterFails() throws InterruptedException {
+		PipelinedBatchFetcher<Integer,Integer> f = fetcher();
+		try {
+			f.fetchAndWrite(ids(100), batch -> fetch(batch, -1), out -> {
+				throw new IllegalStateException("write failed");
+			});
+			fail("The writer failure was not thrown");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// a fetch that was running when the writer failed gives its permits back when it finishes
+		long until = System.currentTimeMillis()+5000;
+		while (f.availablePermits() != MAX_IN_FLIGHT && System.currentTimeMillis() < until) Thread.sleep(10);
+		assertEquals(MAX_IN_FLIGHT, f.availablePermits());
+	}
+}